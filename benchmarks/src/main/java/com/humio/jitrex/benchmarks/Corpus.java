@@ -0,0 +1,74 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inputs for the benchmarks, as lines.
+ * <ul>
+ * <li>twain: the collected works of Mark Twain from Project Gutenberg (ebook 3200),
+ * read from the file named by the system property jitrex.corpus.twain, by default
+ * 3200.txt in the working directory.
+ * <li>logs: generated log lines, the same on every run.
+ * </ul>
+ */
+final class Corpus {
+
+    private Corpus() {
+    }
+
+    static String[] lines(String name) throws IOException {
+        switch (name) {
+            case "twain":
+                return twain();
+            case "logs":
+                return logs(300000);
+            default:
+                throw new IllegalArgumentException("Unknown corpus " + name);
+        }
+    }
+
+    private static String[] twain() throws IOException {
+        Path path = Paths.get(System.getProperty("jitrex.corpus.twain", "3200.txt"));
+        if (!Files.exists(path))
+            throw new IOException("Mark Twain corpus not found at " + path.toAbsolutePath()
+                    + "; download https://www.gutenberg.org/cache/epub/3200/pg3200.txt"
+                    + " or pick another corpus with -p corpus=logs");
+        return Files.readAllLines(path, StandardCharsets.UTF_8).toArray(new String[0]);
+    }
+
+    private static final String[] HOSTS = {"web-1", "web-2", "db-main", "cache", "Huckleberry"};
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "WARN", "ERROR", "DEBUG"};
+    private static final String[] MESSAGES = {
+            "request finished status=200 path=/api/v1/users",
+            "connection refused by peer, retrying",
+            "user Tom Sawyer logged in from 10.1.2.3",
+            "processing batch of 512 events",
+            "slow query: SELECT * FROM river WHERE name = 'Finn'",
+            "cache miss ratio 0.25 ✓",
+    };
+
+    static String[] logs(int count) {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>(count);
+        long time = 1546300800000L;
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(1000);
+            lines.add(time + " " + HOSTS[random.nextInt(HOSTS.length)] + " "
+                    + LEVELS[random.nextInt(LEVELS.length)] + " "
+                    + MESSAGES[random.nextInt(MESSAGES.length)] + " id=" + random.nextInt(1000000));
+        }
+        return lines.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.benchmarks;
+
+import com.humio.jitrex.util.Regex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the matches of each regex in a corpus, once per operation, with each of
+ * the backends. This is what the old PerformanceTest timed by hand.
+ * <p>
+ * Run with the gc profiler to also get the allocation rate:
+ * <pre>
+ *   java -jar target/benchmarks.jar MatchBenchmark -prof gc
+ * </pre>
+ * The warm-up iterations are printed one by one, which shows how long it takes
+ * until HotSpot has compiled the generated classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MatchBenchmark {
+
+    @Param({
+            "Twain",
+            "(?i)Twain",
+            "[a-z]shing",
+            "Huck[a-zA-Z]+|Saw[a-zA-Z]+",
+            "\\b\\w+nn\\b",
+            "[a-q][^u-z]{13}x",
+            "Tom|Sawyer|Huckleberry|Finn",
+            "(?i)(Tom|Sawyer|Huckleberry|Finn)",
+            ".{0,2}(?:Tom|Sawyer|Huckleberry|Finn)",
+            ".{2,4}(Tom|Sawyer|Huckleberry|Finn)",
+            "Tom.{10,25}river|river.{10,25}Tom",
+            "[a-zA-Z]+ing",
+            "\\s[a-zA-Z]{0,12}ing\\s",
+            "([A-Za-z]awyer|[A-Za-z]inn)\\s",
+            "[\"'][^\"']{0,30}[?!\\.][\"']",
+            "∞|✓",
+            "\\p{Sm}",
+    })
+    public String regex;
+
+    @Param({"jitrex", "jitrex/i", "jitrex/n", "jitrex/ni", "java", "re2"})
+    public String backend;
+
+    @Param({"twain", "logs"})
+    public String corpus;
+
+    private Backend matcher;
+    private String[] lines;
+
+    @Setup
+    public void setup() throws Exception {
+        lines = Corpus.lines(corpus);
+        matcher = Backend.create(backend, regex);
+    }
+
+    @Benchmark
+    public int countMatches() {
+        return matcher.countMatches(lines);
+    }
+
+    abstract static class Backend {
+
+        abstract int countMatches(String[] inputs);
+
+        static Backend create(String name, String regex) {
+            switch (name) {
+                case "jitrex":
+                    return new Jitrex(regex, Regex._OLD_LONG_STRING_HANDLING);
+                case "jitrex/i":
+                    return new Jitrex(regex, Regex.CASE_INSENSITIVE | Regex._OLD_LONG_STRING_HANDLING);
+                case "jitrex/n":
+                    return new Jitrex(regex, 0);
+                case "jitrex/ni":
+                    return new Jitrex(regex, Regex.CASE_INSENSITIVE);
+                case "java":
+                    return new Java(regex);
+                case "re2":
+                    return new Re2(regex);
+                default:
+                    throw new IllegalArgumentException("Unknown backend " + name);
+            }
+        }
+    }
+
+    static final class Jitrex extends Backend {
+        private final com.humio.jitrex.Matcher matcher;
+
+        Jitrex(String regex, int flags) {
+            matcher = com.humio.jitrex.Pattern.compile(regex, flags).matcher("");
+        }
+
+        int countMatches(String[] inputs) {
+            int result = 0;
+            for (String s : inputs) {
+                matcher.reset(s);
+                while (matcher.find())
+                    result++;
+            }
+            return result;
+        }
+    }
+
+    static final class Java extends Backend {
+        private final java.util.regex.Matcher matcher;
+
+        Java(String regex) {
+            matcher = java.util.regex.Pattern.compile(regex).matcher("");
+        }
+
+        int countMatches(String[] inputs) {
+            int result = 0;
+            for (String s : inputs) {
+                matcher.reset(s);
+                while (matcher.find())
+                    result++;
+            }
+            return result;
+        }
+    }
+
+    static final class Re2 extends Backend {
+        private final com.google.re2j.Matcher matcher;
+
+        Re2(String regex) {
+            matcher = com.google.re2j.Pattern.compile(regex).matcher("");
+        }
+
+        int countMatches(String[] inputs) {
+            int result = 0;
+            for (String s : inputs) {
+                matcher.reset(s);
+                while (matcher.find())
+                    result++;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import com.humio.jitrex.jvm.JavaClassRegexStub;
+import com.humio.jitrex.jvm.RJavaClassMachine;
+import com.humio.jitrex.tree.RequiredLiteral;
+import com.humio.jitrex.util.Regex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Directory of classes generated for patterns, so that a process that compiles
+ * the same patterns as the one before it can load their code instead of
+ * generating it again. Install it with Pattern.setClassCache().
+ * <p>
+ * There is a file per pattern, flags and Pattern.setMaxMethodSize() setting,
+ * named after a hash of those and of the version of this library, as generated
+ * code only works with the library that generated it. The files hold the class
+ * and what else is needed to make a Regex of it. They are written to a temporary
+ * file first and then moved into place, so several processes can share a
+ * directory. Files that cannot be read are deleted and the code is generated
+ * again.
+ * <p>
+ * The classes are defined as they are found, with the privileges of this
+ * library: whoever can write to the directory can run code in every process that
+ * uses it. The hash in a file name is not a signature, only a way to find the
+ * file. So on file systems with POSIX permissions the directory has to be owned
+ * by the user running the process and not be writable by anyone else, and it is
+ * made that way when it is created. It is up to the caller to keep it so, and to
+ * make sure that others cannot replace the directory itself either. Processes
+ * that share a directory have to run as the same user.
+ * <p>
+ * Only the code for String input is cached; that for other input and for
+ * StreamMatcher is generated when first needed, as before.
+ */
+public final class ClassCache {
+
+    private static final int MAGIC = 0x6a697463; // "jitc"
+    private static final int FORMAT = 2;
+    private static final String VERSION = version();
+
+    // flags that do not change the generated code, and so are not part of the key
+    private static final int IGNORED_FLAGS = Regex._NO_DFA | Regex._NO_INTERPRETER;
+
+    private final Path directory;
+    private long hits;
+    private long misses;
+    private long failures;
+
+    /**
+     * Uses <i>directory</i>, which is created if it does not exist. Throws
+     * IllegalArgumentException if others than its owner can write to it, or it is
+     * not owned by the user running the process.
+     */
+    public ClassCache(Path directory) {
+        try {
+            boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (posix && !Files.exists(directory))
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+            this.directory = Files.createDirectories(directory);
+            if (posix)
+                checkOwnerOnly(this.directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void checkOwnerOnly(Path directory) throws IOException {
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+        if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE))
+            throw new IllegalArgumentException(directory + " can be written to by others than its owner");
+        // files made here are owned by the user running the process
+        Path probe = Files.createTempFile(directory, "owner", ".tmp");
+        try {
+            if (!Files.getOwner(probe).equals(Files.getOwner(directory)))
+                throw new IllegalArgumentException(directory + " is owned by " + Files.getOwner(directory));
+        } finally {
+            Files.deleteIfExists(probe);
+        }
+    }
+
+    /**
+     * The version of the library, and a checksum of the class that generated code
+     * extends, so that builds without a version do not load each other's code.
+     */
+    private static String version() {
+        String version = String.valueOf(ClassCache.class.getPackage().getImplementationVersion());
+        CRC32 crc = new CRC32();
+        try (InputStream in = JavaClassRegexStub.class.getResourceAsStream("JavaClassRegexStub.class")) {
+            byte[] buf = new byte[8192];
+            int n;
+            while (in != null && (n = in.read(buf)) > 0)
+                crc.update(buf, 0, n);
+        } catch (IOException e) {
+            // the version alone will have to do
+        }
+        return version + "/" + Long.toHexString(crc.getValue());
+    }
+
+    private Path file(String pattern, int flags, int maxMethodSize) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(VERSION.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(Integer.toString(flags).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(Integer.toString(maxMethodSize).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(pattern.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(72);
+            for (byte b : md.digest())
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return directory.resolve(name.append(".jitrex").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The code generated earlier for <i>pattern</i> with methods of at most
+     * <i>maxMethodSize</i> bytes, or null.
+     */
+    TieredRegex.Compiled load(String pattern, int flags, int maxMethodSize) {
+        flags &= ~IGNORED_FLAGS;
+        Path file = file(pattern, flags, maxMethodSize);
+        if (!Files.exists(file)) {
+            count(false);
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT || !in.readUTF().equals(VERSION) || in.readInt() != flags
+                    || in.readInt() != maxMethodSize || !readString(in).equals(pattern))
+                throw new IOException("not for " + pattern);
+            RequiredLiteral literal = null;
+            if (in.readBoolean()) {
+                String s = readString(in);
+                literal = new RequiredLiteral(s, in.readInt());
+            }
+            String className = in.readUTF();
+            int largestMethodSize = in.readInt();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            TieredRegex.Compiled compiled = new TieredRegex.Compiled(
+                    RJavaClassMachine.loadRegex(className, body, literal), body.length, largestMethodSize);
+            count(true);
+            return compiled;
+        } catch (IOException | RuntimeException | LinkageError e) {
+            synchronized (this) {
+                failures++;
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // someone else will try again
+            }
+            count(false);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the code generated by <i>machine</i> for <i>pattern</i>. Failing
+     * to do so is not an error, it only means generating the code again later.
+     */
+    void store(String pattern, int flags, int maxMethodSize, RJavaClassMachine machine) {
+        byte[] body = machine.getClassBytes();
+        if (body == null)
+            return;
+        flags &= ~IGNORED_FLAGS;
+        Path file = file(pattern, flags, maxMethodSize);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeUTF(VERSION);
+                out.writeInt(flags);
+                out.writeInt(maxMethodSize);
+                writeString(out, pattern);
+                RequiredLiteral literal = machine.getRequiredLiteral();
+                out.writeBoolean(literal != null);
+                if (literal != null) {
+                    writeString(out, literal.literal);
+                    out.writeInt(literal.maxOffset);
+                }
+                out.writeUTF(machine.getClassName());
+                out.writeInt(machine.getLargestMethodSize());
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (this) {
+                failures++;
+            }
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                    // left for clear()
+                }
+            }
+        }
+    }
+
+    // writeUTF() is limited to 64K bytes, which patterns can exceed
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("bad length " + length);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = in.readChar();
+        return new String(chars);
+    }
+
+    private synchronized void count(boolean hit) {
+        if (hit)
+            hits++;
+        else
+            misses++;
+    }
+
+    /**
+     * Deletes all files in the directory.
+     */
+    public void clear() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Number of files that could not be read or written.
+     */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    public synchronized String toString() {
+        return "ClassCache[" + directory + " hits=" + hits + " misses=" + misses + " failures=" + failures + "]";
+    }
+}
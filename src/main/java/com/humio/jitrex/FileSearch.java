@@ -0,0 +1,242 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Finds all matches of a pattern in a UTF-8 file, or in a buffer such as a
+ * MappedByteBuffer, searching chunks of it in parallel.
+ * <p>
+ * The input is split into chunks of about getChunkSize() bytes, each ending
+ * after a newline, and every chunk is searched by its own Matcher on a
+ * ForkJoinPool. Matches are handed to the MatchHandler in the order they occur,
+ * as byte offsets from the start of the input, on the calling thread. They are
+ * the matches one Matcher over the whole input would find.
+ * <p>
+ * Only patterns that cannot match a newline are split, as no match of theirs can
+ * span a chunk boundary. A Matcher is given its chunk with the chars on either
+ * side of it, so anchors and word boundaries at the ends of a chunk see what is
+ * really there. Other patterns are searched as one chunk, which can then be no
+ * larger than about 2 GB.
+ * <p>
+ * Chunks are copied into a byte array to be searched: from a file with
+ * positional reads, without mapping it, and from a buffer with a bulk get,
+ * also when that is a MappedByteBuffer. So this is not zero-copy.
+ */
+public final class FileSearch {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+    // longest chunk when no newline is found; a chunk is read into one array
+    private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 16;
+
+    // bytes read on either side of a chunk
+    private static final int CONTEXT = 4;
+
+    public interface MatchHandler {
+        void match(long start, long end);
+    }
+
+    private final Pattern pattern;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public FileSearch(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunk size " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Searches the whole file; each chunk is read with positional reads, which
+     * do not move the channel's position.
+     */
+    public void search(FileChannel channel, MatchHandler handler) throws IOException {
+        search(new ChannelSource(channel), handler);
+    }
+
+    /**
+     * Searches the buffer from its position to its limit; offsets are relative to
+     * the position. The buffer itself is not modified.
+     */
+    public void search(ByteBuffer buffer, MatchHandler handler) throws IOException {
+        search(new BufferSource(buffer), handler);
+    }
+
+    private abstract static class Source {
+        abstract long size() throws IOException;
+
+        abstract void read(long position, byte[] dst, int len) throws IOException;
+
+        /**
+         * Returns the offset just after the first newline at or after position, or
+         * size() if there is none. Reads ahead in steps that double up to 1 MB, so
+         * long lines do not take many small reads.
+         */
+        long lineEnd(long position) throws IOException {
+            long size = size();
+            byte[] buf = new byte[4096];
+            while (position < size) {
+                int n = (int) Math.min(buf.length, size - position);
+                read(position, buf, n);
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] == '\n')
+                        return position + i + 1;
+                }
+                position += n;
+                if (buf.length < 1 << 20)
+                    buf = new byte[2 * buf.length];
+            }
+            return size;
+        }
+    }
+
+    private static final class ChannelSource extends Source {
+        private final FileChannel channel;
+
+        ChannelSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        void read(long position, byte[] dst, int len) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(dst, 0, len);
+            while (b.hasRemaining()) {
+                int n = channel.read(b, position + b.position());
+                if (n < 0)
+                    throw new EOFException("file shrank while being searched");
+            }
+        }
+    }
+
+    private static final class BufferSource extends Source {
+        private final ByteBuffer buffer;
+        private final int base;
+
+        BufferSource(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+            this.base = buffer.position();
+        }
+
+        long size() {
+            return buffer.limit() - base;
+        }
+
+        void read(long position, byte[] dst, int len) {
+            ByteBuffer b = buffer.duplicate();
+            b.position(base + (int) position);
+            b.get(dst, 0, len);
+        }
+    }
+
+    private void search(Source source, MatchHandler handler) throws IOException {
+        long size = source.size();
+        boolean splittable = !pattern.canMatchLineTerminator();
+        if (!splittable && size > MAX_CHUNK_SIZE - 2 * CONTEXT)
+            throw new IllegalArgumentException("input of " + size
+                    + " bytes is too large to search as one chunk, and the pattern can match across lines");
+        int window = Math.max(2, 2 * pool.getParallelism());
+        ArrayDeque<ForkJoinTask<long[]>> pending = new ArrayDeque<>();
+        long start = 0;
+        try {
+            while (start < size || !pending.isEmpty()) {
+                while (start < size && pending.size() < window) {
+                    long end = !splittable || start + chunkSize >= size ? size : source.lineEnd(start + chunkSize - 1);
+                    end = Math.min(end, start + MAX_CHUNK_SIZE - 2 * CONTEXT);
+                    long from = start;
+                    long to = end;
+                    pending.add(pool.submit(() -> searchChunk(source, size, from, to)));
+                    start = end;
+                }
+                long[] matches = join(pending.poll());
+                for (int i = 0; i < matches.length; i += 2)
+                    handler.match(matches[i], matches[i + 1]);
+            }
+        } finally {
+            // only non-empty if the handler or a chunk failed
+            for (ForkJoinTask<long[]> task : pending)
+                task.cancel(false);
+        }
+    }
+
+    /**
+     * Finds the matches that start in [start, end), or up to end inclusive for
+     * the last chunk. The Matcher also gets the chars around the chunk, so that
+     * ^, $, \b and the like see them; a UTF-8 char is at most CONTEXT bytes.
+     */
+    private long[] searchChunk(Source source, long size, long start, long end) throws IOException {
+        long from = Math.max(0, start - CONTEXT);
+        int len = (int) (Math.min(size, end + CONTEXT) - from);
+        byte[] bytes = new byte[len];
+        source.read(from, bytes, len);
+        Matcher m = pattern.matcher(bytes, 0, len);
+        long[] matches = new long[16];
+        int n = 0;
+        while (m.find()) {
+            long matchStart = from + m.start();
+            if (matchStart < start)
+                continue;
+            if (matchStart >= end && end < size)
+                break;
+            if (n == matches.length)
+                matches = Arrays.copyOf(matches, 2 * n);
+            matches[n++] = matchStart;
+            matches[n++] = from + m.end();
+        }
+        return Arrays.copyOf(matches, n);
+    }
+
+    private static long[] join(ForkJoinTask<long[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import java.util.Arrays;
+
+/**
+ * Positions of many matches in a single growable int array, with no object per
+ * match. Every match takes the same number of ints: start and end of the whole
+ * match and then of each group, -1 for groups that are not part of it. Like
+ * Matcher.start(int), positions are byte offsets for UTF-8 input.
+ * <p>
+ * clear() keeps the array, so a collector can be reused without allocating once
+ * it has grown to the size needed.
+ */
+public final class MatchCollector {
+
+    private final int groupCount;
+    private final int stride;
+    private int[] positions;
+    private int size;
+
+    /**
+     * Collector for matches of patterns with <i>groupCount</i> groups.
+     */
+    public MatchCollector(int groupCount) {
+        this(groupCount, 16);
+    }
+
+    public MatchCollector(int groupCount, int initialMatches) {
+        if (groupCount < 0 || initialMatches < 0)
+            throw new IllegalArgumentException("groups " + groupCount + " matches " + initialMatches);
+        this.groupCount = groupCount;
+        this.stride = 2 * (groupCount + 1);
+        this.positions = new int[Math.max(1, initialMatches) * stride];
+    }
+
+    /**
+     * Adds the current match of <i>m</i>.
+     */
+    public void add(Matcher m) {
+        if (m.groupCount() != groupCount)
+            throw new IllegalArgumentException("Matcher has " + m.groupCount() + " groups, not " + groupCount);
+        int off = size * stride;
+        if (off + stride > positions.length)
+            positions = Arrays.copyOf(positions, Math.max(2 * positions.length, off + stride));
+        m.positions(positions, off);
+        size++;
+    }
+
+    /**
+     * Adds all the matches of <i>m</i> from its current position on, and returns how many there were.
+     */
+    public int addAll(Matcher m) {
+        int before = size;
+        while (m.find())
+            add(m);
+        return size - before;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int groupCount() {
+        return groupCount;
+    }
+
+    public int start(int match, int group) {
+        return positions[index(match, group)];
+    }
+
+    public int end(int match, int group) {
+        return positions[index(match, group) + 1];
+    }
+
+    private int index(int match, int group) {
+        if (match < 0 || match >= size)
+            throw new IndexOutOfBoundsException("No match " + match);
+        if (group < 0 || group > groupCount)
+            throw new IndexOutOfBoundsException("No group " + group);
+        return match * stride + 2 * group;
+    }
+
+    /**
+     * The array the positions are in; those of match <i>i</i> start at index
+     * <i>i</i> * 2 * (groupCount() + 1). Only valid until the next add().
+     */
+    public int[] positions() {
+        return positions;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
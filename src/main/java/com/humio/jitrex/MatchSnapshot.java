@@ -0,0 +1,81 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import com.humio.jitrex.util.Utf8CharSequence;
+
+import java.util.regex.MatchResult;
+
+/**
+ * The positions of a match and its groups, copied out of a Matcher so that they
+ * outlive its next find(). They are kept in an int array that is reused when the
+ * snapshot is passed to Matcher.toMatchResult() again.
+ * <p>
+ * The input is not copied: group() reads it as it is when called, while the
+ * positions stay as they were. For UTF-8 input the positions are byte offsets,
+ * as Matcher reports them.
+ */
+public final class MatchSnapshot implements MatchResult {
+
+    private CharSequence input;
+    private int groupCount;
+    // start and end of group 0, then of group 1 and so on; -1 for groups not in the match
+    private int[] positions = new int[2];
+
+    void set(CharSequence input, int groupCount) {
+        this.input = input;
+        this.groupCount = groupCount;
+        if (positions.length < 2 * (groupCount + 1))
+            positions = new int[2 * (groupCount + 1)];
+    }
+
+    int[] positions() {
+        return positions;
+    }
+
+    private int check(int group) {
+        if (group < 0 || group > groupCount)
+            throw new IndexOutOfBoundsException("No group " + group);
+        return 2 * group;
+    }
+
+    public int start() {
+        return positions[0];
+    }
+
+    public int start(int group) {
+        return positions[check(group)];
+    }
+
+    public int end() {
+        return positions[1];
+    }
+
+    public int end(int group) {
+        return positions[check(group) + 1];
+    }
+
+    public String group() {
+        return group(0);
+    }
+
+    public String group(int group) {
+        int start = start(group);
+        if (start == -1)
+            return null;
+        int end = end(group);
+        if (input instanceof Utf8CharSequence) {
+            Utf8CharSequence utf8 = (Utf8CharSequence) input;
+            start = utf8.toCharIndex(start);
+            end = utf8.toCharIndex(end);
+        }
+        return input.subSequence(start, end).toString();
+    }
+
+    public int groupCount() {
+        return groupCount;
+    }
+}
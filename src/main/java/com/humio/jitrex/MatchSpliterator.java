@@ -0,0 +1,117 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import com.humio.jitrex.util.Utf8CharSequence;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The matches of a pattern in one input, in order, for Pattern.matchStream().
+ * The input is split only at line terminators, and only for patterns that
+ * cannot match one, as no match can then span a split: each part finds the
+ * same matches that one Matcher going over the whole input would.
+ * <p>
+ * Each part has its own Matcher, made when the part is first traversed. It
+ * is given the whole input and only moves where the search starts to the
+ * start of the part, so anchors such as \A still see the start of the input
+ * and boundaries see the chars around the split.
+ */
+final class MatchSpliterator implements Spliterator<MatchSnapshot> {
+
+    // parts smaller than this are not split further
+    static final int MIN_SPLIT = 1 << 12;
+
+    private final Pattern pattern;
+    private final CharSequence input;
+    private final boolean splittable;
+    // chars where matches start that belong to this part; an empty match at the
+    // end of the input belongs to the last part, which has no end
+    private int from;
+    private final int to;
+    private Matcher matcher;
+    private int limit;
+    private boolean done;
+
+    MatchSpliterator(Pattern pattern, CharSequence input, boolean splittable) {
+        this(pattern, input, splittable, 0, Integer.MAX_VALUE);
+    }
+
+    private MatchSpliterator(Pattern pattern, CharSequence input, boolean splittable, int from, int to) {
+        this.pattern = pattern;
+        this.input = input;
+        this.splittable = splittable;
+        this.from = from;
+        this.to = to;
+    }
+
+    private int end() {
+        return Math.min(to, input.length());
+    }
+
+    public boolean tryAdvance(Consumer<? super MatchSnapshot> action) {
+        if (done)
+            return false;
+        boolean found;
+        if (matcher == null) {
+            matcher = pattern.matcher(input);
+            limit = to == Integer.MAX_VALUE ? Integer.MAX_VALUE : offset(to);
+            found = matcher.findFrom(from);
+        } else {
+            found = matcher.find();
+        }
+        if (!found || matcher.start() >= limit) {
+            done = true;
+            return false;
+        }
+        action.accept(matcher.toMatchResult());
+        return true;
+    }
+
+    // Matcher takes and reports byte offsets for UTF-8 input
+    private int offset(int index) {
+        return input instanceof Utf8CharSequence ? ((Utf8CharSequence) input).toByteOffset(index) : index;
+    }
+
+    public Spliterator<MatchSnapshot> trySplit() {
+        if (!splittable || matcher != null)
+            return null;
+        int end = end();
+        if (end - from < 2 * MIN_SPLIT)
+            return null;
+        int mid = from + (end - from) / 2;
+        int cut = -1;
+        for (int i = mid; i < end && cut < 0; i++) {
+            if (isLineTerminator(input.charAt(i)))
+                cut = i + 1;
+        }
+        for (int i = mid - 1; i >= from + MIN_SPLIT && cut < 0; i--) {
+            if (isLineTerminator(input.charAt(i)))
+                cut = i + 1;
+        }
+        if (cut <= from || cut >= end)
+            return null;
+        MatchSpliterator prefix = new MatchSpliterator(pattern, input, true, from, cut);
+        from = cut;
+        return prefix;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Chars left to go over, which is what the work left is proportional to.
+     */
+    public long estimateSize() {
+        return done ? 0 : Math.max(0, end() - from);
+    }
+
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -6,8 +6,14 @@
 package com.humio.jitrex;
 
 import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.SubSequence;
+import com.humio.jitrex.util.Utf8CharSequence;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Matcher {
     private final Pattern pattern;
@@ -16,6 +22,13 @@ public class Matcher {
     private final Map<String, Pattern.VarEntry> varMap;
     private final Map<String, Pattern.VarEntry> exts;
     private final Pattern.VarEntry[] indexed;
+    // set when the input is UTF-8 bytes; offsets are reported in bytes then
+    private Utf8CharSequence utf8;
+    // made by reset(byte[], int, int) and reused by it, unless a MatchSnapshot refers to it
+    private Utf8CharSequence ownUtf8;
+    private boolean ownUtf8Shared;
+    // made by groupView() as needed, one per group
+    private SubSequence[] views;
 
     int lastEnd = 0;
 
@@ -66,7 +79,24 @@ public class Matcher {
         reset(seq, EMPTY_MAP);
     }
 
+    /**
+     * Matches against UTF-8 bytes from now on. The bytes are not copied, and the
+     * buffers used to decode non-ASCII input are kept across calls, unless
+     * toMatchResult() has handed out a snapshot that reads them.
+     * start() and end() are indexes in <i>utf8</i> in this mode.
+     */
+    public void reset(byte[] utf8, int off, int len) {
+        if (ownUtf8 == null || ownUtf8Shared) {
+            ownUtf8 = new Utf8CharSequence(utf8, off, len);
+            ownUtf8Shared = false;
+        } else {
+            ownUtf8.reset(utf8, off, len);
+        }
+        reset(ownUtf8, EMPTY_MAP);
+    }
+
     public void reset(CharSequence seq, Map<String,String> vars) {
+        this.utf8 = seq instanceof Utf8CharSequence ? (Utf8CharSequence) seq : null;
         this.input = seq;
         this.lastEnd = 0;
         for (String key : vars.keySet()
@@ -134,14 +164,59 @@ public class Matcher {
         if (matches) {
             lastEnd = last;
         }
-        int limit = input.length();
-        if ((start < 0) || (start > limit))
-            throw new IndexOutOfBoundsException("Illegal start index");
+        if (utf8 != null) {
+            start = utf8.toCharIndex(start);
+        } else {
+            int limit = input.length();
+            if ((start < 0) || (start > limit))
+                throw new IndexOutOfBoundsException("Illegal start index");
+        }
         reset();
         return aftermatch( re.search(start) );
     }
 
+    /**
+     * Like find(int), but the input still starts at 0 for anchors and
+     * boundaries; only the search starts at <i>index</i>, a char index.
+     */
+    boolean findFrom(int index) {
+        reset();
+        re.setSearchStart(index);
+        return find();
+    }
+
+    /**
+     * Number of non-overlapping matches from the current position on, as
+     * calling find() until it fails would find. Compile with Pattern.NO_GROUPS
+     * to not pay for capturing groups that are not used.
+     */
+    public int count() {
+        int n = 0;
+        while (find())
+            n++;
+        return n;
+    }
+
+    /**
+     * The matches from the current position on, as find() finds them, each
+     * copied out with toMatchResult(). The stream goes over this matcher, so
+     * it should not be used for anything else until the stream is done.
+     */
+    public Stream<MatchSnapshot> results() {
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<MatchSnapshot>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            public boolean tryAdvance(Consumer<? super MatchSnapshot> action) {
+                if (!find())
+                    return false;
+                action.accept(toMatchResult());
+                return true;
+            }
+        }, false);
+    }
+
     public boolean lookingAt() {
+        // like matches(), always from the start, whatever was tried before
+        re.setSearchStart(0);
         return aftermatch( re.match() );
     }
 
@@ -149,14 +224,18 @@ public class Matcher {
         if (matches == false) {
             throw new IllegalStateException();
         }
-        return first;
+        return offset(first);
     }
 
     public int end() {
         if (matches == false) {
             throw new IllegalStateException();
         }
-        return last;
+        return offset(last);
+    }
+
+    private int offset(int index) {
+        return utf8 == null || index == -1 ? index : utf8.toByteOffset(index);
     }
 
     public int groupCount() {
@@ -172,30 +251,38 @@ public class Matcher {
             throw new IllegalStateException();
         if (groupNo > groupCount())
             throw new IndexOutOfBoundsException();
-        int start = start(groupNo);
+        int start = charStart(groupNo);
         if (start == -1)
             return null;
-        int end = end(groupNo);
+        int end = charEnd(groupNo);
         return input.subSequence(start, end).toString();
     }
 
     public int start(int groupNo) {
+        return offset(charStart(groupNo));
+    }
+
+    public int end(int groupNo) {
+        return offset(charEnd(groupNo));
+    }
+
+    private int charStart(int groupNo) {
         if (matches == false) {
             throw new IllegalStateException();
         }
         if (groupNo == 0) {
-            return start();
+            return first;
         } else {
             return re.getIndex(indexed[groupNo - 1].start);
         }
     }
 
-    public int end(int groupNo) {
+    private int charEnd(int groupNo) {
         if (matches == false) {
             throw new IllegalStateException();
         }
         if (groupNo == 0) {
-            return end();
+            return last;
         } else {
             return re.getIndex(indexed[groupNo - 1].end);
         }
@@ -212,6 +299,100 @@ public class Matcher {
         return input.subSequence(start, end).toString();
     }
 
+    /**
+     * Copies the positions of the current match and its groups, so that they
+     * can be kept past the next find().
+     */
+    public MatchSnapshot toMatchResult() {
+        return toMatchResult(new MatchSnapshot());
+    }
+
+    /**
+     * Copies the positions of the current match into <i>reuse</i>, which
+     * allocates nothing once it has held a match with as many groups.
+     */
+    public MatchSnapshot toMatchResult(MatchSnapshot reuse) {
+        if (!matches)
+            throw new IllegalStateException();
+        if (input == ownUtf8)
+            ownUtf8Shared = true;
+        reuse.set(input, groupCount());
+        positions(reuse.positions(), 0);
+        return reuse;
+    }
+
+    /**
+     * Writes start and end of the match and of each group to <i>dst</i> at <i>off</i>.
+     */
+    void positions(int[] dst, int off) {
+        if (!matches)
+            throw new IllegalStateException();
+        for (int i = 0; i <= groupCount(); i++) {
+            dst[off++] = offset(charStart(i));
+            dst[off++] = offset(charEnd(i));
+        }
+    }
+
+    /**
+     * Appends group <i>groupNo</i> to <i>sb</i> without making a String of it
+     * first. Returns false, and appends nothing, if the group is not part of the match.
+     */
+    public boolean groupInto(int groupNo, StringBuilder sb) {
+        if (!matches)
+            throw new IllegalStateException();
+        if (groupNo > groupCount())
+            throw new IndexOutOfBoundsException();
+        int start = charStart(groupNo);
+        if (start == -1)
+            return false;
+        sb.append(input, start, charEnd(groupNo));
+        return true;
+    }
+
+    public boolean groupInto(String name, StringBuilder sb) {
+        int groupNo = groupNumber(name);
+        return groupNo != -1 && groupInto(groupNo, sb);
+    }
+
+    /**
+     * Group <i>groupNo</i> as a view of the input rather than a copy of it, or null
+     * if the group is not part of the match. The view is the same object every time
+     * for a group, and is moved to the group's current position by each call, so
+     * it should be used before the next one or be copied.
+     */
+    public SubSequence groupView(int groupNo) {
+        if (!matches)
+            throw new IllegalStateException();
+        if (groupNo > groupCount())
+            throw new IndexOutOfBoundsException();
+        int start = charStart(groupNo);
+        if (start == -1)
+            return null;
+        int end = charEnd(groupNo);
+        if (views == null)
+            views = new SubSequence[groupCount() + 1];
+        SubSequence view = views[groupNo];
+        if (view == null)
+            views[groupNo] = view = new SubSequence(input, start, end);
+        else
+            view.reset(input, start, end);
+        return view;
+    }
+
+    public SubSequence groupView(String name) {
+        int groupNo = groupNumber(name);
+        return groupNo == -1 ? null : groupView(groupNo);
+    }
+
+    private int groupNumber(String name) {
+        Pattern.VarEntry ent = varMap.get(name);
+        if (ent != null)
+            for (int i = 0; i < indexed.length; i++)
+                if (indexed[i] == ent)
+                    return i + 1;
+        return -1;
+    }
+
     private void assign(String variableName, String value) {
         Pattern.VarEntry idx = exts.get(variableName);
         if (idx != null) {
@@ -226,7 +407,7 @@ public class Matcher {
 
     void appendReplacement(StringBuilder sb, List<Appender> appender) {
 
-        sb.append( input, lastEnd, start());
+        sb.append( input, lastEnd, charStart(0));
 
         for (Appender a : appender) {
             a.append(sb);
@@ -247,7 +428,7 @@ public class Matcher {
 
     void appendReplacement(StringBuffer sb, List<Appender> appender) {
 
-        sb.append( input, lastEnd, start());
+        sb.append( input, lastEnd, charStart(0));
 
         for (Appender a : appender) {
             a.append(sb);
@@ -352,6 +533,33 @@ public class Matcher {
         return re.getBackTrackLimit();
     }
 
+    /**
+     * Makes matching throw a RegexRuntimeLimitException once System.nanoTime()
+     * has passed <i>deadlineNanos</i>, Long.MAX_VALUE for no deadline. Unlike the
+     * backtrack limit this bounds the time taken whatever the pattern; it is
+     * checked every few thousand back track operations.
+     */
+    public void setDeadline(long deadlineNanos) {
+        re.setDeadline(deadlineNanos);
+    }
+
+    public long getDeadline() {
+        return re.getDeadline();
+    }
+
+    /**
+     * Makes matching throw a RegexRuntimeLimitException once <i>flag</i> is set,
+     * for instance by another thread when the work is no longer wanted. One flag
+     * can be shared by many matchers; null for none.
+     */
+    public void setCancelFlag(AtomicBoolean flag) {
+        re.setCancelFlag(flag);
+    }
+
+    public AtomicBoolean getCancelFlag() {
+        return re.getCancelFlag();
+    }
+
     /** return number of backtrack operations used (after match/find) */
     public int getBacktrackCount() {
         return re.getBackTrackCount();
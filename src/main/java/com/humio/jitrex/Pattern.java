@@ -6,14 +6,29 @@
 package com.humio.jitrex;
 
 import com.humio.jitrex.compiler.RCompiler;
+import com.humio.jitrex.dfa.DFARegex;
+import com.humio.jitrex.dfa.LiteralSetRegex;
+import com.humio.jitrex.dfa.NFA;
+import com.humio.jitrex.interp.RInterpMachine;
 import com.humio.jitrex.jvm.RJavaClassMachine;
+import com.humio.jitrex.jvm.StringSpecializedRegex;
 import com.humio.jitrex.parser.RParser;
 import com.humio.jitrex.tree.RNode;
 import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.Utf8CharSequence;
 
 import java.io.ObjectStreamException;
+import java.io.Reader;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public final class Pattern implements Serializable {
 
@@ -21,12 +36,43 @@ public final class Pattern implements Serializable {
     public static final int MULTILINE = Regex.MULTILINE;
     public static final int DOTALL = Regex.DOTALL;
     public static final int LAZY = Regex.LAZY;
+    /**
+     * Does not capture groups, for patterns that are only used to test for or
+     * count matches. Without groups to fill in, a match found by the DFA needs no
+     * backtracking at all, and generated code does not save group positions as it
+     * goes. Groups referred to by back references are still captured.
+     */
+    public static final int NO_GROUPS = Regex.NO_GROUPS;
+    /**
+     * Remembers at which positions each alternative has been tried, and does
+     * not try it again there, which bounds backtracking by the length of the
+     * input times the size of the pattern: patterns like (a+)+b no longer take
+     * exponential time to fail. Costs a bit per alternative and char of input
+     * while matching. Not done for patterns with back references, or with
+     * alternatives or loops inside counted repetitions and lookaheads, nor for
+     * inputs of many megabytes.
+     */
+    public static final int MEMOIZE = Regex.MEMOIZE;
+
+    // HotSpot's HugeMethodLimit; larger methods are not JIT compiled
+    public static final int HUGE_METHOD_SIZE = 8000;
+    // methods of patterns too large for one; jumps in the generated code have 16-bit offsets
+    private static final int SPLIT_METHOD_SIZE = 30 * 1024;
 
     private final Regex regex;
     private final String pattern;
     private final Map<String, VarEntry> varMap;
     private final Map<String, VarEntry> exts;
     private final int flags;
+    // decides when to generate code; null if it was generated right away or not needed
+    private final TieredRegex.Tier tier;
+    // bytes of generated class code, see codeSize()
+    private final int codeSize;
+    private final int largestMethodSize;
+    // generated code that supports refilling, for StreamMatcher; made when first needed
+    private volatile Regex streamRegex;
+    // whether matches can span lines, for matchStream() and FileSearch; found out when first needed
+    private volatile Boolean multiLineMatches;
 
     public static String quote(String s) {
         return "\\Q" + s + "\\E";
@@ -138,6 +184,11 @@ public final class Pattern implements Serializable {
     }
 
 
+    private static volatile int compileMatches = 10000;
+    private static volatile long compileChars = 1 << 20;
+    private static volatile ClassCache classCache;
+    private static volatile int maxMethodSize = HUGE_METHOD_SIZE;
+
     public static Pattern compile(String pattern) throws IllegalArgumentException {
         return compile(pattern, 0);
     }
@@ -150,25 +201,63 @@ public final class Pattern implements Serializable {
         }
         */
 
-        RNode regex = (new RParser(0, flags)).parse(pattern, false);
-        RJavaClassMachine machine = new RJavaClassMachine();
+        try {
+            return compileTree(pattern, flags);
+        } catch (StackOverflowError e) {
+            // the parser and compiler recurse on the tree; without generating code
+            // right away this is what limits how large an expression can be
+            throw new IllegalRegexException(IllegalRegexException.BadRegexCause.REGEX_TOO_LONG,
+                    "given regular expression is too long", e);
+        }
+    }
 
-        // machine.setSaveBytecode(true);
-        machine.setNoRefiller(true);
-        RCompiler comp = new RCompiler(machine);
-        comp.compile(regex, pattern);
-        Regex re = machine.makeRegex();
+    private static Pattern compileTree(String pattern, int flags) {
+        RNode regex = (new RParser(0, flags)).parse(pattern, false);
+        if ((flags & Regex._NO_DFA) == 0) {
+            // alternations of literals need no generated code at all
+            Regex literals = LiteralSetRegex.create(regex);
+            if (literals != null)
+                return new Pattern(literals, pattern, flags, new HashMap<>(), new HashMap<>(), null, 0, 0);
+        }
 
-        int numCaptures = machine.getNVars();
+        Supplier<Regex> generic = () -> compileMachine(new RParser(0, flags).parse(pattern, false), pattern, false, false).makeRegex();
+        Regex re;
+        TieredRegex.Tier tier = null;
+        int codeSize;
+        int largestMethodSize;
+        ClassCache cache = classCache;
+        TieredRegex.Compiled cached = cache == null ? null : cache.load(pattern, flags, maxMethodSize);
+        if (cached != null) {
+            re = new StringSpecializedRegex(cached.template, generic);
+            codeSize = cached.codeSize;
+            largestMethodSize = cached.largestMethodSize;
+        } else if ((flags & Regex._NO_INTERPRETER) != 0 || compileMatches <= 0 || compileChars <= 0) {
+            RJavaClassMachine machine = generate(regex, pattern, flags);
+            re = new StringSpecializedRegex(machine.makeRegex(), generic);
+            codeSize = machine.getClassSize();
+            largestMethodSize = machine.getLargestMethodSize();
+        } else {
+            RInterpMachine machine = new RInterpMachine();
+            new RCompiler(machine).compile(regex, pattern);
+            tier = new TieredRegex.Tier(() -> {
+                RJavaClassMachine compiled = generate(new RParser(0, flags).parse(pattern, false), pattern, flags);
+                return new TieredRegex.Compiled(new StringSpecializedRegex(compiled.makeRegex(), generic),
+                        compiled.getClassSize(), compiled.getLargestMethodSize());
+            }, compileMatches, compileChars, machine.getProgramSize());
+            re = new TieredRegex(machine.makeRegex(), tier);
+            codeSize = 0;
+            largestMethodSize = 0;
+        }
 
-        Map<String,VarEntry> varMap = new HashMap<>(numCaptures);
-        Map<String,VarEntry> extMap = new HashMap<>(numCaptures);
-        Enumeration<String> vars = machine.variables();
+        // handles are the same whichever machine ends up running
+        Map<String,VarEntry> varMap = new HashMap<>();
+        Map<String,VarEntry> extMap = new HashMap<>();
+        Enumeration<String> vars = re.variables();
         while (vars.hasMoreElements()) {
             String var = vars.nextElement();
-            int start = machine.getVariableHandle(var, true);
-            int end   = machine.getVariableHandle(var, false);
-            int ext   = machine.getExtVariableHandle(var);
+            int start = re.getVariableHandle(var, true);
+            int end   = re.getVariableHandle(var, false);
+            int ext   = re.getExtVariableHandle(var);
 
             if (ext == -1) {
                 varMap.put(var, new VarEntry(var, start, end, ext));
@@ -177,7 +266,124 @@ public final class Pattern implements Serializable {
             }
         }
 
-        return new Pattern(re, pattern, flags, varMap, extMap);
+        if ((flags & Regex._NO_DFA) == 0)
+            re = DFARegex.wrap(re, regex, flags);
+
+        return new Pattern(re, pattern, flags, varMap, extMap, tier, codeSize, largestMethodSize);
+    }
+
+    /**
+     * Sets where generated code is saved, and looked for before generating it;
+     * null for nowhere. A pattern whose code is found there starts out compiled,
+     * without going through the compiler or the interpreter. Affects patterns
+     * compiled after the call.
+     */
+    public static void setClassCache(ClassCache cache) {
+        classCache = cache;
+    }
+
+    /**
+     * Compiles on <i>executor</i>. The future completes as soon as the pattern
+     * can be matched with, which is after it has been parsed; until its code has
+     * been generated, which is started on <i>executor</i> right away rather than
+     * when the compile threshold is reached, it runs in the interpreter.
+     * Matchers switch to the generated code on their next reset.
+     */
+    public static CompletableFuture<Pattern> compileAsync(String pattern, int flags, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            Pattern p = compile(pattern, flags);
+            if (p.tier != null)
+                p.tier.compileAsync(executor);
+            return p;
+        }, executor);
+    }
+
+    /**
+     * Sets how much work a pattern does in the interpreter before code is
+     * generated for it: <i>matches</i> calls to find(), matches() and the like,
+     * or <i>chars</i> chars of input gone over by them, counted over all its
+     * matchers. Whichever comes first. 0 generates code when the pattern is
+     * compiled, as does the flag Regex._NO_INTERPRETER for a single pattern.
+     * The code is generated by the matching thread that reaches the threshold,
+     * which waits for it. Affects patterns compiled after the call.
+     */
+    public static void setCompileThreshold(int matches, long chars) {
+        if (matches < 0 || chars < 0)
+            throw new IllegalArgumentException("threshold " + matches + "/" + chars);
+        compileMatches = matches;
+        compileChars = chars;
+    }
+
+    /**
+     * Sets how many bytes of bytecode generated methods may have before the
+     * matching code is split over several, which is somewhat slower than a
+     * single method but much faster than one that is too large to be JIT
+     * compiled. The default is HotSpot's limit for that, HUGE_METHOD_SIZE; 0 only
+     * splits code that does not fit in a single method at all. Affects patterns
+     * compiled after the call.
+     */
+    public static void setMaxMethodSize(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("method size " + bytes);
+        maxMethodSize = bytes;
+    }
+
+    /**
+     * Generates the matching code for String input, and saves it in the class cache.
+     */
+    private static RJavaClassMachine generate(RNode regex, String pattern, int flags) {
+        int limit = maxMethodSize;
+        RJavaClassMachine machine = compileMachine(regex, pattern, true, false, limit);
+        ClassCache cache = classCache;
+        if (cache != null)
+            cache.store(pattern, flags, limit, machine);
+        return machine;
+    }
+
+    /**
+     * Generates the matching code; with stringInput it only works on String input,
+     * and only code generated with refill can be given a RegexRefiller.
+     */
+    private static RJavaClassMachine compileMachine(RNode regex, String pattern, boolean stringInput, boolean refill) {
+        return compileMachine(regex, pattern, stringInput, refill, maxMethodSize);
+    }
+
+    /**
+     * The same, splitting the code if it has methods larger than <i>limit</i>.
+     */
+    private static RJavaClassMachine compileMachine(RNode regex, String pattern, boolean stringInput, boolean refill,
+                                                    int limit) {
+        RJavaClassMachine machine;
+        try {
+            machine = newMachine(regex, pattern, stringInput, refill, 0);
+            if (limit == 0 || machine.getLargestMethodSize() <= limit) {
+                machine.loadClass();
+                return machine;
+            }
+        } catch (IllegalRegexException e) {
+            if (e.getReason() != IllegalRegexException.BadRegexCause.REGEX_TOO_LONG)
+                throw e;
+            // too much code for a single method
+        }
+        machine = newMachine(regex, pattern, stringInput, refill,
+                limit == 0 ? SPLIT_METHOD_SIZE : Math.min(limit, SPLIT_METHOD_SIZE));
+        machine.loadClass();
+        return machine;
+    }
+
+    private static RJavaClassMachine newMachine(RNode regex, String pattern, boolean stringInput, boolean refill,
+                                                int maxMethodSize) {
+        RJavaClassMachine machine = new RJavaClassMachine();
+
+        // machine.setSaveBytecode(true);
+        machine.setNoRefiller(!refill);
+        machine.setStringInput(stringInput);
+        machine.setMaxMethodSize(maxMethodSize);
+        // defined once it is known to be the one to use
+        machine.setLoadClass(false);
+        RCompiler comp = new RCompiler(machine);
+        comp.compile(regex, pattern);
+        return machine;
     }
 
 
@@ -193,8 +399,12 @@ public final class Pattern implements Serializable {
         }
 */
 
-    private Pattern(Regex re, String pattern, int flags, Map<String,VarEntry> vars, Map<String,VarEntry> exts) {
+    private Pattern(Regex re, String pattern, int flags, Map<String,VarEntry> vars, Map<String,VarEntry> exts,
+                    TieredRegex.Tier tier, int codeSize, int largestMethodSize) {
         this.regex = re;
+        this.tier = tier;
+        this.codeSize = codeSize;
+        this.largestMethodSize = largestMethodSize;
         this.pattern = pattern;
         this.varMap = vars;
         this.exts = exts;
@@ -208,10 +418,144 @@ public final class Pattern implements Serializable {
     public Set<String> groups() { return varMap.keySet(); }
     public Set<String> variables() { return exts.keySet(); }
 
+    /**
+     * Size in bytes of the class that was generated for this pattern, which is
+     * about what it takes up in metaspace until the pattern is garbage collected.
+     * While the pattern is still interpreted, the size of its interpreter
+     * instructions, so this can grow as the pattern is used. 0 if it needs
+     * neither. Classes generated for input other than String or for a
+     * StreamMatcher are not included.
+     */
+    public int codeSize() {
+        return tier == null ? codeSize : tier.codeSize();
+    }
+
+    /**
+     * Bytes of bytecode in the largest method generated for this pattern, 0 while
+     * it is interpreted. Methods larger than HUGE_METHOD_SIZE are not JIT compiled
+     * by HotSpot with its default settings; see setMaxMethodSize().
+     */
+    public int largestMethodSize() {
+        return tier == null ? largestMethodSize : tier.largestMethodSize();
+    }
+
+    /**
+     * Whether code has been generated for this pattern, or it is run by the interpreter.
+     */
+    public boolean isCompiled() {
+        return tier == null ? codeSize > 0 : tier.isCompiled();
+    }
+
     public Matcher matcher(CharSequence input) {
         return new Matcher(this, input, regex.cloneRegex(), varMap, exts);
     }
 
+    /**
+     * Matcher for UTF-8 encoded input. The bytes are read in place rather than
+     * decoded into a String first, and start() and end() are indexes in
+     * <i>utf8</i>. Use Matcher.reset(byte[], int, int) to go on to the next input.
+     */
+    public Matcher matcher(byte[] utf8, int off, int len) {
+        return matcher(new Utf8CharSequence(utf8, off, len));
+    }
+
+    /**
+     * Whether the pattern matches each of <i>inputs</i> from <i>from</i> up to
+     * <i>to</i> as a whole, as Matcher.matches() does: bit <i>i</i> of
+     * <i>resultBits</i>, counting from the lowest bit of its first word, is set
+     * for input <i>from</i> + <i>i</i> if it matches and cleared if not. Words
+     * past the last input are not touched; the bits for positions after it in
+     * the last word are cleared. Returns the number of inputs that match.
+     * <p>
+     * All inputs are matched with one regex, without a Matcher per input.
+     */
+    public int matchBatch(CharSequence[] inputs, int from, int to, long[] resultBits) {
+        return batch(inputs, from, to, resultBits, true);
+    }
+
+    /**
+     * Like matchBatch(), but whether the pattern is found anywhere in each
+     * input, as Matcher.find() does.
+     */
+    public int findBatch(CharSequence[] inputs, int from, int to, long[] resultBits) {
+        return batch(inputs, from, to, resultBits, false);
+    }
+
+    private int batch(CharSequence[] inputs, int from, int to, long[] resultBits, boolean whole) {
+        if (from < 0 || from > to || to > inputs.length)
+            throw new IndexOutOfBoundsException("from=" + from + " to=" + to + " length=" + inputs.length);
+        if (resultBits.length < (to - from + 63) >>> 6)
+            throw new IllegalArgumentException("need " + ((to - from + 63) >>> 6) + " words for " + (to - from) + " bits");
+        Regex re = regex.cloneRegex();
+        int count = 0;
+        for (int i = from; i < to; i += 64) {
+            int n = Math.min(64, to - i);
+            long word = 0;
+            for (int j = 0; j < n; j++) {
+                CharSequence input = inputs[i + j];
+                re.init(input, 0, input.length());
+                if (whole ? re.matchWhole() : re.search())
+                    word |= 1L << j;
+            }
+            resultBits[(i - from) >>> 6] = word;
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * The matches in <i>input</i>, as Matcher.results() would give them. The
+     * stream can be made parallel: if the pattern cannot match a line terminator,
+     * the input is split at line terminators and the parts are searched with a
+     * Matcher each, and the matches still come in order. Otherwise it is
+     * searched from start to end, as by a sequential stream.
+     */
+    public Stream<MatchSnapshot> matchStream(CharSequence input) {
+        return StreamSupport.stream(new MatchSpliterator(this, input, !canMatchLineTerminator()), false);
+    }
+
+    /**
+     * Whether a match can contain a line terminator, or can depend on text
+     * beyond one; if not, input can be searched a line at a time.
+     */
+    boolean canMatchLineTerminator() {
+        Boolean multiLine = multiLineMatches;
+        if (multiLine == null) {
+            RNode tree = (new RParser(0, flags)).parse(pattern, false);
+            multiLineMatches = multiLine = NFA.canMatchLineTerminator(tree);
+        }
+        return multiLine;
+    }
+
+    /**
+     * Matcher that reads its input from <i>reader</i> as it goes, keeping only
+     * the part of it that the match in progress can still refer to.
+     */
+    public StreamMatcher matcher(Reader reader) {
+        return new StreamMatcher(reader, streamRegex());
+    }
+
+    /**
+     * Matcher for a UTF-8 encoded channel; offsets are in chars, not bytes.
+     */
+    public StreamMatcher matcher(ReadableByteChannel channel) {
+        return matcher(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+    }
+
+    private Regex streamRegex() {
+        Regex re = streamRegex;
+        if (re == null) {
+            synchronized (this) {
+                re = streamRegex;
+                if (re == null) {
+                    RNode tree = (new RParser(0, flags)).parse(pattern, false);
+                    streamRegex = re = compileMachine(tree, pattern, false, true).makeRegex();
+                }
+            }
+        }
+        return re.cloneRegex();
+    }
+
     public static boolean matches(String regex, CharSequence input) {
         return compile(regex).matcher(input).matches();
     }
@@ -0,0 +1,169 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread safe cache of compiled patterns, keyed on pattern and flags.
+ * <p>
+ * Compiling generates and loads a class, which is slow and takes up metaspace
+ * until the Pattern is garbage collected, so applications that see the same
+ * regexes over and over should get them from a shared cache. The cache is bounded
+ * by the total weight of its patterns, which is the size of their generated code
+ * (see Pattern.codeSize()) plus a fixed overhead per entry. As patterns start
+ * out interpreted, their weight is brought up to date whenever they are got
+ * from the cache. When the bound is exceeded the least recently used patterns
+ * are evicted.
+ * <p>
+ * A pattern that is requested by several threads at once is only compiled once.
+ * Patterns that fail to compile are not cached.
+ */
+public final class PatternCache {
+
+    /**
+     * Weight added to every entry, for the Pattern and the objects around it.
+     */
+    static final int ENTRY_OVERHEAD = 512;
+
+    private final long maxWeight;
+    // in access order, least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PatternCache(long maxWeight) {
+        if (maxWeight <= 0)
+            throw new IllegalArgumentException("max weight " + maxWeight);
+        this.maxWeight = maxWeight;
+    }
+
+    private static final class Key {
+        final String pattern;
+        final int flags;
+
+        Key(String pattern, int flags) {
+            this.pattern = pattern;
+            this.flags = flags;
+        }
+
+        public int hashCode() {
+            return pattern.hashCode() * 31 + flags;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return flags == other.flags && pattern.equals(other.pattern);
+        }
+    }
+
+    private static final class Entry {
+        private Pattern pattern;
+        // 0 until compiled; updated on get() when code is generated for the pattern
+        long weight;
+
+        synchronized Pattern get(Key key) {
+            if (pattern == null)
+                pattern = Pattern.compile(key.pattern, key.flags);
+            return pattern;
+        }
+    }
+
+    public Pattern get(String pattern) {
+        return get(pattern, 0);
+    }
+
+    public Pattern get(String pattern, int flags) {
+        Key key = new Key(pattern, flags);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                entry = new Entry();
+                entries.put(key, entry);
+            } else {
+                hits++;
+            }
+        }
+        Pattern compiled;
+        try {
+            compiled = entry.get(key);
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                entries.remove(key, entry);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            // account for it once compiled, and again when its code was generated
+            // since the last time, unless it was evicted meanwhile
+            long w = compiled.codeSize() + ENTRY_OVERHEAD;
+            if (entry.weight != w && entries.get(key) == entry) {
+                weight += w - entry.weight;
+                entry.weight = w;
+                evict(entry);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Evicts least recently used entries until the weight is within bounds, but
+     * never <i>keep</i>, which was just added.
+     */
+    private void evict(Entry keep) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (e == keep)
+                continue;
+            it.remove();
+            weight -= e.weight;
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return "PatternCache[size=" + entries.size() + " weight=" + weight + "/" + maxWeight
+                + " hits=" + hits + " misses=" + misses + " evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,101 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import com.humio.jitrex.dfa.DFASet;
+import com.humio.jitrex.parser.RParser;
+import com.humio.jitrex.tree.RNode;
+import com.humio.jitrex.util.Regex;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * A list of patterns that are matched against an input together. matches() tells
+ * which of them find a match in the input, the same as calling
+ * matcher(input).find() on each of them.
+ * <p>
+ * Patterns that a DFA can handle are combined into one automaton, so the input is
+ * scanned once for all of them. Patterns with back references or lookaheads are
+ * matched one by one. Instances are thread safe.
+ */
+public final class PatternSet {
+
+    private final String[] patterns;
+    private final int flags;
+    private final DFASet dfa;
+    // set for the patterns that are in the DFA
+    private final boolean[] inDFA;
+    // the other patterns, compiled by the constructor
+    private final Pattern[] compiled;
+
+    private PatternSet(String[] patterns, int flags) {
+        this.patterns = patterns;
+        this.flags = flags;
+        this.compiled = new Pattern[patterns.length];
+        this.inDFA = new boolean[patterns.length];
+        RNode[] trees = new RNode[patterns.length];
+        for (int i = 0; i < patterns.length; i++)
+            trees[i] = (new RParser(0, flags)).parse(patterns[i], false);
+        this.dfa = (flags & Regex._NO_DFA) == 0 ? DFASet.build(trees, inDFA) : null;
+        for (int i = 0; i < patterns.length; i++) {
+            if (!inDFA[i])
+                compiled[i] = Pattern.compile(patterns[i], flags);
+        }
+    }
+
+    public static PatternSet compile(String... patterns) {
+        return compile(Arrays.asList(patterns), 0);
+    }
+
+    public static PatternSet compile(Collection<String> patterns, int flags) {
+        return new PatternSet(patterns.toArray(new String[0]), flags);
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    public String pattern(int index) {
+        return patterns[index];
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    /**
+     * Returns the indexes of the patterns that match somewhere in the input.
+     */
+    public BitSet matches(CharSequence input) {
+        BitSet found = new BitSet(patterns.length);
+        boolean complete = dfa == null || dfa.scan(input, found);
+        for (int i = 0; i < patterns.length; i++) {
+            if (found.get(i) || (inDFA[i] && complete))
+                continue;
+            Pattern p = inDFA[i] ? compiledPattern(i) : compiled[i];
+            if (p.matcher(input).find())
+                found.set(i);
+        }
+        return found;
+    }
+
+    /**
+     * Individually compiled pattern, only needed for the ones in the DFA if the
+     * DFA gives up on some input.
+     */
+    private synchronized Pattern compiledPattern(int index) {
+        Pattern p = compiled[index];
+        if (p == null)
+            compiled[index] = p = Pattern.compile(patterns[index], flags);
+        return p;
+    }
+
+    public String toString() {
+        return Arrays.toString(patterns);
+    }
+}
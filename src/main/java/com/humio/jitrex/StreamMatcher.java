@@ -0,0 +1,253 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.RegexRefiller;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Finds matches in text that is read from a Reader while matching, so input of
+ * any length can be searched in bounded memory.
+ * <p>
+ * The text is kept in a window that the generated code refills through
+ * RegexRefiller when it reaches the end of it. On every refill, text before the
+ * start of the match attempt in progress is dropped, since no fork record or
+ * group can refer to it any more. The window thus only grows beyond its initial
+ * size for a single match attempt that spans more text than that.
+ * <p>
+ * Offsets are char offsets from the start of the stream. Groups of a match can
+ * be read until the next call to find().
+ */
+public final class StreamMatcher {
+
+    private static final int INITIAL_CAPACITY = 8192;
+
+    private final Reader reader;
+    private final Regex re;
+    private final int[] groupStart;
+    private final int[] groupEnd;
+    private final Window window = new Window();
+    private final Refiller refiller = new Refiller();
+
+    // the regex works with int indexes, which are offset + stream offset
+    private long offset;
+    // stream offsets are renumbered once indexes pass this
+    private int rebaseThreshold = 1 << 30;
+
+    private boolean matches;
+    private int first = -1;
+    private int last;
+    private long lastEnd;
+
+    StreamMatcher(Reader reader, Regex re) {
+        this.reader = reader;
+        this.re = re;
+
+        List<int[]> groups = new ArrayList<>();
+        Enumeration<String> vars = re.variables();
+        while (vars.hasMoreElements()) {
+            String var = vars.nextElement();
+            if (re.getExtVariableHandle(var) == -1)
+                groups.add(new int[]{re.getVariableHandle(var, true), re.getVariableHandle(var, false)});
+        }
+        groups.sort((a, b) -> a[0] - b[0]);
+        groupStart = new int[groups.size()];
+        groupEnd = new int[groups.size()];
+        for (int i = 0; i < groupStart.length; i++) {
+            groupStart[i] = groups.get(i)[0];
+            groupEnd[i] = groups.get(i)[1];
+        }
+
+        re.init(window, 0, 0);
+        re.setRefiller(refiller);
+    }
+
+    /**
+     * The text seen so far, from window.base on.
+     */
+    /**
+     * The text from index 0 to length(), of which only the chars from base on
+     * are kept. Asking for a dropped char, also through subSequence() or
+     * toString(), throws IndexOutOfBoundsException.
+     */
+    private static final class Window implements CharSequence {
+        char[] buf = new char[INITIAL_CAPACITY];
+        int base;
+        int count;
+
+        public int length() {
+            return base + count;
+        }
+
+        public char charAt(int index) {
+            int i = index - base;
+            if (i < 0 || i >= count)
+                throw new IndexOutOfBoundsException(index + " not in kept text [" + base + ", " + length() + ")");
+            return buf[i];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            if (start < base || end > length() || start > end)
+                throw new IndexOutOfBoundsException("[" + start + ", " + end + ") not in kept text ["
+                        + base + ", " + length() + ")");
+            return new String(buf, start - base, end - start);
+        }
+
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+
+        /**
+         * Drops the text before index.
+         */
+        void discard(int index) {
+            int n = index - base;
+            if (n <= 0)
+                return;
+            System.arraycopy(buf, n, buf, 0, count - n);
+            count -= n;
+            base = index;
+        }
+    }
+
+    private final class Refiller extends RegexRefiller {
+        public int refill(Regex regex, int boundary) {
+            Window w = window;
+            // \b looks at the char before the attempt
+            w.discard(Math.min(regex.getMatchStart() - 1, boundary));
+            if (w.count == w.buf.length) {
+                char[] bigger = new char[2 * w.buf.length];
+                System.arraycopy(w.buf, 0, bigger, 0, w.count);
+                w.buf = bigger;
+            }
+            int n;
+            try {
+                do {
+                    n = reader.read(w.buf, w.count, w.buf.length - w.count);
+                } while (n == 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (n < 0) {
+                regex.setRefiller(null);
+            } else {
+                w.count += n;
+            }
+            rebase();
+            return w.length();
+        }
+    }
+
+    /**
+     * Numbers the kept text from 0 again once the indexes get large, so that they
+     * do not overflow. The regex can only do this between match attempts, which is
+     * often enough: outside find(), or when it refills to start a new attempt.
+     */
+    private void rebase() {
+        int shift = window.base;
+        if (shift <= rebaseThreshold || !re.shiftIndexes(shift))
+            return;
+        offset += shift;
+        window.base = 0;
+        first -= shift;
+        last -= shift;
+    }
+
+    void setRebaseThreshold(int rebaseThreshold) {
+        this.rebaseThreshold = rebaseThreshold;
+    }
+
+    int windowCapacity() {
+        return window.buf.length;
+    }
+
+    CharSequence window() {
+        return window;
+    }
+
+    public boolean find() throws IOException {
+        rebase();
+        lastEnd = matches ? end() : 0;
+        boolean success = search();
+        // as in Matcher, skip an empty match at the end of the previous match
+        if (success && offset + last == lastEnd && lastEnd != 0)
+            success = search();
+        return success;
+    }
+
+    private boolean search() throws IOException {
+        boolean success;
+        try {
+            success = re.search();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        matches = success;
+        if (success) {
+            first = re.getMatchStart();
+            last = re.getMatchEnd();
+        }
+        return success;
+    }
+
+    public int groupCount() {
+        return groupStart.length;
+    }
+
+    public long start() {
+        return start(0);
+    }
+
+    public long end() {
+        return end(0);
+    }
+
+    public long start(int groupNo) {
+        int index = index(groupNo, true);
+        return index == -1 ? -1 : offset + index;
+    }
+
+    public long end(int groupNo) {
+        int index = index(groupNo, false);
+        return index == -1 ? -1 : offset + index;
+    }
+
+    public String group() {
+        return group(0);
+    }
+
+    public String group(int groupNo) {
+        int start = index(groupNo, true);
+        if (start == -1)
+            return null;
+        return window.subSequence(start, index(groupNo, false)).toString();
+    }
+
+    private int index(int groupNo, boolean start) {
+        if (!matches)
+            throw new IllegalStateException();
+        if (groupNo > groupCount())
+            throw new IndexOutOfBoundsException();
+        if (groupNo == 0)
+            return start ? first : last;
+        return re.getIndex(start ? groupStart[groupNo - 1] : groupEnd[groupNo - 1]);
+    }
+
+    public void setBacktrackLimit(int i) {
+        re.setBackTrackLimit(i);
+    }
+
+    public int getBacktrackLimit() {
+        return re.getBackTrackLimit();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex;
+
+import com.humio.jitrex.util.ProxyRegex;
+import com.humio.jitrex.util.Regex;
+
+import java.util.Enumeration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs an expression in the interpreter until it has done enough work to be
+ * worth compiling, and then switches to generated code.
+ * <p>
+ * The work is counted for all clones together, as matches (calls to search or
+ * match) and as chars that those calls went over. Once either count reaches its
+ * threshold, the thread that took it there compiles the expression; the other
+ * threads go on interpreting in the meantime. That compile happens inside the
+ * search or match call that crossed the threshold, so that one call stalls
+ * for as long as code generation takes; use Pattern.compileAsync() to keep it
+ * off the matching threads. A clone switches to the compiled version on its
+ * next init(), as that is where no match is in progress.
+ * <p>
+ * If the expression cannot be compiled, e.g. because the code would be too large
+ * for the JVM or is rejected by the verifier, it stays in the interpreter for
+ * good; the error is not passed on to the caller of the match.
+ */
+final class TieredRegex extends ProxyRegex {
+
+    private final Tier tier;
+    private boolean compiled;
+    // scanning of the input up to here has been counted
+    private int scanned;
+    private int end;
+
+    TieredRegex(Regex interpreted, Tier tier) {
+        super(interpreted);
+        this.tier = tier;
+    }
+
+    /**
+     * What the clones of a TieredRegex share.
+     */
+    static final class Tier {
+        private final Supplier<Compiled> compiler;
+        private final long maxMatches;
+        private final long maxChars;
+        private final int interpretedSize;
+        private final AtomicLong matches = new AtomicLong();
+        private final AtomicLong chars = new AtomicLong();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Compiled compiled;
+        private volatile boolean failed;
+
+        Tier(Supplier<Compiled> compiler, long maxMatches, long maxChars, int interpretedSize) {
+            this.compiler = compiler;
+            this.maxMatches = maxMatches;
+            this.maxChars = maxChars;
+            this.interpretedSize = interpretedSize;
+        }
+
+        void count(int scannedChars) {
+            if (failed)
+                return;
+            long m = matches.incrementAndGet();
+            long c = scannedChars == 0 ? chars.get() : chars.addAndGet(scannedChars);
+            if ((m >= maxMatches || c >= maxChars) && started.compareAndSet(false, true))
+                compile();
+        }
+
+        /**
+         * Generates the code on <i>executor</i> now, rather than when the thresholds are reached.
+         */
+        void compileAsync(Executor executor) {
+            if (!started.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this::compile);
+            } catch (RejectedExecutionException e) {
+                started.set(false);
+            }
+        }
+
+        private void compile() {
+            try {
+                compiled = compiler.get();
+            } catch (VirtualMachineError e) {
+                if (!(e instanceof StackOverflowError)) {
+                    // not the expression's fault; let a later match try again
+                    started.set(false);
+                    throw e;
+                }
+                failed = true;
+            } catch (Throwable e) {
+                // e.g. VerifyError or ClassFormatError from the generated code;
+                // stay in the interpreter
+                failed = true;
+            }
+        }
+
+        boolean isCompiled() {
+            return compiled != null;
+        }
+
+        /**
+         * Whether compiling was tried and failed, so the interpreter is used for good.
+         */
+        boolean hasFailed() {
+            return failed;
+        }
+
+        int codeSize() {
+            Compiled c = compiled;
+            return c == null ? interpretedSize : c.codeSize;
+        }
+
+        int largestMethodSize() {
+            Compiled c = compiled;
+            return c == null ? 0 : c.largestMethodSize;
+        }
+    }
+
+    static final class Compiled {
+        final Regex template;
+        final int codeSize;
+        final int largestMethodSize;
+
+        Compiled(Regex template, int codeSize, int largestMethodSize) {
+            this.template = template;
+            this.codeSize = codeSize;
+            this.largestMethodSize = largestMethodSize;
+        }
+    }
+
+    /**
+     * Makes a clone of the compiled version the current regex, taking along the
+     * settings that are made before init(). Both versions come from the same
+     * tree, so their variable handles are the same.
+     */
+    private void switchTo(Regex to) {
+        Regex from = regex;
+        to.setBackTrackLimit(from.getBackTrackLimit());
+        to.setDeadline(from.getDeadline());
+        to.setCancelFlag(from.getCancelFlag());
+        Enumeration<String> vars = from.variables();
+        while (vars.hasMoreElements()) {
+            String var = vars.nextElement();
+            int ext = from.getExtVariableHandle(var);
+            if (ext < 0)
+                continue;
+            int begin = from.getVariableHandle(var, true);
+            int end = from.getVariableHandle(var, false);
+            to.setExtVariableBuffer(ext, from.getCharBuffer(ext));
+            to.setIndex(begin, from.getIndex(begin));
+            to.setIndex(end, from.getIndex(end));
+        }
+        regex = to;
+        compiled = true;
+    }
+
+    private boolean count(boolean found) {
+        int to = found ? regex.getMatchEnd() : end;
+        tier.count(to > scanned ? to - scanned : 0);
+        if (to > scanned)
+            scanned = to;
+        return found;
+    }
+
+    public void init(CharSequence subject, int off, int len) {
+        if (!compiled) {
+            Compiled c = tier.compiled;
+            if (c != null)
+                switchTo(c.template.cloneRegex());
+        }
+        regex.init(subject, off, len);
+        scanned = off;
+        end = off + len;
+    }
+
+    public boolean search() {
+        boolean found = regex.search();
+        return compiled ? found : count(found);
+    }
+
+    public boolean search(int from) {
+        boolean found = regex.search(from);
+        if (compiled)
+            return found;
+        scanned = from;
+        return count(found);
+    }
+
+    public boolean searchAgain() {
+        boolean found = regex.searchAgain();
+        return compiled ? found : count(found);
+    }
+
+    public void setSearchStart(int index) {
+        regex.setSearchStart(index);
+        scanned = index;
+    }
+
+    public boolean match() {
+        boolean found = regex.match();
+        if (compiled)
+            return found;
+        // a failed match may have looked at any amount of input; count none
+        tier.count(found && regex.getMatchEnd() > scanned ? regex.getMatchEnd() - scanned : 0);
+        return found;
+    }
+
+    public boolean matchWhole() {
+        boolean found = regex.matchWhole();
+        return compiled ? found : count(found);
+    }
+}
@@ -7,6 +7,7 @@
 package com.humio.jitrex.compiler;
 
 import com.humio.jitrex.tree.*;
+import com.humio.jitrex.util.Regex;
 
 /**
  * This class compiles jitrex tree (RNode) into jitrex instructions. Regex
@@ -27,6 +28,13 @@ public class RCompiler extends RContext {
 
     boolean charStarHead = false;
 
+    // whether to put memo instructions where forks go on, see memoizable()
+    boolean memoize = false;
+
+    // possessive repeats being compiled; their fork records get cut, which
+    // multiforks do not allow, and forks in them do not go on to what follows
+    int possessiveDepth = 0;
+
     public RCompiler() {
         this(new RDebugMachine());
     }
@@ -35,6 +43,42 @@ public class RCompiler extends RContext {
         this.gen = gen;
     }
 
+    private void memo() {
+        if (memoize && possessiveDepth == 0)
+            gen.memo();
+    }
+
+    /**
+     * Whether the code for <i>node</i> can have memo instructions where every fork
+     * goes on. What follows them must only depend on where they are and the
+     * position, so there can be no back references, which depend on what the
+     * groups matched, and no forks while loop counters or lookahead conditions
+     * are in use.
+     */
+    static boolean memoizable(RNode node) {
+        for (; node != null; node = node.tail) {
+            if (node instanceof RSubstNode)
+                return false;
+            if (node instanceof RLookAheadNode) {
+                RNode body = ((RLookAheadNode) node).body;
+                if (body != null && body.hasForks())
+                    return false;
+            } else if (node instanceof RAltNode) {
+                RAltNode alt = (RAltNode) node;
+                if (!memoizable(alt.alt1) || !memoizable(alt.alt2))
+                    return false;
+            } else if (node instanceof RRepeatNode) {
+                RRepeatNode repeat = (RRepeatNode) node;
+                boolean counted = repeat.min > 1 || (repeat.max != repeat.min && repeat.max != Integer.MAX_VALUE);
+                if (counted && (repeat.body.hasForks() || !repeat.greedy))
+                    return false;
+                if (!memoizable(repeat.body))
+                    return false;
+            }
+        }
+        return true;
+    }
+
     private Object evalTail(RNode regex) {
         regex = regex.tail;
         if (regex != null)
@@ -178,6 +222,7 @@ public class RCompiler extends RContext {
         RLabel cont = gen.newLabel();
         gen.jump(cont);
         gen.mark(other);
+        memo();
         RNode alt2 = regexAlt.alt2;
         if (alt2 != null) {
             if (alt2.minLeft > regexAlt.minLeft && (gen.getExtensions() & RMachine.EXT_CONDJUMP) != 0)
@@ -191,6 +236,74 @@ public class RCompiler extends RContext {
     public Object evalRRepeat(RRepeatNode regexRepeat) {
         gen.setFlags(regexRepeat.flags());
         gen.tellPosition(regexRepeat.position);
+        if (regexRepeat.possessive) {
+            possessiveDepth++;
+            charStarHead = false;
+            evalPossessive(regexRepeat);
+            possessiveDepth--;
+        } else
+            evalRepeat(regexRepeat);
+        return evalTail(regexRepeat);
+    }
+
+    /**
+     * Like java.util.regex, each repetition is final once the body has matched:
+     * the fork records made meanwhile are cut, so on failure the body is not
+     * backtracked into. As a result the fork stack does not grow with the
+     * number of repetitions.
+     */
+    private void evalPossessive(RRepeatNode regexRepeat) {
+        RNode body = regexRepeat.body;
+        int min = regexRepeat.min;
+        int max = regexRepeat.max;
+        RVariable forks = gen.newTmpVar(0);
+        if (min > 0) {
+            RVariable count = null;
+            RLabel repeat = gen.newLabel();
+            if (min > 1)
+                count = gen.newTmpVar(min);
+            gen.mark(repeat);
+            gen.saveForks(forks);
+            body.eval(this);
+            gen.cut(forks);
+            if (count != null) {
+                gen.decjump(count, repeat);
+                gen.forget(count);
+            }
+        }
+        if (max != min) {
+            RVariable count = null;
+            if (max != Integer.MAX_VALUE)
+                count = gen.newTmpVar(max - min);
+            // as in java.util.regex, the repeat ends with an empty match, which
+            // otherwise would go on forever when it is unbounded
+            RVariable position = null;
+            if (count == null && RNode.minTotalLength(body) == 0)
+                position = gen.newTmpVar(0);
+            RLabel start = gen.newLabel();
+            RLabel other = gen.newLabel();
+            gen.mark(start);
+            gen.saveForks(forks);
+            if (position != null)
+                gen.savePosition(position);
+            gen.fork(other);
+            body.eval(this);
+            gen.cut(forks);
+            if (position != null) {
+                gen.jumpIfSamePosition(position, other);
+                gen.forget(position);
+            }
+            if (count != null) {
+                gen.decjump(count, start);
+                gen.forget(count);
+            } else
+                gen.jump(start);
+            gen.mark(other);
+        }
+        gen.forget(forks);
+    }
+
+    private void evalRepeat(RRepeatNode regexRepeat) {
         RNode body = regexRepeat.body;
         int min = regexRepeat.min;
         int max = regexRepeat.max;
@@ -219,7 +332,7 @@ public class RCompiler extends RContext {
                 int maxBodyLength = RNode.maxTotalLength(body);
                 if (minBodyLength != 0 && minBodyLength == maxBodyLength &&
                         (gen.getExtensions() & RMachine.EXT_MULTIFORK) != 0 &&
-                        !body.hasPicks() && !body.hasForks()) {
+                        !body.hasPicks() && !body.hasForks() && !memoize && possessiveDepth == 0) {
                     gen.mfStart(minBodyLength, (doingCharStarHead ? min : -1));
                     body.eval(this);
                     if (minCharLeftAfter > MIN_CHAR_LEFT && (gen.getExtensions() & RMachine.EXT_CONDJUMP) != 0)
@@ -249,6 +362,7 @@ public class RCompiler extends RContext {
                     } else
                         gen.jump(start);
                     gen.mark(other);
+                    memo();
                 }
             } else {
                 RLabel other = gen.newLabel();
@@ -258,6 +372,7 @@ public class RCompiler extends RContext {
                     count = gen.newTmpVar(max);
                 gen.jump(other);
                 gen.mark(start);
+                memo();
                 if (count != null)
                     gen.decfail(count);
                 body.eval(this);
@@ -267,7 +382,6 @@ public class RCompiler extends RContext {
                 gen.fork(start);
             }
         }
-        return evalTail(regexRepeat);
     }
 
     public Object evalRPick(RPickNode regexPick) {
@@ -292,18 +406,22 @@ public class RCompiler extends RContext {
     public void compile(RNode node, String name) {
         gen.tellName(name);
         charStarHead = false;
+        memoize = (node.flags() & Regex.MEMOIZE) != 0 && (gen.getExtensions() & RMachine.EXT_MEMO) != 0
+                && memoizable(node);
         RConstNode beginShiftTable = null;
         int hints = 0;
         if (node.isStartAnchored() && (gen.getExtensions() & RMachine.FLAG_MULTILINE) == 0)
             hints |= RMachine.HINT_START_ANCHORED;
         if (node.isEndAnchored())
             hints |= RMachine.HINT_END_ANCHORED;
-        if ((hints & RMachine.HINT_START_ANCHORED) == 0 && (gen.getExtensions() & RMachine.FLAG_MULTILINE) == 0) {
+        // the head is matched with a multifork, which is not used when memoizing
+        if ((hints & RMachine.HINT_START_ANCHORED) == 0 && (gen.getExtensions() & RMachine.FLAG_MULTILINE) == 0
+                && !memoize) {
             RNode p = node;
             while ((p instanceof RPickNode && !((RPickNode) p).referenced) ||
                     p instanceof RBoundaryNode)
                 p = p.tail;
-            if (p instanceof RRepeatNode) {
+            if (p instanceof RRepeatNode && !((RRepeatNode) p).possessive) {
                 RNode body = ((RRepeatNode) p).body;
                 if (body.tail == null &&
                         (body instanceof RCharClassNode ||
@@ -318,6 +436,9 @@ public class RCompiler extends RContext {
         }
         if ((gen.getExtensions() & RMachine.EXT_HINT) != 0)
             gen.hint(hints, node.minLeft, node.maxLeft);
+        RequiredLiteral literal = (node.flags() & Regex._NO_LITERAL_SKIP) != 0 ? null : RequiredLiteral.find(node);
+        if (literal != null)
+            gen.requiredLiteral(literal.literal, literal.maxOffset);
         gen.init();
         if (beginShiftTable != null && ((gen.getExtensions() & RMachine.EXT_SHIFTTBL) != 0))
             genShiftTable(beginShiftTable);
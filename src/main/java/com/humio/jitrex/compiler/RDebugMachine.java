@@ -18,7 +18,7 @@ public class RDebugMachine extends RMachine {
     int count = 1;
 
     public RDebugMachine() {
-        setExtensions(EXT_HINT | EXT_MULTIFORK | EXT_CONDJUMP | EXT_SHIFTTBL);
+        setExtensions(EXT_HINT | EXT_MULTIFORK | EXT_CONDJUMP | EXT_SHIFTTBL | EXT_MEMO | EXT_CUT);
     }
 
     private String str(boolean neg, RLabel l) {
@@ -152,6 +152,14 @@ public class RDebugMachine extends RMachine {
             out.println(maxLength);
     }
 
+    public void requiredLiteral(String literal, int maxOffset) {
+        out.print("\t.literal \"" + literal + "\" ");
+        if (maxOffset == Integer.MAX_VALUE)
+            out.println("*");
+        else
+            out.println(maxOffset);
+    }
+
     //----- EXT_MULTIFORK extension
 
     public void mfStart(int headDecrement, int minCount) {
@@ -198,5 +206,29 @@ public class RDebugMachine extends RMachine {
             out.println("\t    '" + chars[i] + "' -> " + shifts[i]);
     }
 
+    //----- EXT_MEMO extension
+
+    public void memo() {
+        out.println("\tmemo");
+    }
+
+    //----- EXT_CUT extension
+
+    public void saveForks(RVariable var) {
+        out.println("\tsaveForks " + var);
+    }
+
+    public void cut(RVariable var) {
+        out.println("\tcut " + var);
+    }
+
+    public void savePosition(RVariable var) {
+        out.println("\tsavePosition " + var);
+    }
+
+    public void jumpIfSamePosition(RVariable var, RLabel label) {
+        out.println("\tjumpIfSamePosition " + var + " -> " + label);
+    }
+
 }
 
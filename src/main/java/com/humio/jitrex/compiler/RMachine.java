@@ -59,6 +59,8 @@ public abstract class RMachine {
     //----- basic instructions
     public static final int EXT_CONDJUMP = 0x0008; // condJumps
     public static final int EXT_SHIFTTBL = 0x0010; // shiftTable
+    public static final int EXT_MEMO = 0x0020; // memo
+    public static final int EXT_CUT = 0x0040; // saveForks, cut, savePosition and jumpIfSamePosition
     private int extensions;
 
     public Regex makeRegex() {
@@ -194,6 +196,15 @@ public abstract class RMachine {
         // can ignore
     }
 
+    /**
+     * Tells about a string that every match contains. maxOffset is the maximum
+     * distance from the start of a match to the string, or Integer.MAX_VALUE if
+     * it is not bounded. Called before init().
+     */
+    public void requiredLiteral(String literal, int maxOffset) {
+        // can ignore
+    }
+
     //----- EXT_MULTIFORK extension
 
     public void mfStart(int headDecrement, int minCount) {
@@ -237,6 +248,57 @@ public abstract class RMachine {
         throw new IllegalArgumentException("SHIFTTBL extension is not implemented");
     }
 
+    //----- EXT_MEMO extension
+
+    /**
+     * Fail if this instruction has been executed at the current character
+     * position before, since the current search or match began; otherwise
+     * remember that it has been. Where what can follow depends only on the
+     * instruction and the position, getting there again means trying what
+     * has already failed. RCompiler puts it where every fork goes on, and
+     * only for trees where that holds, so that no fork is tried twice at the
+     * same position.
+     */
+    public void memo() {
+        throw new IllegalArgumentException("MEMO extension is not implemented");
+    }
+
+    //----- EXT_CUT extension
+
+    /**
+     * Store the current depth of backtracing stack into a given variable. Does
+     * not add an assignment-reversion record.
+     */
+    public void saveForks(RVariable var) {
+        throw new IllegalArgumentException("CUT extension is not implemented");
+    }
+
+    /**
+     * Remove the fork records added to backtracing stack since saveForks() was
+     * given the same variable, keeping assignment-reversion records, so that
+     * the ways of matching left open since then are not tried. The records
+     * since then must not include multiforks.
+     */
+    public void cut(RVariable var) {
+        throw new IllegalArgumentException("CUT extension is not implemented");
+    }
+
+    /**
+     * Store the current character position into a given variable. Does not add
+     * an assignment-reversion record.
+     */
+    public void savePosition(RVariable var) {
+        throw new IllegalArgumentException("CUT extension is not implemented");
+    }
+
+    /**
+     * Jump to the label if the current character position is the one that
+     * savePosition() stored in the variable.
+     */
+    public void jumpIfSamePosition(RVariable var, RLabel label) {
+        throw new IllegalArgumentException("CUT extension is not implemented");
+    }
+
     public void setFlags(int flags) {
         extensions = (extensions & 0xffff) | regexFlagToExtension(flags);
     }
@@ -0,0 +1,190 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.dfa;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton for a list of literals: a trie of all literals plus
+ * failure links, so that all occurrences of all literals are found in one pass
+ * over the input, no matter how many literals there are.
+ * <p>
+ * Nodes are numbered from 0 (the root) and stored in parallel arrays. Children
+ * are kept in sorted arrays per node, with a direct table for ASCII children of
+ * the root, where most of the time is spent.
+ * <p>
+ * The automaton is immutable once built and can be shared between threads.
+ */
+final class AhoCorasick {
+
+    static final int ROOT = 0;
+
+    private static final int ASCII = 128;
+
+    final boolean ignoreCase;
+    final int minLength;
+
+    // length of the path from the root
+    final int[] depth;
+    // node for the longest proper suffix that is also in the trie
+    final int[] fail;
+    // lowest index of a literal that ends at this node, or -1
+    final int[] output;
+    // closest node on the failure chain with an output, or -1
+    final int[] dict;
+
+    private final char[][] keys;
+    private final int[][] children;
+    private final int[] rootNext = new int[ASCII];
+
+    /**
+     * Builds the automaton. The literals must not be empty; for ignoreCase they
+     * must be lower case already, the input is lower cased while scanning.
+     */
+    AhoCorasick(String[] literals, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        Builder b = new Builder();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < literals.length; i++) {
+            String literal = literals[i];
+            min = Math.min(min, literal.length());
+            int node = ROOT;
+            for (int k = 0; k < literal.length(); k++)
+                node = b.childOrNew(node, literal.charAt(k));
+            if (b.output[node] < 0)
+                b.output[node] = i;
+        }
+        minLength = min;
+        int size = b.size;
+        depth = Arrays.copyOf(b.depth, size);
+        output = Arrays.copyOf(b.output, size);
+        keys = Arrays.copyOf(b.keys, size);
+        children = Arrays.copyOf(b.children, size);
+        for (int i = 0; i < size; i++) {
+            int n = b.counts[i];
+            keys[i] = Arrays.copyOf(keys[i], n);
+            children[i] = Arrays.copyOf(children[i], n);
+        }
+        Arrays.fill(rootNext, -1);
+        for (int i = 0; i < keys[ROOT].length; i++) {
+            char c = keys[ROOT][i];
+            if (c < ASCII)
+                rootNext[c] = children[ROOT][i];
+        }
+        fail = new int[size];
+        dict = new int[size];
+        linkFailures();
+    }
+
+    /**
+     * Breadth first, so failure links of shallower nodes are known when needed.
+     */
+    private void linkFailures() {
+        int[] queue = new int[depth.length];
+        int head = 0;
+        int tail = 0;
+        dict[ROOT] = -1;
+        for (int child : children[ROOT]) {
+            fail[child] = ROOT;
+            dict[child] = -1;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            char[] k = keys[node];
+            int[] c = children[node];
+            for (int i = 0; i < k.length; i++) {
+                int child = c[i];
+                int f = fail[node];
+                int target;
+                while ((target = child(f, k[i])) < 0 && f != ROOT)
+                    f = fail[f];
+                fail[child] = target < 0 ? ROOT : target;
+                int fc = fail[child];
+                dict[child] = output[fc] >= 0 ? fc : dict[fc];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    char fold(char ch) {
+        return ignoreCase ? NFA.lowerCase(ch) : ch;
+    }
+
+    /**
+     * Trie child of the node for the (folded) character, or -1.
+     */
+    int child(int node, char ch) {
+        if (node == ROOT && ch < ASCII)
+            return rootNext[ch];
+        char[] k = keys[node];
+        int i = Arrays.binarySearch(k, ch);
+        return i < 0 ? -1 : children[node][i];
+    }
+
+    /**
+     * Automaton transition for the (folded) character.
+     */
+    int step(int node, char ch) {
+        while (true) {
+            int next = child(node, ch);
+            if (next >= 0)
+                return next;
+            if (node == ROOT)
+                return ROOT;
+            node = fail[node];
+        }
+    }
+
+    private static final class Builder {
+        int size = 1;
+        int[] depth = new int[16];
+        int[] output = new int[16];
+        int[] counts = new int[16];
+        char[][] keys = new char[16][];
+        int[][] children = new int[16][];
+
+        Builder() {
+            output[ROOT] = -1;
+            keys[ROOT] = new char[4];
+            children[ROOT] = new int[4];
+        }
+
+        int childOrNew(int node, char ch) {
+            char[] k = keys[node];
+            int n = counts[node];
+            int i = Arrays.binarySearch(k, 0, n, ch);
+            if (i >= 0)
+                return children[node][i];
+            if (size == depth.length) {
+                int len = size * 2;
+                depth = Arrays.copyOf(depth, len);
+                output = Arrays.copyOf(output, len);
+                counts = Arrays.copyOf(counts, len);
+                keys = Arrays.copyOf(keys, len);
+                children = Arrays.copyOf(children, len);
+            }
+            int child = size++;
+            depth[child] = depth[node] + 1;
+            output[child] = -1;
+            keys[child] = new char[2];
+            children[child] = new int[2];
+            // keep the keys sorted
+            i = -i - 1;
+            if (n == k.length) {
+                keys[node] = k = Arrays.copyOf(k, n * 2);
+                children[node] = Arrays.copyOf(children[node], n * 2);
+            }
+            int[] c = children[node];
+            System.arraycopy(k, i, k, i + 1, n - i);
+            System.arraycopy(c, i, c, i + 1, n - i);
+            k[i] = ch;
+            c[i] = child;
+            counts[node] = n + 1;
+            return child;
+        }
+    }
+}
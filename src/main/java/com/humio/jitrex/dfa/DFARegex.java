@@ -0,0 +1,309 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.dfa;
+
+import com.humio.jitrex.tree.RNode;
+import com.humio.jitrex.tree.RequiredLiteral;
+import com.humio.jitrex.util.ProxyRegex;
+import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.RegexRefiller;
+
+/**
+ * Regex that finds match bounds with lazily built DFAs instead of backtracking.
+ * <p>
+ * search() runs a forward leftmost-first DFA to find where the match ends and then a
+ * DFA for the reversed expression back from there to find where it starts; both
+ * scans take time linear in the input. match() and matchWhole() need the forward
+ * scan only.
+ * <p>
+ * If the expression has capture groups, the wrapped regex is run once, anchored at
+ * the start of the match that the DFAs found, to fill in the group cells. Positions
+ * where nothing matches never reach the backtracking code.
+ * <p>
+ * The wrapped regex is only used when the DFA gives up (its state cache keeps
+ * overflowing) or for operations that only make sense for a backtracking matcher
+ * (searchAgain, refilling). From then on this clone keeps using it.
+ */
+public class DFARegex extends ProxyRegex {
+
+    private final LazyDFA forward;
+    private final LazyDFA forwardLongest;
+    private final LazyDFA reverse;
+    private final boolean startAnchored;
+    private final boolean captures;
+    private final RequiredLiteral literal;
+
+    private LazyDFA.Work forwardWork;
+    private LazyDFA.Work longestWork;
+    private LazyDFA.Work reverseWork;
+
+    private CharSequence string;
+    private int start;
+    private int end;
+    private int headStart;
+    private int maxStart;
+    private int matchStart;
+    private int matchEnd;
+    private boolean fallback;
+    // fallback is only for the current input, as the wrapped regex disagreed on a match in it
+    private boolean fallbackForInput;
+    // the wrapped regex did the last match, e.g. to extract groups
+    private boolean backtracked;
+
+    private DFARegex(Regex backtracking, NFA forward, NFA reverse, boolean startAnchored, boolean captures,
+                     RequiredLiteral literal) {
+        super(backtracking);
+        this.forward = new LazyDFA(forward, false);
+        this.forwardLongest = new LazyDFA(forward, true);
+        this.reverse = new LazyDFA(reverse, true);
+        this.startAnchored = startAnchored;
+        this.captures = captures;
+        this.literal = literal;
+    }
+
+    /**
+     * Returns a DFA based regex for the given tree, or the backtracking regex itself
+     * if the tree uses constructs a DFA cannot handle.
+     */
+    public static Regex wrap(Regex backtracking, RNode tree, int flags) {
+        NFA forward = NFA.build(tree, false);
+        if (forward == null)
+            return backtracking;
+        NFA reverse = NFA.build(tree, true);
+        if (reverse == null)
+            return backtracking;
+        // same as the start anchored hint in RCompiler, a search never starts after off
+        boolean startAnchored = tree.isStartAnchored() && (flags & MULTILINE) == 0;
+        return new DFARegex(backtracking, forward, reverse, startAnchored, tree.hasPicks(),
+                (flags & _NO_LITERAL_SKIP) != 0 ? null : RequiredLiteral.find(tree));
+    }
+
+    public void init(CharSequence subject, int off, int len) {
+        if (fallbackForInput) {
+            fallback = false;
+            fallbackForInput = false;
+        }
+        string = subject;
+        start = off;
+        end = off + len;
+        headStart = off;
+        maxStart = startAnchored ? off : end;
+        if (fallback || captures)
+            regex.init(subject, off, len);
+    }
+
+    private void useFallback() {
+        fallback = true;
+        regex.init(string, start, end - start);
+        regex.setSearchStart(headStart);
+    }
+
+    private void disagreed() {
+        useFallback();
+        fallbackForInput = true;
+    }
+
+    /**
+     * Runs the wrapped regex anchored at <i>from</i> to fill in group cells for a
+     * match that the DFA says ends at <i>to</i>. Returns false if it does not agree.
+     * <p>
+     * The wrapped regex is not bounded to end at <i>to</i>, as anchors and
+     * boundaries there must still see the rest of the input; it normally stops
+     * at <i>to</i> anyway. When it does not agree, the rest of the input is
+     * searched by the wrapped regex alone, see disagreed(), and the DFA is used
+     * again from the next init().
+     */
+    private boolean extract(int from, int to) {
+        backtracked = true;
+        regex.setSearchStart(from);
+        return regex.match() && regex.getMatchEnd() == to;
+    }
+
+    public boolean search() {
+        if (fallback)
+            return regex.search();
+        backtracked = false;
+        if (headStart > maxStart)
+            return false;
+        int from = headStart;
+        if (literal != null) {
+            int q = literal.indexOf(string, headStart, end);
+            if (q < 0) {
+                headStart = end + 1;
+                return false;
+            }
+            // no match can start further than maxOffset before the literal
+            if (literal.maxOffset != Integer.MAX_VALUE && q - literal.maxOffset > from)
+                from = q - literal.maxOffset;
+        }
+        if (forwardWork == null)
+            forwardWork = forward.newWork();
+        int e = forward.scanForward(forwardWork, string, from, start, end, false, this);
+        if (e == LazyDFA.NO_MATCH) {
+            headStart = end + 1;
+            return false;
+        }
+        int s = LazyDFA.FAILED;
+        if (e != LazyDFA.FAILED) {
+            if (reverseWork == null)
+                reverseWork = reverse.newWork();
+            s = reverse.scanReverse(reverseWork, string, e, from, start, end, this);
+        }
+        if (s < 0) {
+            useFallback();
+            return regex.search();
+        }
+        if (captures && !extract(s, e)) {
+            disagreed();
+            return regex.search();
+        }
+        matchStart = s;
+        matchEnd = e;
+        // next time start after the end of just matched substring
+        if (s < e && e < end)
+            headStart = e;
+        else
+            headStart = e + 1;
+        return true;
+    }
+
+    public boolean search(int from) {
+        if (from > end)
+            throw new IndexOutOfBoundsException();
+        if (fallback)
+            return regex.search(from);
+        start = from;
+        headStart = from;
+        if (captures)
+            regex.init(string, from, end - from);
+        return search();
+    }
+
+    public boolean searchAgain() {
+        if (!fallback)
+            useFallback();
+        return regex.searchAgain();
+    }
+
+    public void setSearchStart(int index) {
+        headStart = index;
+        if (fallback)
+            regex.setSearchStart(index);
+    }
+
+    /**
+     * Returns false if a match that starts at headStart cannot contain the
+     * required literal.
+     */
+    private boolean literalFollows() {
+        if (literal == null)
+            return true;
+        long limit = (long) headStart + literal.maxOffset + literal.literal.length();
+        return literal.indexOf(string, headStart, limit < end ? (int) limit : end) >= 0;
+    }
+
+    public boolean match() {
+        if (fallback)
+            return regex.match();
+        backtracked = false;
+        if (headStart > end)
+            return false;
+        if (!literalFollows()) {
+            headStart++;
+            return false;
+        }
+        if (forwardWork == null)
+            forwardWork = forward.newWork();
+        int e = forward.scanForward(forwardWork, string, headStart, start, end, true, this);
+        if (e == LazyDFA.FAILED) {
+            useFallback();
+            return regex.match();
+        }
+        if (e == LazyDFA.NO_MATCH) {
+            headStart++;
+            return false;
+        }
+        if (captures && !extract(headStart, e)) {
+            disagreed();
+            return regex.match();
+        }
+        matchStart = headStart;
+        matchEnd = e;
+        return true;
+    }
+
+    public boolean matchWhole() {
+        if (fallback)
+            return regex.matchWhole();
+        backtracked = false;
+        if (headStart > end || !literalFollows())
+            return false;
+        if (longestWork == null)
+            longestWork = forwardLongest.newWork();
+        int e = forwardLongest.scanForward(longestWork, string, headStart, start, end, true, this);
+        if (e == LazyDFA.FAILED) {
+            useFallback();
+            return regex.matchWhole();
+        }
+        if (e != end)
+            return false;
+        if (captures) {
+            backtracked = true;
+            regex.setSearchStart(headStart);
+            if (!regex.matchWhole())
+                return false;
+        }
+        matchStart = headStart;
+        matchEnd = e;
+        return true;
+    }
+
+    public CharSequence getCharBuffer(int extHandle) {
+        if (extHandle < 0 && !fallback)
+            return string;
+        return regex.getCharBuffer(extHandle);
+    }
+
+    public int getMatchStart() {
+        return fallback ? regex.getMatchStart() : matchStart;
+    }
+
+    public int getMatchEnd() {
+        return fallback ? regex.getMatchEnd() : matchEnd;
+    }
+
+    public void setRefiller(RegexRefiller refiller) {
+        // refilling is driven by the generated code
+        if (refiller != null && !fallback)
+            useFallback();
+        if (refiller != null)
+            fallbackForInput = false;
+        regex.setRefiller(refiller);
+    }
+
+    public void setRefilledBuffer(CharSequence buffer) {
+        string = buffer;
+        regex.setRefilledBuffer(buffer);
+    }
+
+    public boolean shiftIndexes(int shift) {
+        // only refilled input needs this, which the DFA leaves to the wrapped regex
+        return fallback && regex.shiftIndexes(shift);
+    }
+
+    public int getBackTrackCount() {
+        return fallback || backtracked ? regex.getBackTrackCount() : 0;
+    }
+
+    public Regex cloneRegex() {
+        DFARegex clone = (DFARegex) super.cloneRegex();
+        clone.string = null;
+        clone.forwardWork = null;
+        clone.longestWork = null;
+        clone.reverseWork = null;
+        return clone;
+    }
+}
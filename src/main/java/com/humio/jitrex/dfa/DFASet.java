@@ -0,0 +1,53 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.dfa;
+
+import com.humio.jitrex.tree.RNode;
+
+import java.util.BitSet;
+
+/**
+ * Lazily built DFA for several expressions at once, which tells in one pass over
+ * the input which of them match somewhere in it.
+ * <p>
+ * The automaton is shared between threads; scratch space is kept per thread.
+ */
+public final class DFASet {
+
+    private final LazyDFA dfa;
+    private final int count;
+    private final ThreadLocal<LazyDFA.Work> work;
+
+    private DFASet(NFA nfa, int count) {
+        this.dfa = new LazyDFA(nfa, true);
+        this.count = count;
+        this.work = ThreadLocal.withInitial(dfa::newWork);
+    }
+
+    /**
+     * Builds a DFA for as many of the trees as possible and sets included[i] for
+     * the trees that are in it. Returns null if none are.
+     */
+    public static DFASet build(RNode[] trees, boolean[] included) {
+        NFA nfa = NFA.buildSet(trees, included);
+        if (nfa == null)
+            return null;
+        int count = 0;
+        for (boolean b : included) {
+            if (b)
+                count++;
+        }
+        return new DFASet(nfa, count);
+    }
+
+    /**
+     * Sets found[i] for every included tree i that matches somewhere in the input.
+     * Returns false if the DFA gave up on this input; found is incomplete then.
+     */
+    public boolean scan(CharSequence input, BitSet found) {
+        return dfa.scanSet(work.get(), input, 0, input.length(), found, count);
+    }
+}
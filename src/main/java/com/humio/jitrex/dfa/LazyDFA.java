@@ -0,0 +1,456 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.dfa;
+
+import com.humio.jitrex.util.Regex;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DFA that is built lazily, one state at a time, from an NFA program while scanning.
+ * <p>
+ * A state is an ordered set of NFA threads (program counters that wait for a
+ * character) plus a few bits of context about the previously consumed character,
+ * which is what boundary assertions need. Threads are kept in priority order, so in
+ * leftmost-first mode the automaton reports the same match end as the backtracking
+ * matcher would: once a thread reaches MATCH, all lower priority threads are dropped.
+ * In longest mode no threads are ever dropped and every reachable match is reported.
+ * <p>
+ * States and transitions are cached and shared between all clones of a regex. The
+ * cache is bounded; when it fills up it is thrown away and rebuilt. If that happens
+ * too often to be useful, the scan gives up and returns FAILED, and the caller is
+ * expected to use the backtracking matcher instead.
+ */
+final class LazyDFA {
+
+    static final int NO_MATCH = -1;
+    static final int FAILED = -2;
+
+    // context of the consumed character
+    static final int CTX_EDGE = 0x01;
+    static final int CTX_WORD = 0x02;
+    static final int CTX_LINE = 0x04;
+    static final int CTX_MASK = 0x07;
+
+    // keep starting new threads at every position (unanchored search)
+    static final int F_INJECT = 0x08;
+    // a match ended right before the character that led to this state
+    static final int F_MATCH = 0x10;
+
+    static final int MAX_STATES = 2000;
+
+    /**
+     * When the cache has to be thrown away, at least this many characters per cached
+     * state must have been scanned since it was last built for the DFA to be worth it.
+     */
+    static final int MIN_CHARS_PER_STATE = 10;
+
+    private static final int ASCII = 128;
+
+    final NFA nfa;
+    final boolean longest;
+
+    private volatile Cache cache = new Cache();
+
+    LazyDFA(NFA nfa, boolean longest) {
+        this.nfa = nfa;
+        this.longest = longest;
+    }
+
+    static final class DState {
+        final int[] threads;
+        final int flags;
+        // for sets: ids of the matches flagged by F_MATCH, otherwise null
+        final int[] matches;
+        final int hash;
+        final DState[] next = new DState[ASCII];
+        volatile ConcurrentHashMap<Character, DState> wide;
+        // 0 - not known yet, 1 - no match at the edge of text, 2 - match
+        byte edgeMatch;
+
+        DState(int[] threads, int flags, int[] matches) {
+            this.threads = threads;
+            this.flags = flags;
+            this.matches = matches;
+            this.hash = (Arrays.hashCode(threads) * 31 + flags) * 31 + Arrays.hashCode(matches);
+        }
+
+        boolean isDead() {
+            return threads.length == 0 && (flags & F_INJECT) == 0;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DState))
+                return false;
+            DState other = (DState) obj;
+            return flags == other.flags && hash == other.hash && Arrays.equals(threads, other.threads) &&
+                    Arrays.equals(matches, other.matches);
+        }
+    }
+
+    private static final class Cache {
+        final ConcurrentHashMap<DState, DState> states = new ConcurrentHashMap<>();
+        final DState[] starts = new DState[2 * (CTX_MASK + 1)];
+        // characters scanned since this cache was created, updated at the end of scans
+        volatile long scanned;
+    }
+
+    /**
+     * Per-scan scratch space for computing new states. Not thread safe, every
+     * regex clone owns one.
+     */
+    static final class Work {
+        private int[] stack;
+        private int[] visited;
+        private int[] consumers;
+        private int[] nextThreads;
+        private int[] seen;
+        // ids of the MATCH instructions reached by the last closure
+        private int[] matched;
+        private int nmatched;
+        private int mark;
+
+        Work(NFA nfa) {
+            stack = new int[nfa.size * 2 + 2];
+            visited = new int[nfa.size];
+            consumers = new int[nfa.size];
+            nextThreads = new int[nfa.size];
+            seen = new int[nfa.size];
+            matched = new int[nfa.size];
+        }
+
+        int nextMark() {
+            if (++mark == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                Arrays.fill(seen, 0);
+                mark = 1;
+            }
+            return mark;
+        }
+    }
+
+    Work newWork() {
+        return new Work(nfa);
+    }
+
+    static int context(char c) {
+        int ctx = 0;
+        if (NFA.isWordChar(c))
+            ctx |= CTX_WORD;
+        if (NFA.isLineTerminator(c))
+            ctx |= CTX_LINE;
+        return ctx;
+    }
+
+    /**
+     * Context for the character at the given index, or edge if the index is outside of
+     * [lower, upper).
+     */
+    static int context(CharSequence string, int index, int lower, int upper) {
+        if (index < lower || index >= upper)
+            return CTX_EDGE;
+        return context(string.charAt(index));
+    }
+
+    private static boolean assertion(int type, boolean multiline, int left, int right) {
+        switch (type) {
+            case '^':
+            case 'A':
+                return (left & CTX_EDGE) != 0 || (multiline && (left & CTX_LINE) != 0);
+            case '$':
+            case 'z':
+            case 'Z':
+                if ((right & CTX_EDGE) != 0)
+                    return true;
+                return ((multiline && type == '$') || type == 'Z') && (right & CTX_LINE) != 0;
+            case '<':
+                return (left & CTX_WORD) == 0 && (right & CTX_WORD) != 0;
+            case '>':
+                return (left & CTX_WORD) != 0 && (right & CTX_WORD) == 0;
+            case 'b':
+                return ((left ^ right) & CTX_WORD) != 0;
+            case 'B':
+                return ((left ^ right) & CTX_WORD) == 0;
+            default:
+                throw new IllegalStateException("Invalid boundary class: " + type);
+        }
+    }
+
+    private DState startState(Cache c, int ctx, boolean inject) {
+        int index = ctx | (inject ? CTX_MASK + 1 : 0);
+        DState s = c.starts[index];
+        if (s == null) {
+            s = intern(c, new DState(new int[]{nfa.start}, ctx | (inject ? F_INJECT : 0), null));
+            c.starts[index] = s;
+        }
+        return s;
+    }
+
+    private DState intern(Cache c, DState s) {
+        DState old = c.states.putIfAbsent(s, s);
+        return old == null ? s : old;
+    }
+
+    /**
+     * Follows epsilon transitions from all threads of the state, with the other
+     * side of the position described by ctx. Collects the threads that wait for a
+     * character into work.consumers and returns their count; the sign bit is set
+     * if a match was reached, bit 30 if the start thread is still alive.
+     */
+    private int closure(Work work, DState s, int ctx) {
+        int left, right;
+        if (nfa.reverse) {
+            left = ctx;
+            right = s.flags & CTX_MASK;
+        } else {
+            left = s.flags & CTX_MASK;
+            right = ctx;
+        }
+        int[] op = nfa.op;
+        int[] out = nfa.out;
+        int[] arg = nfa.arg;
+        int[] stack = work.stack;
+        int[] visited = work.visited;
+        int mark = work.nextMark();
+        int n = 0;
+        work.nmatched = 0;
+        boolean matched = false;
+        boolean inject = (s.flags & F_INJECT) != 0;
+        int nseeds = s.threads.length + (inject ? 1 : 0);
+        seeds:
+        for (int i = 0; i < nseeds; i++) {
+            int sp = 0;
+            stack[sp++] = i < s.threads.length ? s.threads[i] : nfa.start;
+            while (sp > 0) {
+                int pc = stack[--sp];
+                if (visited[pc] == mark)
+                    continue;
+                visited[pc] = mark;
+                switch (op[pc]) {
+                    case NFA.OP_SPLIT:
+                        stack[sp++] = arg[pc];
+                        stack[sp++] = out[pc];
+                        break;
+                    case NFA.OP_NOP:
+                        stack[sp++] = out[pc];
+                        break;
+                    case NFA.OP_ASSERT:
+                        if (assertion(arg[pc], nfa.flag[pc], left, right))
+                            stack[sp++] = out[pc];
+                        break;
+                    case NFA.OP_MATCH:
+                        matched = true;
+                        work.matched[work.nmatched++] = arg[pc];
+                        if (!longest) {
+                            // everything else has lower priority than this match
+                            inject = false;
+                            break seeds;
+                        }
+                        break;
+                    default:
+                        work.consumers[n++] = pc;
+                        break;
+                }
+            }
+        }
+        return n | (matched ? 0x80000000 : 0) | (inject ? 0x40000000 : 0);
+    }
+
+    private boolean computeEdgeMatch(Work work, DState s) {
+        boolean m = closure(work, s, CTX_EDGE) < 0;
+        s.edgeMatch = (byte) (m ? 2 : 1);
+        return m;
+    }
+
+    private DState computeNext(Work work, Cache c, DState s, char ch) {
+        int r = closure(work, s, context(ch));
+        int n = r & 0x3fffffff;
+        int[] consumers = work.consumers;
+        int[] nextThreads = work.nextThreads;
+        int[] seen = work.seen;
+        int mark = work.nextMark();
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            int pc = consumers[i];
+            if (nfa.consumes(pc, ch)) {
+                int target = nfa.out[pc];
+                if (seen[target] != mark) {
+                    seen[target] = mark;
+                    nextThreads[k++] = target;
+                }
+            }
+        }
+        int flags = context(ch);
+        if (r < 0)
+            flags |= F_MATCH;
+        if ((r & 0x40000000) != 0)
+            flags |= F_INJECT;
+        int[] matches = null;
+        if (nfa.set && r < 0) {
+            matches = Arrays.copyOf(work.matched, work.nmatched);
+            Arrays.sort(matches);
+        }
+        DState next = intern(c, new DState(Arrays.copyOf(nextThreads, k), flags, matches));
+        if (ch < ASCII) {
+            s.next[ch] = next;
+        } else {
+            ConcurrentHashMap<Character, DState> wide = s.wide;
+            if (wide == null)
+                s.wide = wide = new ConcurrentHashMap<>();
+            wide.put(ch, next);
+        }
+        return next;
+    }
+
+    private static DState cached(DState s, char ch) {
+        if (ch < ASCII)
+            return s.next[ch];
+        ConcurrentHashMap<Character, DState> wide = s.wide;
+        return wide == null ? null : wide.get(ch);
+    }
+
+    /**
+     * Scans forward from <i>from</i> towards <i>end</i> and returns the end of the
+     * match that starts at <i>from</i> (anchored) or at the leftmost possible position
+     * (not anchored), NO_MATCH or FAILED. Characters outside [textStart, end) are
+     * treated as the edge of text by boundary assertions. The deadline and cancel flag
+     * of <i>limits</i>, if not null, are checked every Regex.CHECK_CHARS chars.
+     */
+    int scanForward(Work work, CharSequence string, int from, int textStart, int end, boolean anchored, Regex limits) {
+        Cache c = cache;
+        DState s = startState(c, context(string, from - 1, textStart, end), !anchored);
+        int lastMatch = NO_MATCH;
+        int p = from;
+        int sinceReset = 0;
+        int checkAt = limits != null && limits.hasDeadline() ? from + Regex.CHECK_CHARS : -1;
+        for (; p < end; p++) {
+            if (p == checkAt) {
+                limits.checkDeadline();
+                checkAt += Regex.CHECK_CHARS;
+            }
+            char ch = string.charAt(p);
+            DState next = cached(s, ch);
+            if (next == null) {
+                if (c.states.size() >= MAX_STATES) {
+                    long scanned = c.scanned + (p - from) - sinceReset;
+                    if (scanned < (long) MIN_CHARS_PER_STATE * MAX_STATES)
+                        return FAILED;
+                    sinceReset = p - from;
+                    cache = c = new Cache();
+                    s = intern(c, new DState(s.threads, s.flags, s.matches));
+                }
+                next = computeNext(work, c, s, ch);
+            }
+            if ((next.flags & F_MATCH) != 0)
+                lastMatch = p;
+            s = next;
+            if (s.isDead())
+                break;
+        }
+        c.scanned += (p - from) - sinceReset;
+        if (p == end) {
+            int em = s.edgeMatch;
+            if (em == 2 || (em == 0 && computeEdgeMatch(work, s)))
+                lastMatch = end;
+        }
+        return lastMatch;
+    }
+
+    /**
+     * Scans backward from <i>from</i> down to <i>lower</i> with a program built for the
+     * reversed expression and returns the smallest position where a match that ends at
+     * <i>from</i> can start, NO_MATCH or FAILED. <i>limits</i> is checked as in
+     * scanForward().
+     */
+    int scanReverse(Work work, CharSequence string, int from, int lower, int textStart, int end, Regex limits) {
+        Cache c = cache;
+        DState s = startState(c, context(string, from, textStart, end), false);
+        int lastMatch = NO_MATCH;
+        int p = from;
+        int sinceReset = 0;
+        int checkAt = limits != null && limits.hasDeadline() ? from - Regex.CHECK_CHARS : -1;
+        for (; ; p--) {
+            if (p == checkAt) {
+                limits.checkDeadline();
+                checkAt -= Regex.CHECK_CHARS;
+            }
+            if (p == textStart) {
+                int em = s.edgeMatch;
+                if (em == 2 || (em == 0 && computeEdgeMatch(work, s)))
+                    lastMatch = p;
+                break;
+            }
+            // at p == lower the character is only looked at to see if a match starts at p
+            char ch = string.charAt(p - 1);
+            DState next = cached(s, ch);
+            if (next == null) {
+                if (c.states.size() >= MAX_STATES) {
+                    long scanned = c.scanned + (from - p) - sinceReset;
+                    if (scanned < (long) MIN_CHARS_PER_STATE * MAX_STATES)
+                        return FAILED;
+                    sinceReset = from - p;
+                    cache = c = new Cache();
+                    s = intern(c, new DState(s.threads, s.flags, s.matches));
+                }
+                next = computeNext(work, c, s, ch);
+            }
+            if ((next.flags & F_MATCH) != 0)
+                lastMatch = p;
+            s = next;
+            if (p == lower || s.isDead())
+                break;
+        }
+        c.scanned += (from - p) - sinceReset;
+        return lastMatch;
+    }
+
+    /**
+     * Scans all of [from, end) with a program built by NFA.buildSet() and sets the
+     * bits in <i>found</i> for every expression that matches somewhere. Stops early
+     * when <i>wanted</i> bits are set. Returns false if the DFA gave up, then found
+     * may be incomplete.
+     */
+    boolean scanSet(Work work, CharSequence string, int from, int end, BitSet found, int wanted) {
+        Cache c = cache;
+        DState s = startState(c, context(string, from - 1, from, end), true);
+        int p = from;
+        int sinceReset = 0;
+        for (; p < end; p++) {
+            char ch = string.charAt(p);
+            DState next = cached(s, ch);
+            if (next == null) {
+                if (c.states.size() >= MAX_STATES) {
+                    long scanned = c.scanned + (p - from) - sinceReset;
+                    if (scanned < (long) MIN_CHARS_PER_STATE * MAX_STATES)
+                        return false;
+                    sinceReset = p - from;
+                    cache = c = new Cache();
+                    s = intern(c, new DState(s.threads, s.flags, s.matches));
+                }
+                next = computeNext(work, c, s, ch);
+            }
+            s = next;
+            if (s.matches != null) {
+                for (int id : s.matches)
+                    found.set(id);
+                if (found.cardinality() >= wanted)
+                    break;
+            }
+        }
+        c.scanned += (p - from) - sinceReset;
+        if (p == end && closure(work, s, CTX_EDGE) < 0) {
+            for (int i = 0; i < work.nmatched; i++)
+                found.set(work.matched[i]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.dfa;
+
+import com.humio.jitrex.tree.*;
+import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.RegexRefiller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Regex for expressions that only match a finite list of literals, such as
+ * Tom|Sawyer|Huckleberry|Finn or a generated list of thousands of keywords.
+ * <p>
+ * All literals are put into one Aho-Corasick automaton, so the cost of a search
+ * does not depend on the number of alternatives, and no code is generated for
+ * them at all (which for big lists would not fit into a method anyway).
+ * <p>
+ * Results are the same as for the backtracking matcher: a search reports the
+ * leftmost match and, among the literals that match there, the one that comes
+ * first in the expression.
+ */
+public class LiteralSetRegex extends Regex {
+
+    /**
+     * Upper limit on the number of literals an expression may expand to, e.g.
+     * (a|b)(c|d)(e|f) expands to 8.
+     */
+    static final int MAX_LITERALS = 100000;
+
+    private final AhoCorasick automaton;
+
+    private CharSequence string;
+    private int end;
+    private int headStart;
+    private int maxStart;
+    private int matchStart;
+    private int matchEnd;
+    // kept for getters only, as the search does not backtrack
+    private int backtrackLimit = Integer.MAX_VALUE;
+
+    private LiteralSetRegex(AhoCorasick automaton) {
+        this.automaton = automaton;
+    }
+
+    /**
+     * Returns a regex for the tree if it only matches a finite list of at least
+     * two literals, otherwise null.
+     */
+    public static Regex create(RNode tree) {
+        if (tree.hasPicks())
+            return null;
+        Expander e = new Expander();
+        List<String> literals = e.expand(tree);
+        if (literals == null || literals.size() < 2)
+            return null;
+        for (String literal : literals) {
+            if (literal.isEmpty())
+                return null;
+        }
+        return new LiteralSetRegex(new AhoCorasick(literals.toArray(new String[0]), e.ignoreCase));
+    }
+
+    /**
+     * Lists the strings a tree of constants and alternatives matches, in the order
+     * the backtracking matcher would try them.
+     */
+    private static class Expander {
+        boolean ignoreCase;
+        boolean caseKnown;
+
+        List<String> expand(RNode p) {
+            List<String> result = Collections.singletonList("");
+            for (; p != null; p = p.tail) {
+                List<String> part = language(p);
+                if (part == null || (long) result.size() * part.size() > MAX_LITERALS)
+                    return null;
+                List<String> product = new ArrayList<>(result.size() * part.size());
+                for (String prefix : result) {
+                    for (String suffix : part)
+                        product.add(prefix + suffix);
+                }
+                result = product;
+            }
+            return result;
+        }
+
+        private List<String> language(RNode p) {
+            if (p instanceof RConstNode) {
+                // literals in the automaton are either all case sensitive or none
+                if (!caseKnown) {
+                    ignoreCase = p.isLowercase();
+                    caseKnown = true;
+                } else if (ignoreCase != p.isLowercase()) {
+                    return null;
+                }
+                return Collections.singletonList(String.valueOf(((RConstNode) p).c));
+            }
+            if (p instanceof REmptyNode)
+                return Collections.singletonList("");
+            if (p instanceof RAltNode) {
+                List<String> result = new ArrayList<>();
+                // a|b|c is nested to the right, walk it without recursion
+                RNode alt = p;
+                while (true) {
+                    RAltNode a = (RAltNode) alt;
+                    if (!addAll(result, a.alt1))
+                        return null;
+                    alt = a.alt2;
+                    if (!(alt instanceof RAltNode) || alt.tail != null)
+                        break;
+                }
+                if (!addAll(result, alt))
+                    return null;
+                return result;
+            }
+            return null;
+        }
+
+        private boolean addAll(List<String> result, RNode alt) {
+            List<String> strings = alt == null ? Collections.singletonList("") : expand(alt);
+            if (strings == null || result.size() + strings.size() > MAX_LITERALS)
+                return false;
+            result.addAll(strings);
+            return true;
+        }
+    }
+
+    public int getVariableHandle(String var, boolean begin) {
+        return -1;
+    }
+
+    public int getExtVariableHandle(String var) {
+        return -1;
+    }
+
+    public Enumeration<String> variables() {
+        return Collections.emptyEnumeration();
+    }
+
+    public void init(CharSequence subject, int off, int len) {
+        string = subject;
+        end = off + len;
+        headStart = off;
+        maxStart = end - automaton.minLength;
+    }
+
+    public boolean searchAgain() {
+        if (!search())
+            return false;
+        headStart = matchStart + 1;
+        return true;
+    }
+
+    public boolean search() {
+        if (headStart > maxStart)
+            return false;
+        AhoCorasick ac = automaton;
+        int[] depth = ac.depth;
+        int[] output = ac.output;
+        int[] dict = ac.dict;
+        int bestStart = Integer.MAX_VALUE;
+        int bestLiteral = Integer.MAX_VALUE;
+        int bestEnd = -1;
+        int node = AhoCorasick.ROOT;
+        int checkAt = hasDeadline() ? headStart + CHECK_CHARS : -1;
+        for (int p = headStart; p < end; p++) {
+            if (p == checkAt) {
+                checkDeadline();
+                checkAt += CHECK_CHARS;
+            }
+            node = ac.step(node, ac.fold(string.charAt(p)));
+            int o = output[node] >= 0 ? node : dict[node];
+            for (; o >= 0; o = dict[o]) {
+                int s = p + 1 - depth[o];
+                int literal = output[o];
+                if (s < bestStart || (s == bestStart && literal < bestLiteral)) {
+                    bestStart = s;
+                    bestLiteral = literal;
+                    bestEnd = p + 1;
+                }
+            }
+            // every match found from here on starts after the best one
+            if (bestEnd >= 0 && p + 1 - depth[node] > bestStart)
+                break;
+        }
+        if (bestEnd < 0) {
+            headStart = end + 1;
+            return false;
+        }
+        matchStart = bestStart;
+        matchEnd = bestEnd;
+        // literals are never empty
+        headStart = matchEnd < end ? matchEnd : matchEnd + 1;
+        return true;
+    }
+
+    public boolean search(int from) {
+        if (from > end)
+            throw new IndexOutOfBoundsException();
+        headStart = from;
+        return search();
+    }
+
+    public void setSearchStart(int index) {
+        headStart = index;
+    }
+
+    public boolean match() {
+        AhoCorasick ac = automaton;
+        int bestLiteral = Integer.MAX_VALUE;
+        int bestEnd = -1;
+        int node = AhoCorasick.ROOT;
+        for (int p = headStart; p < end; p++) {
+            node = ac.child(node, ac.fold(string.charAt(p)));
+            if (node < 0)
+                break;
+            int literal = ac.output[node];
+            if (literal >= 0 && literal < bestLiteral) {
+                bestLiteral = literal;
+                bestEnd = p + 1;
+            }
+        }
+        if (bestEnd < 0) {
+            headStart++;
+            return false;
+        }
+        matchStart = headStart;
+        matchEnd = bestEnd;
+        return true;
+    }
+
+    public boolean matchWhole() {
+        AhoCorasick ac = automaton;
+        int node = AhoCorasick.ROOT;
+        for (int p = headStart; p < end && node >= 0; p++)
+            node = ac.child(node, ac.fold(string.charAt(p)));
+        if (node < 0 || ac.output[node] < 0)
+            return false;
+        matchStart = headStart;
+        matchEnd = end;
+        return true;
+    }
+
+    public int getIndex(int handle) {
+        throw new IllegalArgumentException("Invalid variable handle: " + handle);
+    }
+
+    public void setIndex(int handle, int value) {
+        throw new IllegalArgumentException("Invalid variable handle: " + handle);
+    }
+
+    public CharSequence getCharBuffer(int extHandle) {
+        if (extHandle < 0)
+            return string;
+        throw new IllegalArgumentException("Invalid variable handle: " + extHandle);
+    }
+
+    public int getMatchStart() {
+        return matchStart;
+    }
+
+    public int getMatchEnd() {
+        return matchEnd;
+    }
+
+    public void setExtVariableBuffer(int extHandle, CharSequence arr) {
+        throw new IllegalArgumentException("Invalid variable handle: " + extHandle);
+    }
+
+    public void setRefiller(RegexRefiller refiller) {
+        if (refiller != null)
+            throw new IllegalArgumentException("Refilling is not supported for literal sets");
+    }
+
+    public void setRefilledBuffer(CharSequence buffer) {
+        string = buffer;
+    }
+
+    public Regex cloneRegex() {
+        LiteralSetRegex clone = (LiteralSetRegex) super.cloneRegex();
+        clone.string = null;
+        return clone;
+    }
+
+    public void setBackTrackLimit(int i) {
+        backtrackLimit = i;
+    }
+
+    public int getBackTrackLimit() {
+        return backtrackLimit;
+    }
+
+    public int getBackTrackCount() {
+        return 0;
+    }
+
+}
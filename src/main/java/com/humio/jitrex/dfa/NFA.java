@@ -0,0 +1,374 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.dfa;
+
+import com.humio.jitrex.tree.*;
+import com.humio.jitrex.util.Regex;
+
+import java.util.Arrays;
+
+/**
+ * Thompson-style instruction program for a regex tree. This is what LazyDFA
+ * simulates. Instructions are stored in parallel arrays indexed by program counter.
+ * <p>
+ * Alternatives are ordered: for OP_SPLIT the <i>out</i> branch is preferred over
+ * the <i>arg</i> branch, which is how leftmost-first (backtracking) priorities are
+ * carried over into the automaton.
+ * <p>
+ * Only trees without back references and lookaheads can be turned into a program;
+ * for other trees build() returns null.
+ */
+public final class NFA implements CharClassCodes {
+
+    static final int OP_CHAR = 0;     // arg = char, icase
+    static final int OP_CLASS = 1;    // classes[pc], icase
+    static final int OP_ANY = 2;      // flag = dot matches line terminators
+    static final int OP_SPLIT = 3;    // out = preferred, arg = other
+    static final int OP_NOP = 4;
+    static final int OP_ASSERT = 5;   // arg = boundary class, flag = multiline
+    static final int OP_MATCH = 6;    // arg = id of the expression (for sets)
+
+    /**
+     * Upper limit on program size. Counted repetitions are unrolled, so something
+     * like x{1000} would otherwise blow up the automaton.
+     */
+    static final int MAX_INSTRUCTIONS = 10000;
+
+    /**
+     * Upper limit on the size of a program for a set of expressions.
+     */
+    static final int MAX_SET_INSTRUCTIONS = 200000;
+
+    final int[] op;
+    final int[] out;
+    final int[] arg;
+    final boolean[] flag;
+    final CharSet[] classes;
+    final int start;
+    final int size;
+    final boolean reverse;
+    // several expressions, MATCH instructions tell which one matched
+    final boolean set;
+
+    private NFA(Builder b, int start, boolean set) {
+        this.size = b.size;
+        this.op = Arrays.copyOf(b.op, size);
+        this.out = Arrays.copyOf(b.out, size);
+        this.arg = Arrays.copyOf(b.arg, size);
+        this.flag = Arrays.copyOf(b.flag, size);
+        this.classes = Arrays.copyOf(b.classes, size);
+        this.start = start;
+        this.reverse = b.reverse;
+        this.set = set;
+    }
+
+    /**
+     * Builds a program for the tree, or returns null if the tree uses constructs
+     * that a finite automaton cannot execute with the same semantics as the
+     * backtracking matcher. If <i>reverse</i> is set, the program matches the
+     * reversed language and is used to find where a match starts.
+     */
+    public static NFA build(RNode tree, boolean reverse) {
+        Builder b = new Builder(reverse);
+        try {
+            int match = b.emit(OP_MATCH, -1, 0, false, null);
+            int start = b.compile(tree, match);
+            return new NFA(b, start, false);
+        } catch (NotRegularException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds one forward program for several trees, where reaching the MATCH
+     * instruction of trees[i] reports id i. Trees that can not be turned into a
+     * program (or do not fit) are left out, and included[i] is set for the ones
+     * that are in. Returns null if none are.
+     */
+    static NFA buildSet(RNode[] trees, boolean[] included) {
+        Builder b = new Builder(false);
+        int start = -1;
+        for (int i = trees.length - 1; i >= 0; i--) {
+            int size = b.size;
+            b.limit = Math.min(size + MAX_INSTRUCTIONS, MAX_SET_INSTRUCTIONS);
+            try {
+                int match = b.emit(OP_MATCH, -1, i, false, null);
+                int entry = b.compile(trees[i], match);
+                start = start < 0 ? entry : b.emit(OP_SPLIT, entry, start, false, null);
+                included[i] = true;
+            } catch (NotRegularException e) {
+                // forget whatever was emitted for this tree
+                b.size = size;
+            }
+        }
+        if (start < 0)
+            return null;
+        return new NFA(b, start, true);
+    }
+
+    /**
+     * Whether a match of <i>tree</i> can contain a line terminator; true when
+     * that cannot be told, because the tree has no program. Assertions only look
+     * at the chars around them, so a pattern for which this is false has all its
+     * matches within a line.
+     */
+    public static boolean canMatchLineTerminator(RNode tree) {
+        NFA nfa = build(tree, false);
+        if (nfa == null)
+            return true;
+        for (int pc = 0; pc < nfa.size; pc++) {
+            if (nfa.consumes(pc, '\n') || nfa.consumes(pc, '\r') || nfa.consumes(pc, '\u0085')
+                    || nfa.consumes(pc, '\u2028') || nfa.consumes(pc, '\u2029'))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * True if the instruction at pc consumes character ch.
+     */
+    boolean consumes(int pc, char ch) {
+        switch (op[pc]) {
+            case OP_CHAR:
+                return ch == arg[pc] || (flag[pc] && lowerCase(ch) == arg[pc]);
+            case OP_CLASS:
+                return classMatches(classes[pc], flag[pc] ? lowerCase(ch) : ch);
+            case OP_ANY:
+                return flag[pc] || !isLineTerminator(ch);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Same as JavaClassRegexStub.lowerCaseCharAt.
+     */
+    static char lowerCase(char ch) {
+        if (ch < 128) {
+            if (ch >= 'A' && ch <= 'Z')
+                return (char) ((int) ch + ('a' - 'A'));
+            return ch;
+        }
+        return Character.toLowerCase(ch);
+    }
+
+    static boolean isLineTerminator(char c) {
+        switch (c) {
+            case '\n':
+            case '\r':
+            case '\u0085':
+            case '\u2028':
+            case '\u2029':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Character class test with the same semantics as the code that
+     * RJavaClassMachine.assert2(int, char[]) generates.
+     */
+    static boolean classMatches(CharSet set, char ch) {
+        char[] ranges = set.ranges;
+        int charClass = set.charClass;
+        if (ranges != null) {
+            if (ranges.length == 2 && ranges[0] == 0 && ranges[1] == 0xFFFF)
+                return true;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ch < ranges[i])
+                    break;
+                if (ch <= ranges[i + 1])
+                    return true;
+            }
+            if (charClass == CLASS_DISABLED || charClass == CLASS_NONE)
+                return false;
+        }
+        switch (charClass) {
+            case CLASS_LETTER:
+                return Character.isLetter(ch);
+            case CLASS_NONLETTER:
+                return !Character.isLetter(ch);
+            case CLASS_UPPERCASE:
+                return Character.isUpperCase(ch);
+            case CLASS_NONUPPERCASE:
+                return !Character.isUpperCase(ch);
+            case CLASS_LOWERCASE:
+                return Character.isLowerCase(ch);
+            case CLASS_NONLOWERCASE:
+                return !Character.isLowerCase(ch);
+            default:
+                return ranges != null || charClass == CLASS_ALL;
+        }
+    }
+
+    private static class NotRegularException extends RuntimeException {
+        NotRegularException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Walks the tree back to front, so every node is compiled knowing the program
+     * counter of its continuation.
+     */
+    private static class Builder extends RContext {
+
+        final boolean reverse;
+
+        int[] op = new int[16];
+        int[] out = new int[16];
+        int[] arg = new int[16];
+        boolean[] flag = new boolean[16];
+        CharSet[] classes = new CharSet[16];
+        int size;
+        int limit = MAX_INSTRUCTIONS;
+
+        // continuation of the node being evaluated
+        private int next;
+
+        Builder(boolean reverse) {
+            this.reverse = reverse;
+        }
+
+        int emit(int opcode, int outPc, int argValue, boolean flagValue, CharSet set) {
+            if (size == limit)
+                throw new NotRegularException();
+            if (size == op.length) {
+                int n = size * 2;
+                op = Arrays.copyOf(op, n);
+                out = Arrays.copyOf(out, n);
+                arg = Arrays.copyOf(arg, n);
+                flag = Arrays.copyOf(flag, n);
+                classes = Arrays.copyOf(classes, n);
+            }
+            op[size] = opcode;
+            out[size] = outPc;
+            arg[size] = argValue;
+            flag[size] = flagValue;
+            classes[size] = set;
+            return size++;
+        }
+
+        /**
+         * Compiles the node and the rest of its tail chain, continuing at next.
+         */
+        int compile(RNode node, int next) {
+            if (!reverse) {
+                if (node == null)
+                    return next;
+                return compileNode(node, compile(node.tail, next));
+            }
+            int cont = next;
+            for (RNode p = node; p != null; p = p.tail)
+                cont = compileNode(p, cont);
+            return cont;
+        }
+
+        private int compileNode(RNode node, int next) {
+            this.next = next;
+            return (Integer) node.eval(this);
+        }
+
+        public Object evalRConst(RConstNode regexConst) {
+            return emit(OP_CHAR, next, regexConst.c, regexConst.isLowercase(), null);
+        }
+
+        public Object evalRCharClass(RCharClassNode regexCharClass) {
+            return emit(OP_CLASS, next, 0, regexCharClass.isLowercase(), regexCharClass.charClass);
+        }
+
+        public Object evalRAny(RAnyNode regexAny) {
+            return emit(OP_ANY, next, 0, (regexAny.flags() & Regex.DOTALL) != 0, null);
+        }
+
+        public Object evalRBoundary(RBoundaryNode regexBoundary) {
+            switch (regexBoundary.boundaryClass) {
+                case '^':
+                case 'A':
+                case '$':
+                case 'z':
+                case 'Z':
+                case '<':
+                case '>':
+                case 'b':
+                case 'B':
+                    break;
+                default:
+                    throw new NotRegularException();
+            }
+            return emit(OP_ASSERT, next, regexBoundary.boundaryClass,
+                    (regexBoundary.flags() & Regex.MULTILINE) != 0, null);
+        }
+
+        public Object evalRAlt(RAltNode regexAlt) {
+            int cont = next;
+            int e1 = compile(regexAlt.alt1, cont);
+            int e2 = compile(regexAlt.alt2, cont);
+            return emit(OP_SPLIT, e1, e2, false, null);
+        }
+
+        public Object evalRRepeat(RRepeatNode regexRepeat) {
+            int cont = next;
+            RNode body = regexRepeat.body;
+            int min = regexRepeat.min;
+            int max = regexRepeat.max;
+            // RCompiler turns loops over bodies that can match the empty string
+            // into something the automaton cannot mimic, so leave those alone
+            if (max != min && RNode.minTotalLength(body) == 0)
+                throw new NotRegularException();
+            // giving up on the ways left in the body is not something an automaton does
+            if (regexRepeat.possessive)
+                throw new NotRegularException();
+            if (min > MAX_INSTRUCTIONS || (max != Integer.MAX_VALUE && max - min > MAX_INSTRUCTIONS))
+                throw new NotRegularException();
+            int exit = cont;
+            if (max == Integer.MAX_VALUE) {
+                int loop = emit(OP_SPLIT, -1, -1, false, null);
+                int entry = compile(body, loop);
+                if (regexRepeat.greedy) {
+                    out[loop] = entry;
+                    arg[loop] = exit;
+                } else {
+                    out[loop] = exit;
+                    arg[loop] = entry;
+                }
+                cont = loop;
+            } else {
+                for (int i = min; i < max; i++) {
+                    int entry = compile(body, cont);
+                    if (regexRepeat.greedy)
+                        cont = emit(OP_SPLIT, entry, exit, false, null);
+                    else
+                        cont = emit(OP_SPLIT, exit, entry, false, null);
+                }
+            }
+            for (int i = 0; i < min; i++)
+                cont = compile(body, cont);
+            return cont;
+        }
+
+        public Object evalRPick(RPickNode regexPick) {
+            return next;
+        }
+
+        public Object evalREmpty(REmptyNode rEmptyNode) {
+            return next;
+        }
+
+        public Object evalRLookAhead(RLookAheadNode regexLookAhead) {
+            throw new NotRegularException();
+        }
+
+        public Object evalRSubst(RSubstNode regexSubst) {
+            throw new NotRegularException();
+        }
+    }
+}
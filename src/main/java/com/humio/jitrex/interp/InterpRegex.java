@@ -0,0 +1,517 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.interp;
+
+import com.humio.jitrex.compiler.RMachine;
+import com.humio.jitrex.jvm.JavaClassRegexStub;
+import com.humio.jitrex.tree.CharClassCodes;
+import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.RegexRefiller;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+
+import static com.humio.jitrex.interp.RInterpMachine.*;
+
+/**
+ * Runs a program made by RInterpMachine. The search loop and the rest of the
+ * Regex implementation are the ones of generated classes; nextMatchInt() walks
+ * the instructions instead of being generated from them. Fork records, saved
+ * variables and multifork records go on the fork stack in the same format.
+ * <p>
+ * The program is shared by all clones.
+ */
+public final class InterpRegex extends JavaClassRegexStub implements CharClassCodes {
+
+    private static final int IGNORECASE = Regex.CASE_INSENSITIVE << FLAGS_SHIFT;
+    private static final int MULTILINE = Regex.MULTILINE << FLAGS_SHIFT;
+    private static final int DOTALL = Regex.DOTALL << FLAGS_SHIFT;
+    private static final int OLD_LONG_STRING_HANDLING = Regex._OLD_LONG_STRING_HANDLING << FLAGS_SHIFT;
+
+    private final int[] code;
+    private final Object[] pool;
+    private final int[] forkTargets;
+    private final boolean[] forkIsMf;
+    private final Hashtable<String, int[]> vars;
+    private final String name;
+    private final int hints;
+    private final int minLength;
+    private final int maxLength;
+    private final boolean multiline;
+
+    InterpRegex(RInterpMachine machine) {
+        code = machine.code;
+        pool = machine.pool.toArray();
+        forkTargets = machine.forkTargets;
+        forkIsMf = machine.forkIsMf;
+        vars = machine.vars;
+        name = machine.name;
+        hints = machine.hints;
+        minLength = machine.minLength;
+        maxLength = machine.maxLength;
+        multiline = (machine.finalExtensions & RMachine.FLAG_MULTILINE) != 0;
+        requiredLiteral = machine.requiredLiteral;
+        cells = new int[machine.varCells];
+        memoPoints = machine.memoPoints;
+        forks = new int[4];
+        if (machine.extCells != 0)
+            extCells = new CharSequence[machine.extCells];
+    }
+
+    protected Hashtable<String, int[]> getVars() {
+        return vars;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    public void setRefiller(RegexRefiller r) {
+        throw new RuntimeException("This regex was explicitly compiled not to support refilling.");
+    }
+
+    public void init(CharSequence subject, int off, int len) {
+        string = subject;
+        start = off;
+        end = off + len;
+        // initialize all internal variables to "unset"
+        for (int[] entry : vars.values()) {
+            if (entry[2] >= 0)
+                continue;
+            cells[entry[0]] = -1;
+            cells[entry[1]] = -1;
+        }
+        if ((hints & RMachine.HINT_END_ANCHORED) != 0 && maxLength < 2048 && !multiline)
+            minSearchStart = Math.max(end - maxLength, off);
+        else
+            minSearchStart = off;
+        headStart = off;
+        if ((hints & RMachine.HINT_START_ANCHORED) != 0 && !multiline)
+            maxStart = off;
+        else
+            maxStart = end - minLength;
+        forkPtr = 0;
+        failCount = 0;
+        literalAt = -1;
+    }
+
+    private static boolean inRanges(char[] ranges, char c) {
+        for (int i = 0; i < ranges.length; i += 2)
+            if (c >= ranges[i] && c <= ranges[i + 1])
+                return true;
+        return false;
+    }
+
+    private static boolean allChars(char[] ranges) {
+        return ranges.length == 2 && ranges[0] == 0 && ranges[1] == 0xFFFF;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return cmpLineTerminator(c) == 0;
+    }
+
+    private static boolean isWord(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static char charAt(CharSequence s, int i, int insn) {
+        return (insn & IGNORECASE) == 0 ? s.charAt(i) : lowerCaseCharAt(s, i);
+    }
+
+    private static boolean inClass(int charClass, char c) {
+        switch (charClass) {
+            case CLASS_LETTER:
+                return Character.isLetter(c);
+            case CLASS_NONLETTER:
+                return !Character.isLetter(c);
+            case CLASS_UPPERCASE:
+                return Character.isUpperCase(c);
+            case CLASS_NONUPPERCASE:
+                return !Character.isUpperCase(c);
+            case CLASS_LOWERCASE:
+                return Character.isLowerCase(c);
+            case CLASS_NONLOWERCASE:
+                return !Character.isLowerCase(c);
+            default:
+                return charClass == CLASS_ALL;
+        }
+    }
+
+    private boolean boundary(int type, int insn, CharSequence s, int head, int end) {
+        boolean multiline = (insn & MULTILINE) != 0;
+        switch (type) {
+            case '^':
+            case 'A':
+                return head == start || (multiline && isLineTerminator(s.charAt(head - 1)));
+            case '$':
+            case 'z':
+            case 'Z':
+                if ((multiline && type == '$') || type == 'Z')
+                    return head == end || isLineTerminator(s.charAt(head));
+                return head == end;
+            default:
+                boolean nextWord = head != end && isWord(charAt(s, head, insn));
+                boolean prevWord = head != start && isWord(charAt(s, head - 1, insn));
+                switch (type) {
+                    case '<':
+                        return nextWord && !prevWord;
+                    case '>':
+                        return !nextWord && prevWord;
+                    case 'b':
+                        return nextWord != prevWord;
+                    default:
+                        return nextWord == prevWord;
+                }
+        }
+    }
+
+    private static int[] grow(int[] forks) {
+        int[] bigger = new int[2 * forks.length];
+        System.arraycopy(forks, 0, bigger, 0, forks.length);
+        return bigger;
+    }
+
+    protected boolean nextMatchInt() {
+        final int[] code = this.code;
+        final CharSequence s = string;
+        final int[] cells = this.cells;
+        final int end = this.end;
+        int[] forks = this.forks;
+        int forkPtr = this.forkPtr;
+        int failCount = this.failCount;
+        int headInc = 1;
+        int head = 0;
+        int pc = 0;
+        // pc of the OP_MFEND while in the body of a multifork
+        int mfEnd = -1;
+        int mfHead = 0;
+        int mfCount = 0;
+        boolean mfFailed = false;
+
+        boolean fail = forkPtr != 0; // if there are forks, start with them
+        if (!fail) {
+            head = headStart;
+            matchStart = head;
+        }
+        while (true) {
+            if (fail) {
+                fail = false;
+                if (mfEnd >= 0) {
+                    // the body failed, go on with the repetitions so far
+                    pc = mfEnd;
+                    mfFailed = true;
+                    if ((hints & RMachine.HINT_CHAR_STAR_HEAD) != 0)
+                        headInc = mfCount + code[pc + 2] + 1;
+                } else {
+                    while (true) {
+                        failCount++;
+                        if (failCount >= failCountMax)
+                            failCountReached(failCount);
+                        if (forkPtr == 0) {
+                            this.forks = forks;
+                            this.forkPtr = forkPtr;
+                            this.failCount = failCount;
+                            headStart += headInc;
+                            return false;
+                        }
+                        int id = forks[--forkPtr];
+                        forkPtr--;
+                        if (id >= 0) {
+                            cells[id] = forks[forkPtr];
+                            continue;
+                        }
+                        head = forks[forkPtr];
+                        int fork = -id - 1;
+                        pc = forkTargets[fork];
+                        if (forkIsMf[fork]) {
+                            // one repetition fewer than the last time
+                            int count = forks[--forkPtr] - 1;
+                            if (count >= 0) {
+                                int dec = code[pc + 1];
+                                forks[forkPtr++] = count;
+                                forks[forkPtr++] = head - dec;
+                                forks[forkPtr++] = id;
+                            }
+                            pc += 6;
+                        }
+                        break;
+                    }
+                    continue;
+                }
+            }
+            int insn = code[pc];
+            switch (insn & 0xFF) {
+                case OP_MATCH:
+                    if (wholeOnly && head != end) {
+                        fail = true;
+                        break;
+                    }
+                    this.forks = forks;
+                    this.forkPtr = forkPtr;
+                    this.failCount = failCount;
+                    matchEnd = head;
+                    return true;
+                case OP_PICK:
+                case OP_TMPVAR:
+                case OP_DECJUMP:
+                case OP_DECFAIL: {
+                    int cell = code[pc + 1];
+                    // save the old value
+                    if (forks.length - forkPtr <= 2)
+                        forks = grow(forks);
+                    forks[forkPtr++] = cells[cell];
+                    forks[forkPtr++] = cell;
+                    switch (insn & 0xFF) {
+                        case OP_PICK:
+                            cells[cell] = head;
+                            pc += 2;
+                            break;
+                        case OP_TMPVAR:
+                            cells[cell] = code[pc + 2];
+                            pc += 3;
+                            break;
+                        case OP_DECJUMP:
+                            if (--cells[cell] > 0)
+                                pc = code[pc + 2];
+                            else
+                                pc += 3;
+                            break;
+                        default:
+                            if (--cells[cell] < 0)
+                                fail = true;
+                            else
+                                pc += 2;
+                            break;
+                    }
+                    break;
+                }
+                case OP_FORK:
+                    if (forks.length - forkPtr <= 2)
+                        forks = grow(forks);
+                    forks[forkPtr++] = head;
+                    forks[forkPtr++] = -code[pc + 1];
+                    pc += 2;
+                    break;
+                case OP_SKIP:
+                    if (head >= end || ((insn & DOTALL) == 0 && isLineTerminator(s.charAt(head)))) {
+                        fail = true;
+                    } else {
+                        head++;
+                        pc++;
+                    }
+                    break;
+                case OP_BOUNDARY:
+                    if (boundary(code[pc + 1], insn, s, head, end))
+                        pc += 2;
+                    else
+                        fail = true;
+                    break;
+                case OP_CLASS: {
+                    if (head >= end) {
+                        fail = true;
+                        break;
+                    }
+                    int charClass = code[pc + 1];
+                    char[] ranges = code[pc + 2] < 0 ? null : (char[]) pool[code[pc + 2]];
+                    if (ranges == null || !allChars(ranges)) {
+                        char c = charAt(s, head, insn);
+                        boolean ok;
+                        if (ranges == null)
+                            ok = inClass(charClass, c);
+                        else if (charClass == CLASS_DISABLED || charClass == CLASS_NONE)
+                            ok = inRanges(ranges, c);
+                        else
+                            ok = inRanges(ranges, c) || inClass(charClass, c);
+                        if (!ok) {
+                            fail = true;
+                            break;
+                        }
+                    }
+                    head++;
+                    pc += 3;
+                    break;
+                }
+                case OP_CONST: {
+                    String str = (String) pool[code[pc + 1]];
+                    int length = str.length();
+                    if (head + length - 1 >= end) {
+                        fail = true;
+                        break;
+                    }
+                    boolean ok;
+                    if ((insn & IGNORECASE) == 0)
+                        ok = substringMatches(s, head, str);
+                    else if ((insn & OLD_LONG_STRING_HANDLING) == 0)
+                        ok = substringMatchesInsensitive(s, head, str);
+                    else {
+                        ok = true;
+                        for (int i = 0; i < length && ok; i++)
+                            ok = lowerCaseCharAt(s, head + i) == str.charAt(i);
+                    }
+                    if (ok) {
+                        head += length;
+                        pc += 2;
+                    } else {
+                        fail = true;
+                    }
+                    break;
+                }
+                case OP_SUBST: {
+                    int from = cells[code[pc + 1]];
+                    int to = cells[code[pc + 2]];
+                    if (to - from > end - head) {
+                        fail = true;
+                        break;
+                    }
+                    int ext = code[pc + 3];
+                    CharSequence value = ext >= 0 ? extCells[ext] : s;
+                    while (from < to && charAt(value, from, insn) == charAt(s, head, insn)) {
+                        from++;
+                        head++;
+                    }
+                    if (from < to)
+                        fail = true;
+                    else
+                        pc += 4;
+                    break;
+                }
+                case OP_HARDASSIGN:
+                    cells[code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case OP_JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case OP_FAIL:
+                    fail = true;
+                    break;
+                case OP_MFSTART:
+                    mfEnd = code[pc + 1];
+                    mfHead = head;
+                    mfCount = 0;
+                    pc += 2;
+                    break;
+                case OP_MFEND: {
+                    if (!mfFailed) {
+                        int maxCount = code[pc + 3];
+                        mfCount++;
+                        if (maxCount == Integer.MAX_VALUE || mfCount < maxCount) {
+                            pc = code[pc + 5];
+                            break;
+                        }
+                    }
+                    mfFailed = false;
+                    mfEnd = -1;
+                    // leave a record for backtracking to one repetition fewer
+                    int dec = code[pc + 1];
+                    head = mfHead + mfCount * dec;
+                    int count = mfCount - 1;
+                    if (forks.length - forkPtr <= 3)
+                        forks = grow(forks);
+                    if (count >= 0) {
+                        forks[forkPtr++] = count;
+                        forks[forkPtr++] = head - dec;
+                        forks[forkPtr++] = -code[pc + 4];
+                    }
+                    pc += 6;
+                    break;
+                }
+                case OP_CONDRANGES: {
+                    char[] ranges = (char[]) pool[code[pc + 1]];
+                    if (head >= end || (!allChars(ranges) && !inRanges(ranges, charAt(s, head, insn)))) {
+                        int target = code[pc + 2];
+                        if (target < 0)
+                            fail = true;
+                        else
+                            pc = target;
+                    } else {
+                        pc += 3;
+                    }
+                    break;
+                }
+                case OP_CONDLEFT: {
+                    int atLeast = code[pc + 1];
+                    if (atLeast > 0 && head + atLeast > end) {
+                        int target = code[pc + 2];
+                        if (target < 0)
+                            fail = true;
+                        else
+                            pc = target;
+                    } else {
+                        pc += 3;
+                    }
+                    break;
+                }
+                case OP_CONDCHAR:
+                    if (head >= end || charAt(s, head, insn) != (char) code[pc + 1]) {
+                        int target = code[pc + 2];
+                        if (target < 0)
+                            fail = true;
+                        else
+                            pc = target;
+                    } else {
+                        pc += 3;
+                    }
+                    break;
+                case OP_SAVEFORKS:
+                    cells[code[pc + 1]] = forkPtr;
+                    pc += 2;
+                    break;
+                case OP_CUT:
+                    forkPtr = cutForks(forks, cells[code[pc + 1]], forkPtr);
+                    pc += 2;
+                    break;
+                case OP_SAVEPOS:
+                    cells[code[pc + 1]] = head;
+                    pc += 2;
+                    break;
+                case OP_SAMEPOS:
+                    if (cells[code[pc + 1]] == head)
+                        pc = code[pc + 2];
+                    else
+                        pc += 3;
+                    break;
+                case OP_MEMO:
+                    if (memoized(code[pc + 1], head))
+                        fail = true;
+                    else
+                        pc += 2;
+                    break;
+                case OP_SHIFTTABLE: {
+                    if (!searching) {
+                        pc += 4;
+                        break;
+                    }
+                    int charsAhead = code[pc + 1];
+                    char[] chars = (char[]) pool[code[pc + 2]];
+                    int[] shifts = (int[]) pool[code[pc + 3]];
+                    int t = head + charsAhead;
+                    while (true) {
+                        if (t >= end) {
+                            headStart = t + 1;
+                            return false;
+                        }
+                        int i = Arrays.binarySearch(chars, charAt(s, t, insn));
+                        if (i < 0) {
+                            t += charsAhead;
+                        } else if (shifts[i] == 0) {
+                            break;
+                        } else {
+                            t += shifts[i];
+                        }
+                    }
+                    head = t - charsAhead;
+                    headStart = head;
+                    pc += 4;
+                    break;
+                }
+                default:
+                    dumpForks();
+                    throw new IllegalStateException("Internal error during jitrex matching");
+            }
+        }
+    }
+}
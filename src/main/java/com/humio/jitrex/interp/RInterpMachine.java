@@ -0,0 +1,370 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.interp;
+
+import com.humio.jitrex.compiler.RLabel;
+import com.humio.jitrex.compiler.RMachine;
+import com.humio.jitrex.compiler.RVariable;
+import com.humio.jitrex.tree.RequiredLiteral;
+import com.humio.jitrex.util.Regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * RMachine that stores jitrex instructions in an int array, which InterpRegex
+ * runs. Compiling this way is much cheaper than generating and loading a class,
+ * so it pays off for expressions that only see a little input.
+ * <p>
+ * It takes the same extensions as RJavaClassMachine and numbers variables the
+ * same way, so for the same tree both machines get the same instruction calls
+ * and their Regex objects have the same variable handles. Each instruction does
+ * what the code that RJavaClassMachine generates for it does, down to the
+ * number of back track operations that are counted. There is no refilling.
+ */
+public class RInterpMachine extends RMachine {
+
+    // opcodes, in the low byte of the first word of an instruction; the
+    // FLAG_* extensions in effect for the instruction are in the bits above
+    static final int OP_MATCH = 0;
+    static final int OP_PICK = 1; // cell
+    static final int OP_FORK = 2; // fork index
+    static final int OP_SKIP = 3;
+    static final int OP_BOUNDARY = 4; // boundary class
+    static final int OP_CLASS = 5; // char class, pool index of ranges or -1
+    static final int OP_CONST = 6; // pool index of string
+    static final int OP_SUBST = 7; // begin cell, end cell, ext cell
+    static final int OP_TMPVAR = 8; // cell, value
+    static final int OP_HARDASSIGN = 9; // cell, value
+    static final int OP_DECJUMP = 10; // cell, target
+    static final int OP_DECFAIL = 11; // cell
+    static final int OP_JUMP = 12; // target
+    static final int OP_FAIL = 13;
+    static final int OP_MFSTART = 14; // pc of OP_MFEND
+    static final int OP_MFEND = 15; // head decrement, min count, max count, fork index, pc of body
+    static final int OP_CONDRANGES = 16; // pool index of ranges, target
+    static final int OP_CONDLEFT = 17; // chars, target
+    static final int OP_CONDCHAR = 18; // char, target
+    static final int OP_SHIFTTABLE = 19; // chars ahead, pool index of chars, pool index of shifts
+    static final int OP_MEMO = 20; // memo point
+    static final int OP_SAVEFORKS = 21; // cell
+    static final int OP_CUT = 22; // cell
+    static final int OP_SAVEPOS = 23; // cell
+    static final int OP_SAMEPOS = 24; // cell, target
+
+    static final int FLAGS_SHIFT = 8;
+
+    int[] code = new int[64];
+    int pc;
+    List<Object> pool = new ArrayList<>();
+    String name = "***jitrex***";
+
+    // pc of each label, -1 until marked
+    int[] labelPc = new int[16];
+    int labelCount;
+    // code indexes that hold label numbers, to be replaced with pcs in finish()
+    int[] fixups = new int[16];
+    int fixupCount;
+
+    // fork index - 1 -> label number, or pc of an OP_MFEND
+    int[] forkTargets = new int[8];
+    boolean[] forkIsMf = new boolean[8];
+    int forkCount;
+
+    Hashtable<String, int[]> vars = new Hashtable<>();
+    int varCells;
+    int extCells;
+    int memoPoints;
+
+    int hints;
+    int minLength;
+    int maxLength = Integer.MAX_VALUE;
+    RequiredLiteral requiredLiteral;
+    int finalExtensions;
+
+    private int mfStartPc = -1;
+    private int mfHeadDecrement;
+    private int mfMinCount;
+
+    public RInterpMachine() {
+        setExtensions(EXT_HINT | EXT_MULTIFORK | EXT_SHIFTTBL | EXT_CONDJUMP | EXT_MEMO | EXT_CUT);
+    }
+
+    static final class Label extends RLabel {
+        final int id;
+
+        Label(int id) {
+            this.id = id;
+        }
+    }
+
+    static final class Variable extends RVariable {
+        final int cell;
+
+        Variable(int cell) {
+            this.cell = cell;
+        }
+    }
+
+    private void emit(int op, int... operands) {
+        if (pc + operands.length + 1 > code.length)
+            code = Arrays.copyOf(code, Math.max(2 * code.length, pc + operands.length + 1));
+        code[pc++] = op | (getExtensions() >>> 16) << FLAGS_SHIFT;
+        for (int operand : operands)
+            code[pc++] = operand;
+    }
+
+    /**
+     * Operand for a jump to <i>label</i>, where null means fail. Call fixup() once
+     * it is emitted, so that it is replaced with the pc of the label in finish().
+     */
+    private static int target(RLabel label) {
+        return label == null ? -1 : ((Label) label).id;
+    }
+
+    private void fixup(int codeIndex) {
+        if (code[codeIndex] < 0)
+            return;
+        if (fixupCount == fixups.length)
+            fixups = Arrays.copyOf(fixups, 2 * fixupCount);
+        fixups[fixupCount++] = codeIndex;
+    }
+
+    private int addFork(int target, boolean mf) {
+        if (forkCount == forkTargets.length) {
+            forkTargets = Arrays.copyOf(forkTargets, 2 * forkCount);
+            forkIsMf = Arrays.copyOf(forkIsMf, 2 * forkCount);
+        }
+        forkTargets[forkCount] = target;
+        forkIsMf[forkCount] = mf;
+        return ++forkCount;
+    }
+
+    private int addToPool(Object obj) {
+        pool.add(obj);
+        return pool.size() - 1;
+    }
+
+    public void tellName(String name) {
+        this.name = "/" + name + "/";
+    }
+
+    public Regex makeRegex() {
+        return new InterpRegex(this);
+    }
+
+    public int getNVars() {
+        return vars.size();
+    }
+
+    /**
+     * Size in bytes of the instructions, comparable to the size of a generated class.
+     */
+    public int getProgramSize() {
+        return 4 * pc;
+    }
+
+    public void finish() {
+        emit(OP_MATCH);
+        for (int i = 0; i < fixupCount; i++)
+            code[fixups[i]] = labelPc[code[fixups[i]]];
+        for (int i = 0; i < forkCount; i++)
+            if (!forkIsMf[i])
+                forkTargets[i] = labelPc[forkTargets[i]];
+        code = Arrays.copyOf(code, pc);
+        forkTargets = Arrays.copyOf(forkTargets, forkCount);
+        forkIsMf = Arrays.copyOf(forkIsMf, forkCount);
+        finalExtensions = getExtensions();
+    }
+
+    //----- basic instructions
+
+    public RVariable newVar(String name, boolean begin) {
+        int[] entry = vars.get(name);
+        if (entry == null) {
+            entry = new int[]{varCells, varCells + 1, -1};
+            varCells += 2;
+            vars.put(name, entry);
+        }
+        return new Variable(entry[begin ? 0 : 1]);
+    }
+
+    public RLabel newLabel() {
+        if (labelCount == labelPc.length)
+            labelPc = Arrays.copyOf(labelPc, 2 * labelCount);
+        labelPc[labelCount] = -1;
+        return new Label(labelCount++);
+    }
+
+    public RVariable newTmpVar(int init) {
+        Variable v = new Variable(varCells++);
+        emit(OP_TMPVAR, v.cell, init);
+        return v;
+    }
+
+    public void mark(RLabel label) {
+        labelPc[((Label) label).id] = pc;
+    }
+
+    public void pick(RVariable v) {
+        emit(OP_PICK, ((Variable) v).cell);
+    }
+
+    public void fork(RLabel forkLabel) {
+        emit(OP_FORK, addFork(((Label) forkLabel).id, false));
+    }
+
+    public void skip() {
+        emit(OP_SKIP);
+    }
+
+    public void boundary(int boundaryClass) {
+        switch (boundaryClass) {
+            case '^':
+            case 'A':
+            case '$':
+            case 'z':
+            case 'Z':
+            case '<':
+            case '>':
+            case 'b':
+            case 'B':
+                emit(OP_BOUNDARY, boundaryClass);
+                break;
+            default:
+                throw new RuntimeException("Invalid boundary class: " + boundaryClass);
+        }
+    }
+
+    public void assert2(int charClass, char[] ranges) {
+        emit(OP_CLASS, charClass, ranges == null ? -1 : addToPool(ranges));
+    }
+
+    public void assert2(char[] constStr) {
+        emit(OP_CONST, addToPool(new String(constStr)));
+    }
+
+    public void assert2(String varName, boolean picked) {
+        int[] entry = vars.get(varName);
+        if (entry == null) {
+            if (picked)
+                throw new RuntimeException("Variable " + varName + " not known!");
+            entry = new int[]{varCells, varCells + 1, extCells++};
+            varCells += 2;
+            vars.put(varName, entry);
+        }
+        emit(OP_SUBST, entry[0], entry[1], entry[2]);
+    }
+
+    public void hardAssign(RVariable v, int value) {
+        emit(OP_HARDASSIGN, ((Variable) v).cell, value);
+    }
+
+    public void decjump(RVariable var, RLabel label) {
+        emit(OP_DECJUMP, ((Variable) var).cell, target(label));
+        fixup(pc - 1);
+    }
+
+    public void decfail(RVariable var) {
+        emit(OP_DECFAIL, ((Variable) var).cell);
+    }
+
+    public void forget(RVariable var) {
+    }
+
+    public void jump(RLabel label) {
+        emit(OP_JUMP, target(label));
+        fixup(pc - 1);
+    }
+
+    public void fail() {
+        emit(OP_FAIL);
+    }
+
+    //----- EXT_HINT extension
+
+    public void hint(int flags, int minLength, int maxLength) {
+        this.hints = flags;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+    }
+
+    public void requiredLiteral(String literal, int maxOffset) {
+        requiredLiteral = new RequiredLiteral(literal, maxOffset);
+    }
+
+    //----- EXT_MULTIFORK extension
+
+    public void mfStart(int headDecrement, int minCount) {
+        if (mfStartPc >= 0)
+            throw new IllegalStateException("Netsed mfStart-mfEnd calls or mfEnd call missing");
+        mfStartPc = pc;
+        mfHeadDecrement = headDecrement;
+        mfMinCount = minCount;
+        emit(OP_MFSTART, -1);
+    }
+
+    public void mfEnd(int maxCount) {
+        if (mfStartPc < 0)
+            throw new IllegalStateException("mfStart call missing");
+        if ((hints & HINT_CHAR_STAR_HEAD) != 0 && mfHeadDecrement != 1)
+            throw new RuntimeException("Internal error: HINT_CHAR_STAR_HEAD, but length != 1");
+        code[mfStartPc + 1] = pc;
+        int fork = addFork(pc, true);
+        emit(OP_MFEND, mfHeadDecrement, mfMinCount, maxCount, fork, mfStartPc + 2);
+        mfStartPc = -1;
+    }
+
+    //----- EXT_CONDJUMP extension
+
+    public void condJump(char[] ranges, RLabel label) {
+        emit(OP_CONDRANGES, addToPool(ranges), target(label));
+        fixup(pc - 1);
+    }
+
+    public void condJump(int atLeastCharLeft, int atMostCharLeft, RLabel label) {
+        emit(OP_CONDLEFT, atLeastCharLeft, target(label));
+        fixup(pc - 1);
+    }
+
+    public void condJump(char c, RLabel label) {
+        emit(OP_CONDCHAR, c, target(label));
+        fixup(pc - 1);
+    }
+
+    //----- EXT_SHIFTTBL extension
+
+    public void shiftTable(boolean beginning, int charsAhead, char[] chars, int[] shifts) {
+        emit(OP_SHIFTTABLE, charsAhead, addToPool(chars), addToPool(shifts));
+    }
+
+    //----- EXT_MEMO extension
+
+    public void memo() {
+        emit(OP_MEMO, memoPoints++);
+    }
+
+    //----- EXT_CUT extension
+
+    public void saveForks(RVariable var) {
+        emit(OP_SAVEFORKS, ((Variable) var).cell);
+    }
+
+    public void cut(RVariable var) {
+        emit(OP_CUT, ((Variable) var).cell);
+    }
+
+    public void savePosition(RVariable var) {
+        emit(OP_SAVEPOS, ((Variable) var).cell);
+    }
+
+    public void jumpIfSamePosition(RVariable var, RLabel label) {
+        emit(OP_SAMEPOS, ((Variable) var).cell, target(label));
+        fixup(pc - 1);
+    }
+}
@@ -7,11 +7,14 @@
 package com.humio.jitrex.jvm;
 
 import com.humio.jitrex.RegexRuntimeLimitException;
+import com.humio.jitrex.tree.RequiredLiteral;
 import com.humio.jitrex.util.Regex;
 import com.humio.jitrex.util.RegexRefiller;
 
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class JavaClassRegexStub extends Regex {
     /**
@@ -57,15 +60,29 @@ public abstract class JavaClassRegexStub extends Regex {
     protected int failCount;
 
     /**
-     * Number of back track operations done.
+     * Number of back track operations at which failCountReached() is called.
      */
     protected int failCountMax = Integer.MAX_VALUE;
 
+    private int backtrackLimit = Integer.MAX_VALUE;
+
+    /**
+     * Back track operations between checks of the deadline and the cancel flag.
+     */
+    static final int CHECK_INTERVAL = 1 << 12;
+
     /**
      * Starting index for the next search/match.
      */
     protected int headStart;
 
+    /**
+     * Index that search() skips ahead to, as no match can start before it: for
+     * patterns that only match at the end, the end less their longest match.
+     * Anchored matching still starts at headStart.
+     */
+    protected int minSearchStart;
+
     /**
      * On successful match/search - index of the first character in matching string.
      */
@@ -96,6 +113,55 @@ public abstract class JavaClassRegexStub extends Regex {
      */
     protected RegexRefiller refiller;
 
+    /**
+     * String that every match contains, or null. Shared by all clones.
+     */
+    protected RequiredLiteral requiredLiteral;
+
+    /**
+     * Index of the first occurrence of requiredLiteral at or after literalFrom,
+     * Integer.MAX_VALUE if there is none, or -1 if not looked up yet.
+     */
+    protected int literalAt = -1;
+
+    /**
+     * Index where the last lookup of requiredLiteral started.
+     */
+    protected int literalFrom;
+
+    /**
+     * True while nextMatchInt() runs.
+     */
+    private boolean attempting;
+
+    /**
+     * Number of memo instructions in the code, see RMachine.memo(); 0 if the
+     * regex was not compiled with Regex.MEMOIZE.
+     */
+    protected int memoPoints;
+
+    /**
+     * True while matchWhole() runs code with memo instructions, which then
+     * only succeeds at the end of the input.
+     */
+    protected boolean wholeOnly;
+
+    /**
+     * Bit per memo instruction and position, set where the instruction has been
+     * executed. Made when first needed, and cleared when a search or match
+     * starts by going over the words that have bits set, so that clearing takes
+     * no longer than setting them did.
+     */
+    private long[] memo;
+    private int[] memoWords;
+    private int memoWordCount;
+
+    /**
+     * Upper limit on the size of memo, in longs. Inputs that would need more are
+     * matched without memoizing.
+     */
+    private static final int MAX_MEMO_WORDS = 1 << 21;
+
     protected JavaClassRegexStub() {
     }
 
@@ -202,7 +268,8 @@ public abstract class JavaClassRegexStub extends Regex {
     }
 
     public boolean searchAgain() {
-        failCount = 0;
+        resetFailCount();
+        clearMemo();
         searching = true;
         while (true) {
             while (headStart > maxStart) {
@@ -214,7 +281,7 @@ public abstract class JavaClassRegexStub extends Regex {
                 end = r;
                 maxStart = r; // TODO: optimize it, need a method to calculate maxStart
             }
-            if (nextMatchInt()) // modifies headStart on failure
+            if (attempt()) // modifies headStart on failure
             {
                 headStart = matchStart + 1; // so when we fail next time, we start at an offset
                 return true;
@@ -231,9 +298,17 @@ public abstract class JavaClassRegexStub extends Regex {
         return search();
     }
 
+    public void setSearchStart(int index) {
+        headStart = index;
+        forkPtr = 0;
+    }
+
     public boolean search() {
-        failCount = 0;
+        resetFailCount();
+        clearMemo();
         searching = true;
+        if (headStart < minSearchStart)
+            headStart = minSearchStart;
         while (true) {
             while (headStart > maxStart) {
                 if (refiller == null)
@@ -244,12 +319,14 @@ public abstract class JavaClassRegexStub extends Regex {
                 end = r;
                 maxStart = r; // TODO: optimize it, need a method to calculate maxStart
             }
+            if (requiredLiteral != null && refiller == null && !skipToLiteral())
+                return false;
             int oldHeadStart = headStart;
-            if (nextMatchInt()) // modifies headStart on failure
+            if (attempt()) // modifies headStart on failure
             {
                 matchStart = headStart;
                 // next time start after the end of just matched substring
-                if (matchStart < matchEnd && matchEnd < end)
+                if (matchStart < matchEnd && (matchEnd < end || refiller != null))
                     headStart = matchEnd;
                 else
                     headStart = matchEnd + 1;
@@ -262,11 +339,54 @@ public abstract class JavaClassRegexStub extends Regex {
         }
     }
 
+    /**
+     * Moves headStart to the first position where a match can start, given where
+     * the required literal occurs next. Returns false if there is no such position.
+     */
+    private boolean skipToLiteral() {
+        if (headStart < literalFrom || headStart > literalAt) {
+            literalFrom = headStart;
+            int q = requiredLiteral.indexOf(string, headStart, end);
+            literalAt = q < 0 ? Integer.MAX_VALUE : q;
+        }
+        if (literalAt == Integer.MAX_VALUE)
+            return false;
+        int maxOffset = requiredLiteral.maxOffset;
+        if (maxOffset != Integer.MAX_VALUE && literalAt - maxOffset > headStart)
+            headStart = literalAt - maxOffset;
+        return headStart <= maxStart;
+    }
+
+    /**
+     * Returns false if a match that starts at headStart cannot contain the
+     * required literal.
+     */
+    private boolean literalFollows() {
+        if (requiredLiteral == null || refiller != null || forkPtr != 0)
+            return true;
+        long limit = (long) headStart + requiredLiteral.maxOffset + requiredLiteral.literal.length();
+        int to = limit < end ? (int) limit : end;
+        return requiredLiteral.indexOf(string, headStart, to) >= 0;
+    }
+
     public boolean matchWhole() {
-        failCount = 0;
+        resetFailCount();
+        clearMemo();
         searching = false;
+        if (!literalFollows())
+            return false;
+        if (memoPoints != 0 && refiller == null) {
+            // what memo instructions remember is only right if failing means that
+            // nothing can match, so make everything but a whole match fail
+            wholeOnly = true;
+            try {
+                return attempt();
+            } finally {
+                wholeOnly = false;
+            }
+        }
         int lastMatchEnd = -1;
-        while (nextMatchInt()) {
+        while (attempt()) {
             if (matchEnd == end && refiller == null)
                 return true;
             if (matchEnd == lastMatchEnd)
@@ -279,9 +399,109 @@ public abstract class JavaClassRegexStub extends Regex {
     }
 
     public boolean match() {
-        failCount = 0;
+        resetFailCount();
+        clearMemo();
         searching = false;
-        return nextMatchInt();
+        if (!literalFollows())
+            return false;
+        return attempt();
+    }
+
+    /**
+     * Called by a memo instruction at position <i>head</i>: returns true if the
+     * instruction has been executed there before, otherwise remembers that it
+     * has been and returns false. Positions move when refilling, so then it
+     * always returns false.
+     */
+    protected final boolean memoized(int point, int head) {
+        if (refiller != null || head < start || head > end)
+            return false;
+        long bit = (long) (head - start) * memoPoints + point;
+        if (memo == null || memo.length <= bit >>> 6) {
+            long words = ((long) (end - start + 1) * memoPoints + 63) >>> 6;
+            if (words > MAX_MEMO_WORDS)
+                return false;
+            memo = new long[(int) words];
+            memoWords = new int[16];
+            memoWordCount = 0;
+        }
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long bits = memo[word];
+        if ((bits & mask) != 0)
+            return true;
+        if (bits == 0) {
+            if (memoWordCount == memoWords.length)
+                memoWords = Arrays.copyOf(memoWords, 2 * memoWordCount);
+            memoWords[memoWordCount++] = word;
+        }
+        memo[word] = bits | mask;
+        return false;
+    }
+
+    /**
+     * Removes the fork records in <i>forks</i> from <i>from</i> up to
+     * <i>forkPtr</i>, moving the assignment-reversion records down over them,
+     * and returns the new forkPtr. There must be no multiforks among them, so
+     * all the records are pairs. See RMachine.cut().
+     */
+    protected static int cutForks(int[] forks, int from, int forkPtr) {
+        int to = from;
+        for (int i = from; i < forkPtr; i += 2) {
+            if (forks[i + 1] >= 0) {
+                forks[to] = forks[i];
+                forks[to + 1] = forks[i + 1];
+                to += 2;
+            }
+        }
+        return to;
+    }
+
+    private void clearMemo() {
+        for (int i = 0; i < memoWordCount; i++)
+            memo[memoWords[i]] = 0;
+        memoWordCount = 0;
+    }
+
+    private boolean attempt() {
+        attempting = true;
+        try {
+            return nextMatchInt();
+        } finally {
+            attempting = false;
+        }
+    }
+
+    /**
+     * Subtracts shift from every index into the input, for a refiller that drops
+     * text it has already handed out. Indexes of dropped text become -1. Not
+     * possible while the generated code is running, as it keeps indexes in local
+     * variables.
+     */
+    public boolean shiftIndexes(int shift) {
+        if (attempting)
+            return false;
+        start -= shift;
+        end -= shift;
+        if (headStart != Integer.MAX_VALUE)
+            headStart -= shift;
+        maxStart -= shift;
+        minSearchStart -= shift;
+        matchStart -= shift;
+        matchEnd -= shift;
+        literalAt = -1;
+        Hashtable<String,int[]> vars = getVars();
+        if (cells != null && vars != null) {
+            for (int[] entry : vars.values()) {
+                if (entry[2] >= 0)
+                    continue; // indexes into an external buffer
+                for (int q = 0; q < 2; q++) {
+                    int cell = cells[entry[q]];
+                    cells[entry[q]] = cell >= shift ? cell - shift : -1;
+                }
+            }
+        }
+        return true;
     }
 
     public Regex cloneRegex() {
@@ -296,6 +516,9 @@ public abstract class JavaClassRegexStub extends Regex {
             System.arraycopy(extCells, 0, other.extCells, 0, extCells.length);
         }
         other.forks = new int[4];
+        other.memo = null;
+        other.memoWords = null;
+        other.memoWordCount = 0;
         return other;
     }
 
@@ -375,6 +598,48 @@ public abstract class JavaClassRegexStub extends Regex {
         return true;
     }
 
+    // Same as above for code generated with RJavaClassMachine.setStringInput(true).
+    // Calls on String are never megamorphic, so they can always be inlined.
+
+    protected static char charAt(String s, int i) {
+        return s.charAt(i);
+    }
+
+    protected static boolean charMatches(String input, int i, char expected) {
+        return input.charAt(i) == expected;
+    }
+
+    protected static char lowerCaseCharAt(String s, int i) {
+        return lowerCase(s.charAt(i));
+    }
+
+    protected static boolean charMatchesInsensitive(String input, int i, char expected) {
+        char ch = input.charAt(i);
+        return ch == expected || lowerCase(ch) == expected;
+    }
+
+    protected static boolean substringMatches(String input, int offset, String expected) {
+        return input.startsWith(expected, offset);
+    }
+
+    protected static boolean substringMatchesInsensitive(String input, int offset, String expected) {
+        int length = expected.length();
+        for (int i = 0; i < length; i++) {
+            if (!charMatchesInsensitive(input, offset + i, expected.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static char lowerCase(char ch) {
+        if (ch < 128) {
+            if (ch >= 'A' && ch <= 'Z')
+                return (char) ((int) ch + ('a' - 'A'));
+            return ch;
+        }
+        return Character.toLowerCase(ch);
+    }
+
     protected static int cmpUnixLineTerminator(char c) {
         return c - '\n';
     }
@@ -393,13 +658,41 @@ public abstract class JavaClassRegexStub extends Regex {
     }
 
     protected void backtrackLimitReached() {
-        throw new RegexRuntimeLimitException("regex backtrack limit reached", this.failCountMax);
+        throw new RegexRuntimeLimitException("regex backtrack limit reached", this.backtrackLimit);
+    }
+
+    /**
+     * Called when <i>failCount</i> back track operations reach failCountMax.
+     * Throws if the backtrack limit is reached, the cancel flag is set or the
+     * deadline has passed, and otherwise moves failCountMax on to when to check
+     * again. This keeps the code at each back track down to one comparison.
+     */
+    protected void failCountReached(int failCount) {
+        if (failCount >= backtrackLimit)
+            backtrackLimitReached();
+        checkDeadline();
+        failCountMax = nextCheck(failCount);
     }
 
-    public  void setBackTrackLimit(int i) { failCountMax = i; }
-    public  int getBackTrackLimit() { return failCountMax; }
+    private int nextCheck(int failCount) {
+        if (!hasDeadline())
+            return backtrackLimit;
+        return (int) Math.min(backtrackLimit, (long) failCount + CHECK_INTERVAL);
+    }
+
+    private void resetFailCount() {
+        failCount = 0;
+        failCountMax = nextCheck(0);
+    }
+
+    public  void setBackTrackLimit(int i) { backtrackLimit = i; failCountMax = nextCheck(failCount); }
+    public  int getBackTrackLimit() { return backtrackLimit; }
     public  int getBackTrackCount() { return failCount; }
 
+    public void setDeadline(long deadline) { super.setDeadline(deadline); failCountMax = nextCheck(failCount); }
+
+    public void setCancelFlag(AtomicBoolean flag) { super.setCancelFlag(flag); failCountMax = nextCheck(failCount); }
+
 }
 
 
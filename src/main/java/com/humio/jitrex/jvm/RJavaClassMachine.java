@@ -11,6 +11,7 @@ import com.humio.jitrex.compiler.RLabel;
 import com.humio.jitrex.compiler.RMachine;
 import com.humio.jitrex.compiler.RVariable;
 import com.humio.jitrex.tree.CharClassCodes;
+import com.humio.jitrex.tree.RequiredLiteral;
 import com.humio.jitrex.util.Regex;
 import com.humio.jitrex.util.RegexRefiller;
 import com.humio.util.jint.constants.TokenConst;
@@ -23,10 +24,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
@@ -59,15 +65,25 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     private static Integer TWO = 2;
     private static Integer THREE = 3;
     private static Integer MINUS_ONE = -1;
+    private static final String STRING_TYPE = "Ljava/lang/String;";
+    // entry points of the part methods, see setMaxMethodSize(); labels come after these
+    static final int ENTRY_FAIL = 0;
+    static final int ENTRY_START = 1;
+    static final int ENTRY_FIRST_LABEL = 2;
+    // what part methods return when they are done rather than at another entry point
+    static final int PART_MATCHED = -1;
+    static final int PART_FAILED = -2;
     String stringRep = "***jitrex***";
     String fullName = null;
     Hashtable<String, Variable[]> vars = new Hashtable<>();
     int varCells = 0;
     int extCells = 0;
+    int memoPoints = 0;
     LocalVariable[] extVarRegs;
     int minLength = 0;
     int maxLength = Integer.MAX_VALUE;
     int flags = 0;
+    RequiredLiteral requiredLiteral;
     CodeGenerator gen;
     Vector<AbstractMark> switchTable = new Vector<>();
     AbstractMark reallocMark;
@@ -111,12 +127,31 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     private boolean saveBytecode;
     boolean loadClass = true;
     private Class<? extends JavaClassRegexStub> compiledClass;
+    private int classSize;
+    private byte[] classBytes;
     private String compiledFrom = null;
     private boolean embedSearch;
     private boolean embed;
     boolean noRefiller;
+    boolean stringInput;
     boolean reportPosition;
     int maxLocalVariable;
+    // 0 to generate all matching code in nextMatchInt, see setMaxMethodSize()
+    int maxMethodSize;
+    // when splitting: the part method being generated, and its entry points
+    int part;
+    int entryCount = ENTRY_FIRST_LABEL;
+    Vector<Integer> entryParts = new Vector<>();
+    Vector<Integer> partEntryIds = new Vector<>();
+    Vector<AbstractMark> partEntryMarks = new Vector<>();
+    // labels the part refers to, some of which may be in other parts
+    Vector<Label> partRefs = new Vector<>();
+    AbstractMark partExitMark;
+    AbstractMark partPrologueMark;
+    // code size at the last place a part could have ended, and the most code between two such places
+    int lastSplitPoint;
+    int maxChunkSize;
+    private int largestMethodSize;
 
     private RJavaClassCustomizer customizer;
 
@@ -136,7 +171,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     };
 
     public RJavaClassMachine() {
-        setExtensions(EXT_HINT | EXT_MULTIFORK | EXT_SHIFTTBL | EXT_CONDJUMP);
+        setExtensions(EXT_HINT | EXT_MULTIFORK | EXT_SHIFTTBL | EXT_CONDJUMP | EXT_MEMO | EXT_CUT);
         charArrType = "[" + charType;
         charSequenceType = "java/lang/CharSequence";
         charSequenceType = "L" + "java/lang/CharSequence" + ";";
@@ -146,7 +181,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     private void simpleLocalAlloc() {
         V_HEAD = new LocalVariable(1, "I");
-        V_STRING = new LocalVariable(2, charSequenceType);
+        V_STRING = new LocalVariable(2, inputType());
         V_CELLS = new LocalVariable(3, "[I");
         V_FORKS = new LocalVariable(4, "[I");
         V_FORKPTR = new LocalVariable(5, "I");
@@ -165,6 +200,57 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         this.noRefiller = noRefiller;
     }
 
+    /**
+     * If set, the generated code only works on java.lang.String input and calls
+     * String methods directly rather than through CharSequence, so that HotSpot
+     * can inline them no matter what other CharSequence types are around.
+     */
+    public void setStringInput(boolean stringInput) {
+        this.stringInput = stringInput;
+    }
+
+    /**
+     * Type of the input string in descriptors of the charAt helpers.
+     */
+    private String inputType() {
+        return stringInput ? STRING_TYPE : charSequenceType;
+    }
+
+    /**
+     * Splits the matching code over methods of at most about <i>size</i> bytes
+     * of bytecode each, rather than generating all of it in nextMatchInt, which
+     * the JVM limits to 64K. 0, the default, does not split.
+     * <p>
+     * The code is cut at instruction boundaries outside of multiforks. Each part
+     * is a method that takes the entry point to start at, keeps head and the fork
+     * stack in locals as usual, and returns the entry point to go on at when that
+     * is in another part, or whether it is done. Labels are entry points, and
+     * fork records hold entry points rather than indexes into a single switch.
+     * nextMatchInt calls the part that has the entry point until one is done.
+     * Jumps between parts cost a call and saving and loading fields, so this
+     * is slower than a single method, but it does not limit the size of the
+     * expression.
+     */
+    public void setMaxMethodSize(int size) {
+        maxMethodSize = size;
+    }
+
+    /**
+     * Bytes of bytecode in the largest method that holds matching code. HotSpot
+     * does not JIT compile methods of more than 8000 bytes unless it is run with
+     * -XX:-DontCompileHugeMethods, so larger ones run in the bytecode interpreter.
+     */
+    public int getLargestMethodSize() {
+        return largestMethodSize;
+    }
+
+    /**
+     * Number of methods that the matching code is in, see setMaxMethodSize().
+     */
+    public int getPartCount() {
+        return maxMethodSize > 0 ? part + 1 : 1;
+    }
+
     public void setCustomizer(RJavaClassCustomizer c) {
         customizer = c;
     }
@@ -185,6 +271,15 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         loadClass = needToLoadClass;
     }
 
+    /**
+     * Loads the class that finish() generated, if setLoadClass(false) kept it from doing so.
+     */
+    @SuppressWarnings("unchecked")
+    public void loadClass() {
+        if (compiledClass == null)
+            compiledClass = (Class<JavaClassRegexStub>) defineClass(thisClass, classBytes);
+    }
+
     public boolean getSaveBytecode() {
         return saveBytecode;
     }
@@ -275,23 +370,34 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
                 thisType = "L" + thisClass + ";";
                 V_THIS = new LocalVariable(0, thisType);
 
-                gen.startMethod(gen.ACC_PROTECTED, "nextMatchInt", "()Z", null);
-            }
+                if (maxMethodSize > 0)
+                    startPart();
+                else
+                    gen.startMethod(gen.ACC_PROTECTED, "nextMatchInt", "()Z", null);
+            } else
+                maxMethodSize = 0;
 
-            initStackDepth = gen.getStackDepth();
-            failMark = gen.newMark();
+            if (maxMethodSize == 0) {
+                initStackDepth = gen.getStackDepth();
+                failMark = gen.newMark();
+            }
 
             if ((flags & HINT_CHAR_STAR_HEAD) != 0) {
                 if (V_HEADINC == null)
                     V_HEADINC = allocator.allocVariable("I"); // never freed, never reused
-                gen.loadConst(1);
-                gen.store(V_HEADINC, "I");
+                // when splitting, the field is initialized instead
+                if (maxMethodSize == 0) {
+                    gen.loadConst(1);
+                    gen.store(V_HEADINC, "I");
+                }
             }
 
-            if (!embed) {
+            if (!embed && maxMethodSize == 0) {
                 gen.load(V_THIS, thisType);
                 gen.getfield(stubClass, "string", charSequenceType);
-                gen.store(V_STRING, charSequenceType);
+                if (stringInput)
+                    gen.cast(charSequenceType, STRING_TYPE);
+                gen.store(V_STRING, inputType());
 
                 gen.load(V_THIS, thisType);
                 gen.getfield(stubClass, "cells", "[I");
@@ -337,7 +443,11 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             V_TMP_CHAR1 = allocator.allocVariable(charType);  // never freed
 
             startMark = gen.newMark();
-            gen.mark(startMark);
+            if (maxMethodSize > 0) {
+                gen.mark(startMark, initStackDepth);
+                addEntry(ENTRY_START, startMark);
+            } else
+                gen.mark(startMark);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -489,6 +599,16 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     }
 
     private void refillIfHaveTo(int op, AbstractMark refilled, AbstractMark onFail) throws IOException {
+        refillIfHaveTo(op, refilled, onFail, null, 0);
+    }
+
+    /**
+     * If <i>attemptAt</i> is given, matchStart is set to its value less
+     * <i>ahead</i> before refilling, so that the refiller knows where the
+     * attempt in progress starts when it has moved on since nextMatchInt().
+     */
+    private void refillIfHaveTo(int op, AbstractMark refilled, AbstractMark onFail,
+                                LocalVariable attemptAt, int ahead) throws IOException {
         if (embed || (V_REFILLER == null))
             gen.jumpIf(false, op, "I", onFail);
         else {
@@ -513,6 +633,13 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             gen.jumpIf(false, invOp, "I", contMark);
             gen.load(V_REFILLER, refillerType);
             gen.jumpIf(true, gen.TOKEN_EE, refillerType, onFail);
+            if (attemptAt != null) {
+                gen.load(V_THIS, thisType);
+                gen.load(attemptAt, "I");
+                gen.loadConst(ahead);
+                gen.op('-', "I");
+                gen.putfield(stubClass, "matchStart", "I");
+            }
             if (refillMark == null)
                 refillMark = gen.newMark();
             gen.jsr(refillMark, 0);
@@ -540,224 +667,551 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         gen.store(V_FORKS, "[I");
     }
 
-    //----- finish
+    /**
+     * Subroutines that the code of the current method calls with jsr.
+     */
+    private void genSubroutines() throws IOException {
+        if (reallocMark != null) {
+            gen.mark(reallocMark);
+            gen.store(V_RET1, "L");
+            genRealloc();
+            gen.ret(V_RET1);
+        }
 
-    public void finish() {
-        try {
-            saveFields();
+        if (refillMark != null) {
 
-            if (embed)
-                gen.jump(matchSucceededMark);
-            else {
-                gen.load(V_THIS, thisType);
-                gen.load(V_HEAD, "I");
-                gen.putfield(stubClass, "matchEnd", "I");
+            // TODO: modify maxStart correctly
 
-                if (customizer != null)
-                    customizer.customSuccessAction(gen, V_STRING.getIndex(), V_CELLS.getIndex());
+            gen.mark(refillMark);
+            gen.store(V_RET1, "L");
+            gen.load(V_REFILLER, refillerType);
+            gen.load(V_THIS, thisType);
+            gen.load(V_END, "I");
+            gen.invokevirtual(refillerClass, "refill", refillSignature);
 
-                gen.loadConst(Boolean.TRUE);
-                gen.retrn("Z");
-            }
+            gen.load(V_THIS, thisType);
+            gen.getfield(stubClass, "refiller", refillerType);
+            gen.store(V_REFILLER, refillerType);
 
-            if (reallocMark != null) {
-                gen.mark(reallocMark);
-                gen.store(V_RET1, "L");
-                genRealloc();
-                gen.ret(V_RET1);
-            }
+            gen.dup("I");
+
+            gen.load(V_END, "I");
+            AbstractMark contMark = gen.newMark();
+            gen.jumpIf(false, '>', "I", contMark);
+            gen.load(V_REFILLER, refillerType);
+            gen.jumpIf(true, gen.TOKEN_EE, refillerType, contMark);
+
+            gen.load(V_THIS, thisType);
+            gen.loadConst(Integer.MAX_VALUE);
+            gen.putfield(stubClass, "headStart", "I");
+            genReturnFailed();
 
-            if (refillMark != null) {
+            gen.mark(contMark);
 
-                // TODO: modify maxStart correctly
+            gen.store(V_END, "I");
 
-                gen.mark(refillMark);
-                gen.store(V_RET1, "L");
-                gen.load(V_REFILLER, refillerType);
+            gen.load(V_THIS, thisType);
+            gen.load(V_END, "I");
+            gen.putfield(stubClass, "end", "I");
+
+            gen.load(V_THIS, thisType);
+            gen.getfield(stubClass, "string", charSequenceType);
+            if (stringInput)
+                gen.cast(charSequenceType, STRING_TYPE);
+            gen.store(V_STRING, inputType());
+
+            if ((flags & HINT_START_ANCHORED) == 0) {
                 gen.load(V_THIS, thisType);
                 gen.load(V_END, "I");
-                gen.invokevirtual(refillerClass, "refill", refillSignature);
+                if (minLength > 0)
+                    if (V_REFILLER == null) {
+                        gen.loadConst(minLength);
+                        gen.op('-', "I");
+                    } else {
+                        gen.load(V_REFILLER, refillerType);
+                        AbstractMark hasRefiller = gen.newMark();
+                        gen.jumpIf(true, gen.TOKEN_NE, refillerType, hasRefiller);
+                        gen.loadConst(minLength);
+                        gen.op('-', "I");
+                        gen.mark(hasRefiller);
+                    }
+                gen.putfield(stubClass, "maxStart", "I");
+            }
 
-                gen.load(V_THIS, thisType);
-                gen.getfield(stubClass, "refiller", refillerType);
-                gen.store(V_REFILLER, refillerType);
+            gen.ret(V_RET1);
+        }
 
-                gen.dup("I");
+        if (saveMark != null) {
+            gen.mark(saveMark);
+            gen.store(V_RET1, "L");
+            gen.store(V_TMP_INT1, "I");
+            // checkSize( 2 )
+            gen.load(V_FORKS, "[I");
+            gen.arraylength();
+            gen.load(V_FORKPTR, "I");
+            gen.op('-', "I");
+            gen.loadConst(2);
+            AbstractMark cont = gen.newMark();
+            gen.jumpIf(false, '>', "I", cont);
+            genRealloc();
+            gen.mark(cont);
 
-                gen.load(V_END, "I");
-                AbstractMark contMark = gen.newMark();
-                gen.jumpIf(false, '>', "I", contMark);
-                gen.load(V_REFILLER, refillerType);
-                gen.jumpIf(true, gen.TOKEN_EE, refillerType, contMark);
+            // save value
+            gen.load(V_FORKS, "[I");
+            gen.load(V_FORKPTR, "I");
+            gen.load(V_CELLS, "[I");
+            gen.load(V_TMP_INT1, "I");
+            gen.getelement("I");
+            gen.putelement("I");
+            // save cell number
+            gen.iinc(V_FORKPTR, 1);
+            gen.load(V_FORKS, "[I");
+            gen.load(V_FORKPTR, "I");
+            gen.load(V_TMP_INT1, "I");
+            gen.putelement("I");
+            gen.iinc(V_FORKPTR, 1);
+            gen.ret(V_RET1);
+        }
+    }
 
-                gen.load(V_THIS, thisType);
-                gen.loadConst(Integer.MAX_VALUE);
-                gen.putfield(stubClass, "headStart", "I");
-                gen.loadConst(Boolean.FALSE);
-                gen.retrn("Z");
+    /**
+     * Where the code of the current method goes on failure: back tracks to the last
+     * fork, or gives up on the current start position if there are none.
+     */
+    private void genFailHandler() throws IOException {
+        AbstractMark start = gen.newMark();
+        AbstractMark forkMark = gen.newMark();
 
-                gen.mark(contMark);
+        gen.mark(start, initStackDepth);
 
-                gen.store(V_END, "I");
+        gen.iinc(V_FORKPTR, -1);
+        gen.load(V_FORKS, "[I");
+        gen.load(V_FORKPTR, "I");
+        gen.getelement("I");
+        gen.iinc(V_FORKPTR, -1);
 
-                gen.load(V_THIS, thisType);
-                gen.load(V_END, "I");
-                gen.putfield(stubClass, "end", "I");
+        if (V_CELLS != null) {
+            gen.dup("I");
+            gen.jumpIf(true, '<', "I", forkMark);
 
-                gen.load(V_THIS, thisType);
-                gen.getfield(stubClass, "string", charSequenceType);
-                gen.store(V_STRING, charSequenceType);
+            gen.load(V_CELLS, "[I");
+            gen.swap();
+            gen.load(V_FORKS, "[I");
+            gen.load(V_FORKPTR, "I");
+            gen.getelement("I");
+            gen.putelement("I");
+        } else
+            gen.jump(forkMark);
 
-                if ((flags & HINT_START_ANCHORED) == 0) {
-                    gen.load(V_THIS, thisType);
-                    gen.load(V_END, "I");
-                    if (minLength > 0)
-                        if (V_REFILLER == null) {
-                            gen.loadConst(minLength);
-                            gen.op('-', "I");
-                        } else {
-                            gen.load(V_REFILLER, refillerType);
-                            AbstractMark hasRefiller = gen.newMark();
-                            gen.jumpIf(true, gen.TOKEN_NE, refillerType, hasRefiller);
-                            gen.loadConst(minLength);
-                            gen.op('-', "I");
-                            gen.mark(hasRefiller);
-                        }
-                    gen.putfield(stubClass, "maxStart", "I");
-                }
+        gen.mark(failMark, initStackDepth);
 
-                gen.ret(V_RET1);
-            }
+        gen.iinc(V_FAILCOUNT, 1);
 
-            if (saveMark != null) {
-                gen.mark(saveMark);
-                gen.store(V_RET1, "L");
-                gen.store(V_TMP_INT1, "I");
-                // checkSize( 2 )
-                gen.load(V_FORKS, "[I");
-                gen.arraylength();
-                gen.load(V_FORKPTR, "I");
-                gen.op('-', "I");
-                gen.loadConst(2);
-                AbstractMark cont = gen.newMark();
-                gen.jumpIf(false, '>', "I", cont);
-                genRealloc();
-                gen.mark(cont);
-
-                // save value
-                gen.load(V_FORKS, "[I");
-                gen.load(V_FORKPTR, "I");
-                gen.load(V_CELLS, "[I");
-                gen.load(V_TMP_INT1, "I");
-                gen.getelement("I");
-                gen.putelement("I");
-                // save cell number
-                gen.iinc(V_FORKPTR, 1);
-                gen.load(V_FORKS, "[I");
-                gen.load(V_FORKPTR, "I");
-                gen.load(V_TMP_INT1, "I");
-                gen.putelement("I");
-                gen.iinc(V_FORKPTR, 1);
-                gen.ret(V_RET1);
+        AbstractMark limit_not_reached = gen.newMark();
+        gen.load(V_FAILCOUNT, "I");
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "failCountMax", "I");
+        gen.jumpIf(false, '<', "I", limit_not_reached);
+
+        gen.load(V_THIS, thisType);
+        gen.load(V_FAILCOUNT, "I");
+        gen.invokevirtual(stubClass, "failCountReached", "(I)V");
+
+        gen.mark( limit_not_reached );
+        gen.load(V_FORKPTR, "I");
+        gen.jumpIf(true, gen.TOKEN_NE, "I", start);
+
+        saveFields();
+
+        // TODO: increment it more intelligently
+        if (embed) {
+            assert(!embedSearch);
+            gen.jump(matchFailedMark);
+        } else {
+            gen.load(V_THIS, thisType);
+            gen.load(V_THIS, thisType);
+            gen.getfield(stubClass, "headStart", "I");
+            if ((flags & HINT_CHAR_STAR_HEAD) != 0)
+                gen.load(V_HEADINC, "I");
+            else
+                gen.loadConst(1);
+            gen.op('+', "I");
+            gen.putfield(stubClass, "headStart", "I");
+            genReturnFailed();
+        }
+
+        gen.mark(forkMark); // fork id is on stack
+
+        // restore head
+        gen.load(V_FORKS, "[I");
+        gen.load(V_FORKPTR, "I");
+        gen.getelement("I");
+        gen.store(V_HEAD, "I");
+
+        if (maxMethodSize > 0) {
+            // entry id; go on here if it is in this method, otherwise return it
+            gen.op(UNARY_MINUS, "I");
+            gen.store(V_TMP_INT1, "I");
+            gen.load(V_TMP_INT1, "I");
+            AbstractMark elsewhere = gen.newMark();
+            genEntrySwitch(elsewhere);
+            gen.mark(elsewhere);
+            gen.load(V_TMP_INT1, "I");
+            gen.jump(partExitMark);
+            return;
+        }
+
+        if (switchTable.size() != 0) {
+            AbstractMark[] arr = new AbstractMark[switchTable.size()];
+            switchTable.copyInto(arr);
+            for (int i = 0; 2 * i < arr.length; i++) {
+                AbstractMark tmp = arr[i];
+                arr[i] = arr[arr.length - 1 - i];
+                arr[arr.length - 1 - i] = tmp;
             }
+            int min = -switchTable.size();
+            AbstractMark error = gen.newMark();
+            gen.tableswitch(min, arr, error);
+            gen.mark(error);
+        }
+        if (!embed) {
+            gen.load(V_THIS, thisType);
+            gen.invokevirtual(stubClass, "dumpForks", "()V");
+        }
+        gen.newobject("java/lang/IllegalStateException");
+        gen.dup("Ljava/lang/IllegalStateException;");
+        gen.loadConst("Internal error during jitrex matching");
+        gen.invokespecial("java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V");
+        gen.athrow();
+    }
+
+    //----- splitting into part methods, see setMaxMethodSize()
+
+    private void startPart() throws IOException {
+        gen.startMethod(gen.ACC_PRIVATE, "part" + part, "(I)I", null);
+        initStackDepth = gen.getStackDepth();
+        failMark = gen.newMark();
+        partPrologueMark = gen.newMark();
+        partExitMark = gen.newMark();
+        // subroutines are generated in every part that calls them
+        reallocMark = null;
+        refillMark = null;
+        saveMark = null;
+        partEntryIds.clear();
+        partEntryMarks.clear();
+        partRefs.clear();
+        addEntry(ENTRY_FAIL, failMark);
+        gen.jump(partPrologueMark);
+        lastSplitPoint = gen.getCodeSize();
+    }
+
+    private void addEntry(int id, AbstractMark mark) {
+        partEntryIds.addElement(id);
+        partEntryMarks.addElement(mark);
+    }
+
+    private int entryId(Label label) {
+        if (label.id < 0) {
+            label.id = entryCount++;
+            entryParts.setSize(entryCount);
+        }
+        return label.id;
+    }
 
+    /**
+     * The mark of <i>label</i> in the current method. When splitting, a label that
+     * is in another part gets a mark here that returns its entry point.
+     */
+    private AbstractMark markOf(RLabel label) throws IOException {
+        Label l = (Label) label;
+        if (maxMethodSize > 0 && l.part != part) {
+            l.mark = gen.newMark();
+            l.part = part;
+            l.defined = false;
+            partRefs.addElement(l);
+        }
+        return l.mark;
+    }
 
-            AbstractMark start = gen.newMark();
-            AbstractMark forkMark = gen.newMark();
+    private void defineLabel(Label label) throws IOException {
+        AbstractMark mark = markOf(label);
+        gen.mark(mark, initStackDepth);
+        label.defined = true;
+        int id = entryId(label);
+        entryParts.setElementAt(part, id);
+        addEntry(id, mark);
+    }
 
-            gen.mark(start, initStackDepth);
+    /**
+     * Starts the next part method if the current one has grown too large, leaving
+     * room for what endPart() adds. <i>next</i> is the label the caller is about
+     * to mark, if any, so that the previous part can go on there.
+     */
+    private void splitPoint(Label next) throws IOException {
+        if (maxMethodSize == 0 || embed || mfStartMark != null)
+            return;
+        // the code up to the next split point may be as large as the largest so far
+        int size = gen.getCodeSize();
+        maxChunkSize = Math.max(maxChunkSize, size - lastSplitPoint);
+        lastSplitPoint = size;
+        int reserve = 1024 + maxChunkSize + 16 * partEntryIds.size() + 8 * partRefs.size();
+        if (size < maxMethodSize - reserve)
+            return;
+        Label cont = next != null ? next : new Label();
+        if (gen.isReachable())
+            gen.jump(markOf(cont));
+        endPart();
+        part++;
+        startPart();
+        if (next == null)
+            defineLabel(cont);
+    }
+
+    private void endPart() throws IOException {
+        // labels in other parts
+        for (Label l : partRefs) {
+            if (l.defined)
+                continue;
+            gen.mark(l.mark, initStackDepth);
+            gen.loadConst(entryId(l));
+            gen.jump(partExitMark);
+        }
 
-            gen.iinc(V_FORKPTR, -1);
-            gen.load(V_FORKS, "[I");
-            gen.load(V_FORKPTR, "I");
-            gen.getelement("I");
-            gen.iinc(V_FORKPTR, -1);
+        // entry point to go on at is on the stack
+        gen.mark(partExitMark, initStackDepth + 1);
+        gen.store(V_TMP_INT1, "I");
+        saveFields();
+        gen.load(V_THIS, thisType);
+        gen.load(V_HEAD, "I");
+        gen.putfield(thisClass, "head", "I");
+        if (V_HEADINC != null) {
+            gen.load(V_THIS, thisType);
+            gen.load(V_HEADINC, "I");
+            gen.putfield(thisClass, "headInc", "I");
+        }
+        gen.load(V_TMP_INT1, "I");
+        gen.retrn("I");
 
-            if (V_CELLS != null) {
-                gen.dup("I");
-                gen.jumpIf(true, '<', "I", forkMark);
+        genSubroutines();
+        genFailHandler();
 
-                gen.load(V_CELLS, "[I");
-                gen.swap();
-                gen.load(V_FORKS, "[I");
-                gen.load(V_FORKPTR, "I");
-                gen.getelement("I");
-                gen.putelement("I");
-            } else
-                gen.jump(forkMark);
+        gen.mark(partPrologueMark, initStackDepth);
+        // the argument is in the local that head goes to
+        gen.load(V_HEAD, "I");
 
-            gen.mark(failMark, initStackDepth);
+        gen.load(V_THIS, thisType);
+        gen.getfield(thisClass, "head", "I");
+        gen.store(V_HEAD, "I");
 
-            gen.iinc(V_FAILCOUNT, 1);
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "string", charSequenceType);
+        if (stringInput)
+            gen.cast(charSequenceType, STRING_TYPE);
+        gen.store(V_STRING, inputType());
 
-            AbstractMark limit_not_reached = gen.newMark();
-            gen.load(V_FAILCOUNT, "I");
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "cells", "[I");
+        gen.store(V_CELLS, "[I");
+
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "forks", "[I");
+        gen.store(V_FORKS, "[I");
+
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "forkPtr", "I");
+        gen.store(V_FORKPTR, "I");
+
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "end", "I");
+        gen.store(V_END, "I");
+
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "failCount", "I");
+        gen.store(V_FAILCOUNT, "I");
+
+        if (V_REFILLER != null) {
             gen.load(V_THIS, thisType);
-            gen.getfield(stubClass, "failCountMax", "I");
-            gen.jumpIf(false, '<', "I", limit_not_reached);
+            gen.getfield(stubClass, "refiller", refillerType);
+            gen.store(V_REFILLER, refillerType);
+        }
 
+        if (V_HEADINC != null) {
             gen.load(V_THIS, thisType);
-            gen.invokevirtual(stubClass, "backtrackLimitReached", "()V");
+            gen.getfield(thisClass, "headInc", "I");
+            gen.store(V_HEADINC, "I");
+        }
 
-            gen.mark( limit_not_reached );
-            gen.load(V_FORKPTR, "I");
-            gen.jumpIf(true, gen.TOKEN_NE, "I", start);
+        AbstractMark error = gen.newMark();
+        genEntrySwitch(error);
+        gen.mark(error);
+        gen.newobject("java/lang/IllegalStateException");
+        gen.dup("Ljava/lang/IllegalStateException;");
+        gen.loadConst("Internal error during jitrex matching");
+        gen.invokespecial("java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V");
+        gen.athrow();
 
-            saveFields();
+        endMatchingMethod();
+    }
 
-            // TODO: increment it more intelligently
-            if (embed) {
-                assert(!embedSearch);
-                gen.jump(matchFailedMark);
-            } else {
-                gen.load(V_THIS, thisType);
-                gen.load(V_THIS, thisType);
-                gen.getfield(stubClass, "headStart", "I");
-                if ((flags & HINT_CHAR_STAR_HEAD) != 0)
-                    gen.load(V_HEADINC, "I");
-                else
-                    gen.loadConst(1);
-                gen.op('+', "I");
-                gen.putfield(stubClass, "headStart", "I");
-                gen.loadConst(Boolean.FALSE);
-                gen.retrn("Z");
-            }
+    /**
+     * Jumps to the entry point of the current part whose id is on the stack.
+     */
+    private void genEntrySwitch(AbstractMark otherwise) throws IOException {
+        int n = partEntryIds.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(partEntryIds::elementAt));
+        int[] ids = new int[n];
+        AbstractMark[] marks = new AbstractMark[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = partEntryIds.elementAt(order[i]);
+            marks[i] = partEntryMarks.elementAt(order[i]);
+        }
+        gen.lookupswitch(ids, marks, otherwise);
+    }
 
-            gen.mark(forkMark); // fork id is on stack
+    /**
+     * nextMatchInt when splitting: calls the part that has the entry point to go
+     * on at until one of them is done.
+     */
+    private void genDispatcher() throws IOException {
+        gen.startMethod(gen.ACC_PROTECTED, "nextMatchInt", "()Z", null);
+        LocalVariable state = new LocalVariable(1, "I");
 
-            // restore head
-            gen.load(V_FORKS, "[I");
-            gen.load(V_FORKPTR, "I");
-            gen.getelement("I");
-            gen.store(V_HEAD, "I");
+        if (V_HEADINC != null) {
+            gen.load(V_THIS, thisType);
+            gen.loadConst(1);
+            gen.putfield(thisClass, "headInc", "I");
+        }
 
-            if (switchTable.size() != 0) {
-                AbstractMark[] arr = new AbstractMark[switchTable.size()];
-                switchTable.copyInto(arr);
-                for (int i = 0; 2 * i < arr.length; i++) {
-                    AbstractMark tmp = arr[i];
-                    arr[i] = arr[arr.length - 1 - i];
-                    arr[arr.length - 1 - i] = tmp;
-                }
-                int min = -switchTable.size();
-                AbstractMark error = gen.newMark();
-                gen.tableswitch(min, arr, error);
-                gen.mark(error);
-            }
-            if (!embed) {
+        // if there are forks, start with them
+        AbstractMark loop = gen.newMark();
+        AbstractMark hasForks = gen.newMark();
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "forkPtr", "I");
+        gen.jumpIf(true, gen.TOKEN_NE, "I", hasForks);
+
+        gen.load(V_THIS, thisType);
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "headStart", "I");
+        gen.putfield(thisClass, "head", "I");
+        gen.load(V_THIS, thisType);
+        gen.load(V_THIS, thisType);
+        gen.getfield(stubClass, "headStart", "I");
+        gen.putfield(stubClass, "matchStart", "I");
+        gen.loadConst(ENTRY_START);
+        gen.store(state, "I");
+        gen.jump(loop);
+
+        gen.mark(hasForks);
+        gen.loadConst(ENTRY_FAIL);
+        gen.store(state, "I");
+
+        gen.mark(loop);
+        AbstractMark[] calls = new AbstractMark[part + 1];
+        for (int i = 0; i <= part; i++)
+            calls[i] = gen.newMark();
+        AbstractMark[] table = new AbstractMark[entryCount];
+        AbstractMark done = gen.newMark();
+        for (int id = 0; id < entryCount; id++) {
+            Integer p = id < ENTRY_FIRST_LABEL ? Integer.valueOf(0) : entryParts.elementAt(id);
+            table[id] = p == null ? done : calls[p];
+        }
+        gen.load(state, "I");
+        gen.tableswitch(0, table, done);
+        for (int i = 0; i <= part; i++) {
+            gen.mark(calls[i]);
+            gen.load(V_THIS, thisType);
+            gen.load(state, "I");
+            gen.invokespecial(thisClass, "part" + i, "(I)I");
+            gen.store(state, "I");
+            gen.jump(loop);
+        }
+
+        gen.mark(done);
+        AbstractMark failed = gen.newMark();
+        gen.load(state, "I");
+        gen.loadConst(PART_MATCHED);
+        gen.jumpIf(false, gen.TOKEN_NE, "I", failed);
+        gen.loadConst(Boolean.TRUE);
+        gen.retrn("Z");
+        gen.mark(failed);
+        gen.loadConst(Boolean.FALSE);
+        gen.retrn("Z");
+        endMatchingMethod();
+
+        gen.addField(gen.ACC_PRIVATE, "head", "I", null);
+        if (V_HEADINC != null)
+            gen.addField(gen.ACC_PRIVATE, "headInc", "I", null);
+    }
+
+    private void endMatchingMethod() throws IOException {
+        largestMethodSize = Math.max(largestMethodSize, gen.getCodeSize());
+        gen.endMethod();
+    }
+
+    /**
+     * Returns from the matching method with no match at this start position.
+     */
+    private void genReturnFailed() throws IOException {
+        if (maxMethodSize > 0) {
+            gen.loadConst(PART_FAILED);
+            gen.retrn("I");
+        } else {
+            gen.loadConst(Boolean.FALSE);
+            gen.retrn("Z");
+        }
+    }
+
+    //----- finish
+
+    public void finish() {
+        try {
+            if (memoPoints != 0 && !embed) {
+                //--> if (wholeOnly && head != end) fail;
+                splitPoint(null);
+                AbstractMark matched = gen.newMark();
                 gen.load(V_THIS, thisType);
-                gen.invokevirtual(stubClass, "dumpForks", "()V");
+                gen.getfield(stubClass, "wholeOnly", "Z");
+                gen.jumpIf(true, gen.TOKEN_EE, "I", matched);
+                gen.load(V_HEAD, "I");
+                gen.load(V_END, "I");
+                gen.jumpIf(false, gen.TOKEN_NE, "I", failMark);
+                gen.mark(matched);
             }
-            gen.newobject("java/lang/IllegalStateException");
-            gen.dup("Ljava/lang/IllegalStateException;");
-            gen.loadConst("Internal error during jitrex matching");
-            gen.invokespecial("java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V");
-            gen.athrow();
+
+            saveFields();
 
             if (embed)
-                return;
+                gen.jump(matchSucceededMark);
+            else {
+                gen.load(V_THIS, thisType);
+                gen.load(V_HEAD, "I");
+                gen.putfield(stubClass, "matchEnd", "I");
 
-            gen.endMethod();
+                if (customizer != null)
+                    customizer.customSuccessAction(gen, V_STRING.getIndex(), V_CELLS.getIndex());
+
+                if (maxMethodSize > 0) {
+                    gen.loadConst(PART_MATCHED);
+                    gen.retrn("I");
+                } else {
+                    gen.loadConst(Boolean.TRUE);
+                    gen.retrn("Z");
+                }
+            }
+
+            if (maxMethodSize > 0) {
+                endPart();
+                genDispatcher();
+            } else {
+                genSubroutines();
+                genFailHandler();
+                if (embed)
+                    return;
+                endMatchingMethod();
+            }
 
             gen.addField(gen.ACC_STATIC | gen.ACC_PRIVATE, "vars", "Ljava/util/Hashtable;", null);
 
@@ -837,6 +1291,13 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             gen.newarray("I");
             gen.putfield(stubClass, "forks", "[I");
 
+            if (memoPoints != 0) {
+                //--> memoPoints = nMemoPoints;
+                gen.load(V_THIS, thisType);
+                gen.loadConst(memoPoints);
+                gen.putfield(stubClass, "memoPoints", "I");
+            }
+
             if (extCells != 0) {
                 //--> extCells = new char[nExtCells][];
                 gen.load(V_THIS, thisType);
@@ -914,6 +1375,10 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             } else {
                 gen.load(offVar, "I");
             }
+            gen.putfield(stubClass, "minSearchStart", "I");
+
+            gen.load(V_THIS, thisType);
+            gen.load(offVar, "I");
             gen.putfield(stubClass, "headStart", "I");
 
             if ((flags & HINT_START_ANCHORED) != 0 && (this.getExtensions() & FLAG_MULTILINE) == 0) {
@@ -966,6 +1431,13 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             gen.loadConst(ZERO);
             gen.putfield(stubClass, "failCount", "I");
 
+            if (requiredLiteral != null) {
+                //--> literalAt = -1;
+                gen.load(V_THIS, thisType);
+                gen.loadConst(MINUS_ONE);
+                gen.putfield(stubClass, "literalAt", "I");
+            }
+
             if (customizer != null)
                 customizer.customInitAction(gen);
 
@@ -985,6 +1457,8 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
                 dos.close();
 
                 byte[] body = baos.toByteArray();
+                classSize = body.length;
+                classBytes = body;
 
                 if (saveBytecode || ((getExtensions() & regexFlagToExtension(Regex._SAVE_BYTECODE)) != 0)) {
                     String name = thisClass + ".class";
@@ -994,8 +1468,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
                     System.out.println("*** WRITTEN " + name + " ***");
                 }
                 if (loadClass) {
-                    Loader loader = new Loader();
-                    compiledClass = (Class<JavaClassRegexStub>) loader.makeClass(thisClass, body);
+                    compiledClass = (Class<JavaClassRegexStub>) defineClass(thisClass, body);
                 }
             }
         } catch (IOException e) {
@@ -1004,8 +1477,23 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     }
 
     public Regex makeRegex() {
+        return newStub(compiledClass, requiredLiteral);
+    }
+
+    /**
+     * Makes a Regex from a class that finish() generated earlier, possibly in
+     * another process; see getClassBytes().
+     */
+    @SuppressWarnings("unchecked")
+    public static Regex loadRegex(String className, byte[] body, RequiredLiteral requiredLiteral) {
+        return newStub((Class<JavaClassRegexStub>) defineClass(className, body), requiredLiteral);
+    }
+
+    private static Regex newStub(Class<? extends JavaClassRegexStub> compiledClass, RequiredLiteral requiredLiteral) {
         try {
-            return compiledClass.getConstructor().newInstance();
+            JavaClassRegexStub stub = compiledClass.getConstructor().newInstance();
+            stub.requiredLiteral = requiredLiteral;
+            return stub;
         } catch (java.lang.VerifyError e) {
             throw new IllegalRegexException(IllegalRegexException.BadRegexCause.GENERATED_CLASS_INVALID,
                     "Generated code could not be verified", e);
@@ -1021,6 +1509,24 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         return null;
     }
 
+    /**
+     * The class file generated by finish(), which loadRegex() takes.
+     */
+    public byte[] getClassBytes() {
+        return classBytes;
+    }
+
+    public RequiredLiteral getRequiredLiteral() {
+        return requiredLiteral;
+    }
+
+    /**
+     * Size in bytes of the class file generated by finish().
+     */
+    public int getClassSize() {
+        return classSize;
+    }
+
     public int getNVars() {
         return vars.size();
     }
@@ -1057,6 +1563,8 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public RLabel newLabel() {
         Label l = new Label();
+        if (maxMethodSize > 0)
+            return l;
         try {
             l.mark = gen.newMark();
         } catch (IOException e) {
@@ -1069,6 +1577,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         Variable v = new Variable();
         v.cell = varCells++;
         try {
+            splitPoint(null);
             gen.loadConst(v.cell);
             if (saveMark == null)
                 saveMark = gen.newMark();
@@ -1085,6 +1594,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void hardAssign(RVariable v, int value) {
         try {
+            splitPoint(null);
             gen.load(V_CELLS, "[I");
             gen.loadConst(((Variable) v).cell);
             gen.loadConst(value);
@@ -1096,7 +1606,11 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void mark(RLabel label) {
         try {
-            gen.mark(((Label) label).mark, initStackDepth);
+            if (maxMethodSize > 0) {
+                splitPoint((Label) label);
+                defineLabel((Label) label);
+            } else
+                gen.mark(((Label) label).mark, initStackDepth);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1104,6 +1618,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void pick(RVariable v) {
         try {
+            splitPoint(null);
 
             gen.loadConst(((Variable) v).cell);
             if (saveMark == null)
@@ -1120,8 +1635,14 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void fork(RLabel forkLabel) {
         try {
-            switchTable.addElement(((Label) forkLabel).mark);
-            int index = switchTable.size();
+            splitPoint(null);
+            int index;
+            if (maxMethodSize > 0)
+                index = entryId((Label) forkLabel);
+            else {
+                switchTable.addElement(((Label) forkLabel).mark);
+                index = switchTable.size();
+            }
 
             checkSize(2);
 
@@ -1145,11 +1666,19 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     }
 
     private void genCharAt() {
+        genCharAt(inputType());
+    }
+
+    /**
+     * Reads a char from a string of the given type, which may be something other
+     * than the input, like the buffer of an external variable.
+     */
+    private void genCharAt(String type) {
         try {
             if ((getExtensions() & FLAG_IGNORECASE) == 0) {
-                gen.invokestatic(stubClass, "charAt", "(Ljava/lang/CharSequence;I)C");
+                gen.invokestatic(stubClass, "charAt", "(" + type + "I)C");
             } else {
-                gen.invokestatic(stubClass, "lowerCaseCharAt", "(Ljava/lang/CharSequence;I)C");
+                gen.invokestatic(stubClass, "lowerCaseCharAt", "(" + type + "I)C");
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -1159,9 +1688,9 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     private void genCharMatches() {
         try {
             if ((getExtensions() & FLAG_IGNORECASE) == 0) {
-                gen.invokestatic(stubClass, "charMatches", "(Ljava/lang/CharSequence;IC)Z");
+                gen.invokestatic(stubClass, "charMatches", "(" + inputType() + "IC)Z");
             } else {
-                gen.invokestatic(stubClass, "charMatchesInsensitive", "(Ljava/lang/CharSequence;IC)Z");
+                gen.invokestatic(stubClass, "charMatchesInsensitive", "(" + inputType() + "IC)Z");
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -1171,17 +1700,28 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     private void genSubstringMatches() {
         try {
             if ((getExtensions() & FLAG_IGNORECASE) == 0) {
-                gen.invokestatic(stubClass, "substringMatches", "(Ljava/lang/CharSequence;ILjava/lang/String;)Z");
+                gen.invokestatic(stubClass, "substringMatches", "(" + inputType() + "ILjava/lang/String;)Z");
             } else {
-                gen.invokestatic(stubClass, "substringMatchesInsensitive", "(Ljava/lang/CharSequence;ILjava/lang/String;)Z");
+                gen.invokestatic(stubClass, "substringMatchesInsensitive", "(" + inputType() + "ILjava/lang/String;)Z");
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Plain charAt on the input, without case folding.
+     */
+    private void genInputCharAt() throws IOException {
+        if (stringInput)
+            gen.invokevirtual("java/lang/String", "charAt", "(I)C");
+        else
+            gen.invokeinterface("java/lang/CharSequence", "charAt", "(I)C");
+    }
+
     public void skip() {
         try {
+            splitPoint(null);
             AbstractMark againMark = gen.newMark();
             gen.mark(againMark);
             gen.load(V_HEAD, "I");
@@ -1189,9 +1729,9 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             refillIfHaveTo(againMark);
 
             if ((this.getExtensions() & FLAG_DOT_IS_ANY) == 0) {
-                gen.load(V_STRING, charSequenceType);
+                gen.load(V_STRING, inputType());
                 gen.load(V_HEAD, "I");
-                gen.invokeinterface("java/lang/CharSequence", "charAt", "(I)C");
+                genInputCharAt();
                 gen.invokestatic(stubClass, "cmpLineTerminator", "(C)I");
                 gen.jumpIf(true, gen.TOKEN_EE, "I", failMark);
 //                gen.loadConst((int) '\n');
@@ -1207,6 +1747,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
     public void boundary(int type) {
         boolean multiline = (this.getExtensions() & FLAG_MULTILINE) == FLAG_MULTILINE;
         try {
+            splitPoint(null);
             switch (type) {
                 case '^':
                 case 'A':
@@ -1226,13 +1767,13 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
                             AbstractMark okMark = gen.newMark();
                             gen.jumpIf(false, gen.TOKEN_EE, "I", okMark);
 
-                            gen.load(V_STRING, charSequenceType);
+                            gen.load(V_STRING, inputType());
 
                             gen.load(V_HEAD, "I");
                             gen.loadConst(1);
                             gen.op('-', "I");
 
-                            gen.invokeinterface("java/lang/CharSequence", "charAt", "(I)C");
+                            genInputCharAt();
                             gen.invokestatic(stubClass, "cmpLineTerminator", "(C)I");
                             gen.jumpIf(true, gen.TOKEN_NE, "I", failMark);
                           //  gen.loadConst( '\n' );
@@ -1259,9 +1800,9 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
                         AbstractMark okMark = gen.newMark();
                         gen.jumpIf(false, gen.TOKEN_EE, "I", okMark);
 
-                        gen.load(V_STRING, charSequenceType);
+                        gen.load(V_STRING, inputType());
                         gen.load(V_HEAD, "I");
-                        gen.invokeinterface("java/lang/CharSequence", "charAt", "(I)C");
+                        genInputCharAt();
 
                         gen.invokestatic(stubClass, "cmpLineTerminator", "(C)I");
                         gen.jumpIf(true, gen.TOKEN_NE, "I", failMark);
@@ -1316,7 +1857,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
                     refillIfHaveTo(gen.TOKEN_EE, againMark, notWord);
 
-                    gen.load(V_STRING, charSequenceType);
+                    gen.load(V_STRING, inputType());
                     gen.load(V_HEAD, "I");
                     genCharAt();
                     gen.dup("I");
@@ -1365,7 +1906,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
                         gen.getfield(stubClass, "start", "I");
                         gen.jumpIf(false, gen.TOKEN_EE, "I", notWord);
                     }
-                    gen.load(V_STRING, charSequenceType);
+                    gen.load(V_STRING, inputType());
                     gen.load(V_HEAD, "I");
                     gen.loadConst(1);
                     gen.op('-', "I");
@@ -1406,6 +1947,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void assert2(int charClass, char[] ranges) {
         try {
+            splitPoint(null);
             AbstractMark againMark = gen.newMark();
             gen.mark(againMark);
             gen.load(V_HEAD, "I");
@@ -1415,7 +1957,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             // go through troubles only if not all possible characters
             if (ranges == null || ranges.length > 2 ||
                     ranges[0] != 0 || ranges[1] != 0xFFFF) {
-                gen.load(V_STRING, charSequenceType);
+                gen.load(V_STRING, inputType());
                 gen.load(V_HEAD, "I");
                 genCharAt();
                 if (ranges != null)
@@ -1477,7 +2019,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
         // Compare char-by-char.
         for (int i = 0; i < charsToUnroll; i++) {
-            gen.load(V_STRING, charSequenceType);
+            gen.load(V_STRING, inputType());
             gen.load(V_HEAD, "I");
             gen.loadConst((int) constStr[i]);
             genCharMatches();
@@ -1488,7 +2030,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         // For long strings unfolding char-by-char comparison generates a lot of code so at a certain point we instead
         // push the string to the constant pool and perform the comparison in a function.
         if (charsToUnroll < constStr.length) {
-            gen.load(V_STRING, charSequenceType);
+            gen.load(V_STRING, inputType());
             gen.load(V_HEAD, "I");
             gen.loadConst(new String(constStr).substring(charsToUnroll));
             genSubstringMatches();
@@ -1499,7 +2041,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void oldAssert2Comparison(char[] constStr) throws IOException {
         for (int i = 0; i < constStr.length; i++) {
-            gen.load(V_STRING, charSequenceType);
+            gen.load(V_STRING, inputType());
             gen.load(V_HEAD, "I");
             genCharAt();
             gen.loadConst((int) constStr[i]);
@@ -1510,6 +2052,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void assert2(char[] constStr) {
         try {
+            splitPoint(null);
             AbstractMark againMark = gen.newMark();
             gen.mark(againMark);
             gen.load(V_HEAD, "I");
@@ -1534,6 +2077,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void assert2(String varName, boolean picked) {
         try {
+            splitPoint(null);
             Variable[] v = vars.get(varName);
             if (v == null)
                 if (picked)
@@ -1601,10 +2145,11 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
             AbstractMark loopMark = gen.newMark();
             gen.mark(loopMark, initStackDepth);
-            gen.load(varStr, charSequenceType);
+            String varStrType = varStr == V_STRING ? inputType() : charSequenceType;
+            gen.load(varStr, varStrType);
             gen.load(V_TMP_INT1, "I");
-            genCharAt();
-            gen.load(V_STRING, charSequenceType);
+            genCharAt(varStrType);
+            gen.load(V_STRING, inputType());
             gen.load(V_HEAD, "I");
             genCharAt();
             gen.jumpIf(false, gen.TOKEN_NE, charType, failMark);
@@ -1625,6 +2170,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void decjump(RVariable var, RLabel label) {
         try {
+            splitPoint(null);
             Integer cell = ((Variable) var).cell;
             gen.loadConst(cell);
             if (saveMark == null)
@@ -1638,7 +2184,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             gen.op('-', "I");
             gen.insert("I", "2");
             gen.putelement("I");
-            gen.jumpIf(true, '>', "I", ((Label) label).mark);
+            gen.jumpIf(true, '>', "I", markOf(label));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1646,6 +2192,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void decfail(RVariable var) {
         try {
+            splitPoint(null);
             Integer cell = ((Variable) var).cell;
             gen.loadConst(cell);
             if (saveMark == null)
@@ -1670,7 +2217,8 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void jump(RLabel label) {
         try {
-            gen.jump(((Label) label).mark);
+            splitPoint(null);
+            gen.jump(markOf(label));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1678,6 +2226,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
     public void fail() {
         try {
+            splitPoint(null);
             gen.jump(failMark);
         } catch (IOException e) {
             e.printStackTrace();
@@ -1690,6 +2239,10 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         this.maxLength = maxLength;
     }
 
+    public void requiredLiteral(String literal, int maxOffset) {
+        requiredLiteral = new RequiredLiteral(literal, maxOffset);
+    }
+
     //---- extended instructions ----
     //----- EXT_HINT extension
 
@@ -1698,7 +2251,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             throw new IllegalStateException("Netsed mfStart-mfEnd calls or mfEnd call missing");
 
         try {
-
+            splitPoint(null);
             mfHeadDecrement = headDecrement;
             mfMinCount = minCount;
             mfSaveFailMark = failMark;
@@ -1771,8 +2324,16 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             gen.jump(forkPush);
 
             AbstractMark fork = gen.newMark();
-            switchTable.addElement(fork);
-            int index = switchTable.size();
+            int index;
+            if (maxMethodSize > 0) {
+                index = entryCount++;
+                entryParts.setSize(entryCount);
+                entryParts.setElementAt(part, index);
+                addEntry(index, fork);
+            } else {
+                switchTable.addElement(fork);
+                index = switchTable.size();
+            }
 
             gen.mark(fork, initStackDepth);
             //----- read special multifork item
@@ -1831,10 +2392,9 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
      * Jump if char is NOT in range
      */
     public void condJump(char[] ranges, RLabel label) {
-        AbstractMark onFail = failMark;
-        if (label != null)
-            onFail = ((Label) label).mark;
         try {
+            splitPoint(null);
+            AbstractMark onFail = label != null ? markOf(label) : failMark;
             AbstractMark againMark = gen.newMark();
             gen.mark(againMark);
             gen.load(V_HEAD, "I");
@@ -1843,7 +2403,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 
             // go through troubles only if not all possible characters
             if (ranges == null || ranges.length > 2 || ranges[0] != 0 || ranges[1] != 0xFFFF) {
-                gen.load(V_STRING, charSequenceType);
+                gen.load(V_STRING, inputType());
                 gen.load(V_HEAD, "I");
                 genCharAt();
                 gen.store(V_TMP_CHAR1, charType);
@@ -1865,10 +2425,9 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         if (!embed && (V_REFILLER != null))
             return; // this optimization is not available
 
-        AbstractMark onFail = failMark;
-        if (label != null)
-            onFail = ((Label) label).mark;
         try {
+            splitPoint(null);
+            AbstractMark onFail = label != null ? markOf(label) : failMark;
             if (atLeast > 0) {
                 gen.load(V_HEAD, "I");
                 gen.loadConst(atLeast);
@@ -1899,16 +2458,15 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
      * Jump if char is NOT one that is given.
      */
     public void condJump(char c, RLabel label) {
-        AbstractMark onFail = failMark;
-        if (label != null)
-            onFail = ((Label) label).mark;
         try {
+            splitPoint(null);
+            AbstractMark onFail = label != null ? markOf(label) : failMark;
             AbstractMark againMark = gen.newMark();
             gen.mark(againMark);
             gen.load(V_HEAD, "I");
             gen.load(V_END, "I");
             refillIfHaveTo(gen.TOKEN_GE, againMark, onFail);
-            gen.load(V_STRING, charSequenceType);
+            gen.load(V_STRING, inputType());
             gen.load(V_HEAD, "I");
             genCharAt();
             gen.loadConst(c);
@@ -1924,6 +2482,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             return;
 
         try {
+            splitPoint(null);
             AbstractMark skipMark = gen.newMark();
 
             if (!embed) {
@@ -1953,15 +2512,18 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
 	gen.invokevirtual( "java/io/PrintStream", "println", "(I)V" );
 	*/
 
+            // the refill subroutine is called with nothing on the stack; no match
+            // can start before V_TMP_INT1 - charsAhead, so the refiller may drop that
+            AbstractMark endReachedMark = gen.newMark();
             AbstractMark afterRefillMark = gen.newMark();
             gen.mark(afterRefillMark);
             gen.load(V_TMP_INT1, "I");
-            gen.load(V_TMP_INT1, "I");
             gen.load(V_END, "I");
-            refillIfHaveTo(gen.TOKEN_GE, afterRefillMark, returnPlus1Mark);
+            refillIfHaveTo(gen.TOKEN_GE, afterRefillMark, endReachedMark, V_TMP_INT1, charsAhead);
+            gen.load(V_TMP_INT1, "I");
 
             //gen.load(V_TMP1, "I");
-            gen.load(V_STRING, charSequenceType);
+            gen.load(V_STRING, inputType());
             gen.load(V_TMP_INT1, "I");
             genCharAt();
             // stack now has: lookup lookupChar
@@ -2026,6 +2588,10 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
             gen.op('+', "I");
             gen.jump(tryAgain);
 
+            gen.mark(endReachedMark);
+            gen.load(V_TMP_INT1, "I");
+            gen.jump(returnPlus1Mark);
+
             gen.mark(returnPlus1Mark);
             if (embed) {
                 gen.load(V_TMP_INT1, "I");
@@ -2039,8 +2605,7 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
                 gen.loadConst(1);
                 gen.op('+', "I");
                 gen.putfield(stubClass, "headStart", "I");
-                gen.loadConst(Boolean.FALSE);
-                gen.retrn("Z");
+                genReturnFailed();
             }
 
             gen.mark(zeroShift);
@@ -2062,14 +2627,142 @@ public class RJavaClassMachine extends RMachine implements CharClassCodes, Token
         }
     }
 
+    //----- EXT_MEMO extension
+
+    public void memo() {
+        try {
+            splitPoint(null);
+            gen.load(V_THIS, thisType);
+            gen.loadConst(memoPoints++);
+            gen.load(V_HEAD, "I");
+            gen.invokevirtual(stubClass, "memoized", "(II)Z");
+            gen.jumpIf(true, gen.TOKEN_NE, "I", failMark);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //----- EXT_CUT extension
+
+    public void saveForks(RVariable v) {
+        try {
+            splitPoint(null);
+            gen.load(V_CELLS, "[I");
+            gen.loadConst(((Variable) v).cell);
+            gen.load(V_FORKPTR, "I");
+            gen.putelement("I");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void cut(RVariable v) {
+        try {
+            splitPoint(null);
+            gen.load(V_FORKS, "[I");
+            gen.load(V_CELLS, "[I");
+            gen.loadConst(((Variable) v).cell);
+            gen.getelement("I");
+            gen.load(V_FORKPTR, "I");
+            gen.invokestatic(stubClass, "cutForks", "([III)I");
+            gen.store(V_FORKPTR, "I");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void savePosition(RVariable v) {
+        try {
+            splitPoint(null);
+            gen.load(V_CELLS, "[I");
+            gen.loadConst(((Variable) v).cell);
+            gen.load(V_HEAD, "I");
+            gen.putelement("I");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void jumpIfSamePosition(RVariable v, RLabel label) {
+        try {
+            splitPoint(null);
+            gen.load(V_HEAD, "I");
+            gen.load(V_CELLS, "[I");
+            gen.loadConst(((Variable) v).cell);
+            gen.getelement("I");
+            gen.jumpIf(false, gen.TOKEN_EE, "I", markOf(label));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     //----- EXT_SHIFTTBL extension
 
     static class Label extends RLabel {
         AbstractMark mark;
+        // when splitting: the entry point id, the part that mark is in, and whether it is marked there
+        int id = -1;
+        int part = -1;
+        boolean defined;
     }
 
     //----- loader
 
+    // Lookup.defineHiddenClass(byte[], boolean, ClassOption...), null before Java 15
+    private static final Method defineHiddenClass;
+    private static final Object noClassOptions;
+    // the generated classes are in this package, so this lookup may define them
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    static {
+        Method method = null;
+        Object options = null;
+        if (!Boolean.getBoolean("jitrex.noHiddenClasses")) {
+            try {
+                Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+                options = Array.newInstance(optionClass, 0);
+                method = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                        byte[].class, boolean.class, options.getClass());
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                method = null;
+            }
+        }
+        defineHiddenClass = method;
+        noClassOptions = options;
+    }
+
+    /**
+     * Defines a generated class. Where the JVM supports it, this is a hidden class,
+     * which is cheap to define and is unloaded as soon as nothing refers to it.
+     * Otherwise every class gets its own Loader, so that it can be unloaded with it.
+     */
+    static Class<?> defineClass(String name, byte[] body) {
+        if (defineHiddenClass != null) {
+            try {
+                Object definer = defineHiddenClass.invoke(lookup, body, false, noClassOptions);
+                return ((MethodHandles.Lookup) definer).lookupClass();
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof VerifyError)
+                    throw new IllegalRegexException(IllegalRegexException.BadRegexCause.REGEX_TOO_LONG, "given regular expression is too long");
+                if (cause instanceof ClassFormatError)
+                    throw new RuntimeException("Internal error: class format error: " + cause.getMessage());
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            } catch (IllegalAccessException e) {
+                // not expected, as the method is public; the loader still works
+            }
+        }
+        return new Loader().makeClass(name, body);
+    }
+
+    static boolean definesHiddenClasses() {
+        return defineHiddenClass != null;
+    }
+
     static class Loader extends ClassLoader {
 
         ClassLoader chain;
@@ -0,0 +1,115 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.jvm;
+
+import com.humio.jitrex.util.ProxyRegex;
+import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.RegexRefiller;
+
+import java.util.Enumeration;
+import java.util.function.Supplier;
+
+/**
+ * Runs one of two compiled versions of the same expression, depending on the type
+ * of the input given to init(): one generated with setStringInput(true) for String
+ * input, and one that works with any CharSequence.
+ * <p>
+ * Generated code that only ever sees String calls String.charAt directly, which
+ * HotSpot can always inline. Code that reads through CharSequence goes megamorphic
+ * as soon as a few input types have been seen, which slows down every expression.
+ * <p>
+ * The generic version is only compiled when input other than String shows up. It
+ * is compiled once and shared by all clones.
+ */
+public class StringSpecializedRegex extends ProxyRegex {
+
+    private final Generic generic;
+    private final Regex forString;
+    private Regex forOther;
+
+    public StringSpecializedRegex(Regex forString, Supplier<Regex> genericFactory) {
+        super(forString);
+        this.forString = forString;
+        this.generic = new Generic(genericFactory);
+    }
+
+    private StringSpecializedRegex(StringSpecializedRegex other) {
+        super(null);
+        generic = other.generic;
+        forString = other.forString.cloneRegex();
+        forOther = other.forOther == null ? null : other.forOther.cloneRegex();
+        regex = other.regex == other.forString ? forString : forOther;
+    }
+
+    private static final class Generic {
+        private final Supplier<Regex> factory;
+        private volatile Regex template;
+
+        Generic(Supplier<Regex> factory) {
+            this.factory = factory;
+        }
+
+        Regex newInstance() {
+            Regex t = template;
+            if (t == null) {
+                synchronized (this) {
+                    t = template;
+                    if (t == null)
+                        template = t = factory.get();
+                }
+            }
+            return t.cloneRegex();
+        }
+    }
+
+    /**
+     * Makes <i>to</i> the current regex, taking along the settings that are made
+     * before init().
+     */
+    private void switchTo(Regex to) {
+        Regex from = regex;
+        to.setBackTrackLimit(from.getBackTrackLimit());
+        to.setDeadline(from.getDeadline());
+        to.setCancelFlag(from.getCancelFlag());
+        Enumeration<String> vars = from.variables();
+        while (vars.hasMoreElements()) {
+            String var = vars.nextElement();
+            int ext = from.getExtVariableHandle(var);
+            if (ext < 0)
+                continue;
+            int begin = from.getVariableHandle(var, true);
+            int end = from.getVariableHandle(var, false);
+            to.setExtVariableBuffer(ext, from.getCharBuffer(ext));
+            to.setIndex(begin, from.getIndex(begin));
+            to.setIndex(end, from.getIndex(end));
+        }
+        regex = to;
+    }
+
+    private Regex forOther() {
+        if (forOther == null)
+            forOther = generic.newInstance();
+        return forOther;
+    }
+
+    public void init(CharSequence subject, int off, int len) {
+        Regex want = subject instanceof String ? forString : forOther();
+        if (want != regex)
+            switchTo(want);
+        regex.init(subject, off, len);
+    }
+
+    public void setRefiller(RegexRefiller refiller) {
+        // refilled buffers can be of any type
+        if (refiller != null && regex == forString)
+            switchTo(forOther());
+        regex.setRefiller(refiller);
+    }
+
+    public Regex cloneRegex() {
+        return new StringSpecializedRegex(this);
+    }
+}
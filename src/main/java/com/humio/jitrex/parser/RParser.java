@@ -131,6 +131,7 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
     public int parseImpl(char[] regex, int index, int maxIndex) {
         RNode prev = null;
         String vname = null;
+        ArrayList<RAltNode> alternatives = null;
         // Loop through all characters and process them
         // through the big switch statement. Subpatterns (inside
         // brackets) are processed recursively.
@@ -159,6 +160,7 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
                     }
 
                     boolean greedy;
+                    boolean possessive = false;
                     if (i + 1 >= maxIndex) {
                         greedy = true;
                     } else {
@@ -166,14 +168,20 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
                             greedy = false;
                             i++;
                         } else if (regex[i+1] == '+') {
-                            Object[] addInfo = {"posessive"};
-                            throw new CompilerException(ERR_R_BADSTART, index, addInfo);
+                            greedy = true;
+                            possessive = true;
+                            i++;
                         } else {
                             greedy = true;
                         }
                     }
 
-                    if (c == '?')
+                    if (possessive)
+                        if (c == '?') // (?>X?)
+                            prev = new RRepeatNode(pos, 1, 1, new RAltNode(pos, prev, null), true, true);
+                        else
+                            prev = new RRepeatNode(pos, (c == '*' ? 0 : 1), Integer.MAX_VALUE, prev, true, true);
+                    else if (c == '?')
                         if (greedy)
                             prev = new RAltNode(pos, prev, null);
                         else
@@ -220,13 +228,15 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
                             max = Integer.parseInt(new String(regex, comma + 1, i - comma - 1));
                     }
                     boolean greedy = i + 1 >= maxIndex || regex[i + 1] != '?';
-                    if (!greedy)
+                    boolean possessive = i + 1 < maxIndex && regex[i + 1] == '+';
+                    if (!greedy || possessive)
                         i++;
-                    prev = new RRepeatNode(pos, min, max, prev, greedy);
+                    prev = new RRepeatNode(pos, min, max, prev, greedy, possessive);
                 }
                 break;
                 case ')':
                     append(prev);
+                    appendAlternatives(alternatives);
                     return i;
                     /*
                 case '@': {
@@ -241,6 +251,7 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
                 case '(': {
                     int start = i;
                     int lookAheadFlag = 0;
+                    boolean atomic = false;
                     boolean keepFlagsAfterGroup = false;
                     append(prev);
                     RNode saveHead = head;
@@ -270,6 +281,10 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
                                     var = "";
                                     lookAheadFlag = regex[i];
                                     break;
+                                case '>':
+                                    var = "";
+                                    atomic = true;
+                                    break;
                                 case '<':
                                     int start2 = i;
                                     i = parseVariable(regex, i, maxIndex) + 1;
@@ -351,6 +366,8 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
                         prev = begin;
                         end.start = begin;
                         prev.tail = head;
+                        if (atomic)
+                            prev = new RRepeatNode(pos, 1, 1, prev, true, true);
                     }
                     head = saveHead;
                     tail = saveTail;
@@ -365,12 +382,13 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
                     prev = new RBoundaryNode(pos, c);
                     break;
                 case '|': {
+                    // alternatives are collected here and nested at the end, so
+                    // long lists like a|b|c|... do not need deep recursion
                     append(prev);
-                    RNode alt1 = head;
-                    head = null;
-                    tail = null;
-                    i = parseImpl(regex, i + 1, maxIndex) - 1;
-                    prev = new RAltNode(pos, alt1, head);
+                    prev = null;
+                    if (alternatives == null)
+                        alternatives = new ArrayList<>();
+                    alternatives.add(new RAltNode(pos, head, null));
                     head = null;
                     tail = null;
                 }
@@ -406,9 +424,28 @@ public class RParser implements CharClassCodes, MiniErrorCodes {
             }
         }
         append(prev);
+        appendAlternatives(alternatives);
         return maxIndex;
     }
 
+    /**
+     * Links the alternatives collected by parseImpl with the current chain, which
+     * is the last alternative. Nested to the right: a|(b|c).
+     */
+    private void appendAlternatives(ArrayList<RAltNode> alternatives) {
+        if (alternatives == null)
+            return;
+        RNode rest = head;
+        for (int k = alternatives.size() - 1; k >= 0; k--) {
+            RAltNode alt = alternatives.get(k);
+            alt.alt2 = rest;
+            rest = alt;
+        }
+        head = null;
+        tail = null;
+        append(rest);
+    }
+
     private boolean lasttail_is_empty(RNode prev) {
         if (prev == null)
             return true;
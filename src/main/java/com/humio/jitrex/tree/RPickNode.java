@@ -6,6 +6,8 @@
 */
 package com.humio.jitrex.tree;
 
+import com.humio.jitrex.util.Regex;
+
 import java.util.Dictionary;
 
 public class RPickNode extends RNode {
@@ -76,7 +78,9 @@ public class RPickNode extends RNode {
     public RNode markReferenced(Dictionary<String, RSubstNode> refList, Dictionary<String, RPickNode> pickList,
                                 boolean collapse) {
         referenced = refList.get(name) != null;
-        if (name.length() == 0 || (!referenced && collapse && Character.isDigit(name.charAt(0))))
+        // with NO_GROUPS, groups go unless they are referred to
+        if (name.length() == 0 || (!referenced && ((flags() & Regex.NO_GROUPS) != 0
+                || collapse && Character.isDigit(name.charAt(0)))))
             if (tail == null)
                 return null;
             else
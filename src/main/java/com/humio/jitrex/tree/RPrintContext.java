@@ -106,6 +106,8 @@ public class RPrintContext extends RContext {
             out.print("*");
         else
             out.print(regexRepeat.max);
+        if (regexRepeat.possessive)
+            out.print("+");
         out.print(",");
         regexRepeat.body.eval(this);
         out.print("]");
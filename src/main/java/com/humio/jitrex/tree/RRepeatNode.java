@@ -13,17 +13,24 @@ public class RRepeatNode extends RNode {
     public int min;
     public int max;
     public boolean greedy;
+    // once repeated, the body is not backtracked into: X*+, and (?>X) as X{1}+
+    public boolean possessive;
 
     public RRepeatNode(int pos, RNode body) {
         this(pos, 0, Integer.MAX_VALUE, body, true);
     }
 
     public RRepeatNode(int pos, int min, int max, RNode body, boolean greedy) {
+        this(pos, min, max, body, greedy, false);
+    }
+
+    public RRepeatNode(int pos, int min, int max, RNode body, boolean greedy, boolean possessive) {
         super(pos);
         this.min = min;
         this.max = max;
         this.body = body;
         this.greedy = greedy;
+        this.possessive = possessive;
     }
 
     public int getNCells() {
@@ -50,7 +57,11 @@ public class RRepeatNode extends RNode {
         else
             maxLength = Integer.MAX_VALUE;
 
-        if (addMaxLeft < Integer.MAX_VALUE
+        // each repetition of a possessive repeat takes the first way the body
+        // matches, even one that leaves too little for what follows
+        if (possessive)
+            body.prepare(Integer.MAX_VALUE, 0);
+        else if (addMaxLeft < Integer.MAX_VALUE
                 && maxLength < Integer.MAX_VALUE
                 && addMaxLeft + maxLength > 0)
             body.prepare(addMaxLeft + maxLength - maxl, addMinLeft + (min == 0 ? 0 : minLength - minl));
@@ -63,6 +74,11 @@ public class RRepeatNode extends RNode {
     public CharSet findPrefix(CharSet tailPrefix) {
         if (tail != null)
             tailPrefix = tail.findPrefix(tailPrefix);
+        if (possessive) {
+            CharSet set = body.findPrefix(CharSet.FULL_CHARSET);
+            prefix = min > 0 ? set : set.merge(tailPrefix);
+            return prefix;
+        }
         prefix = body.findPrefix(tailPrefix).merge(tailPrefix);
         CharSet set = body.findPrefix(prefix);
         if (min > 0)
@@ -0,0 +1,130 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.tree;
+
+/**
+ * A string that every match of a regex tree contains, together with an upper
+ * bound on how far from the start of the match it can be found.
+ * <p>
+ * Matchers use it to skip input that cannot contain a match: if the literal does
+ * not occur at or after some position, no match starts there, and a match can not
+ * start more than <i>maxOffset</i> characters before the next occurrence.
+ * <p>
+ * Only runs of case sensitive constants on the top level chain and inside
+ * mandatory first iterations of repeats are considered; alternatives are not
+ * looked into.
+ */
+public final class RequiredLiteral {
+
+    /**
+     * The literal that every match contains.
+     */
+    public final String literal;
+
+    /**
+     * Maximum distance from the start of a match to the literal, or
+     * Integer.MAX_VALUE if it is not bounded.
+     */
+    public final int maxOffset;
+
+    private final char first;
+
+    public RequiredLiteral(String literal, int maxOffset) {
+        this.literal = literal;
+        this.maxOffset = maxOffset;
+        this.first = literal.charAt(0);
+    }
+
+    /**
+     * Returns the longest literal that every match of the tree contains, or null
+     * if there is none.
+     */
+    public static RequiredLiteral find(RNode tree) {
+        Finder f = new Finder();
+        f.walk(tree, 0);
+        f.flush();
+        if (f.best == null)
+            return null;
+        return new RequiredLiteral(f.best, f.bestOffset);
+    }
+
+    /**
+     * Returns the index of the first occurrence of the literal that starts at or
+     * after <i>from</i> and ends at or before <i>to</i>, or -1 if there is none.
+     */
+    public int indexOf(CharSequence s, int from, int to) {
+        int length = literal.length();
+        int last = to - length;
+        if (from > last)
+            return -1;
+        if (s instanceof String) {
+            int q = ((String) s).indexOf(literal, from);
+            return q <= last ? q : -1;
+        }
+        for (int q = from; q <= last; q++) {
+            if (s.charAt(q) != first)
+                continue;
+            int i = 1;
+            while (i < length && s.charAt(q + i) == literal.charAt(i))
+                i++;
+            if (i == length)
+                return q;
+        }
+        return -1;
+    }
+
+    public String toString() {
+        return "\"" + literal + "\" at " + (maxOffset == Integer.MAX_VALUE ? "*" : "<=" + maxOffset);
+    }
+
+    private static int add(int offset, int length) {
+        if (offset == Integer.MAX_VALUE || length == Integer.MAX_VALUE || offset + length < 0)
+            return Integer.MAX_VALUE;
+        return offset + length;
+    }
+
+    private static class Finder {
+        final StringBuilder run = new StringBuilder();
+        int runOffset;
+        String best;
+        int bestOffset;
+
+        void flush() {
+            if (run.length() > 0 && (best == null || run.length() > best.length())) {
+                best = run.toString();
+                bestOffset = runOffset;
+            }
+            run.setLength(0);
+        }
+
+        /**
+         * Collects literals of the chain that starts at most <i>offset</i> chars
+         * into a match.
+         */
+        void walk(RNode p, int offset) {
+            for (; p != null; p = p.tail) {
+                if (p instanceof RConstNode && !p.isLowercase()) {
+                    if (run.length() == 0)
+                        runOffset = offset;
+                    run.append(((RConstNode) p).c);
+                    offset = add(offset, 1);
+                    continue;
+                }
+                // nodes that do not consume anything do not break a run
+                if (p instanceof RPickNode || p instanceof REmptyNode ||
+                        p instanceof RBoundaryNode || p instanceof RLookAheadNode)
+                    continue;
+                flush();
+                if (p instanceof RRepeatNode && ((RRepeatNode) p).min > 0) {
+                    // the first iteration is always there
+                    walk(((RRepeatNode) p).body, offset);
+                    flush();
+                }
+                offset = add(offset, p.maxLength);
+            }
+        }
+    }
+}
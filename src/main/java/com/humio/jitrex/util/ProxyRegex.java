@@ -6,10 +6,11 @@
 package com.humio.jitrex.util;
 
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ProxyRegex extends Regex {
 
-    Regex regex;
+    protected Regex regex;
 
     public ProxyRegex(Regex orig) {
         regex = orig;
@@ -51,6 +52,10 @@ public class ProxyRegex extends Regex {
         return regex.matchWhole();
     }
 
+    public void setSearchStart(int index) {
+        regex.setSearchStart(index);
+    }
+
     public int getIndex(int handle) {
         return regex.getIndex(handle);
     }
@@ -83,6 +88,10 @@ public class ProxyRegex extends Regex {
         regex.setRefilledBuffer(buffer);
     }
 
+    public boolean shiftIndexes(int shift) {
+        return regex.shiftIndexes(shift);
+    }
+
     public Regex cloneRegex() {
         ProxyRegex clone = (ProxyRegex) super.cloneRegex();
         clone.regex = regex.cloneRegex();
@@ -104,6 +113,26 @@ public class ProxyRegex extends Regex {
         return regex.getBackTrackCount();
     }
 
+    @Override
+    public void setDeadline(long deadline) {
+        regex.setDeadline(deadline);
+    }
+
+    @Override
+    public long getDeadline() {
+        return regex.getDeadline();
+    }
+
+    @Override
+    public void setCancelFlag(AtomicBoolean flag) {
+        regex.setCancelFlag(flag);
+    }
+
+    @Override
+    public AtomicBoolean getCancelFlag() {
+        return regex.getCancelFlag();
+    }
+
     public String toString() {
         return regex.toString();
     }
@@ -5,11 +5,13 @@
 */
 package com.humio.jitrex.util;
 
+import com.humio.jitrex.RegexRuntimeLimitException;
 import com.humio.util.jint.lang.CharString;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Regular expression interface definition and convenience methods.
@@ -50,6 +52,24 @@ public abstract class Regex implements Cloneable, FilenameFilter {
 
     public static final int _OLD_LONG_STRING_HANDLING = 0x10;
     public static final int _SAVE_BYTECODE = 0x20;
+    public static final int _NO_DFA = 0x40;
+    // generate code right away instead of interpreting first, see Pattern.setCompileThreshold()
+    public static final int _NO_INTERPRETER = 0x80;
+    // groups are not captured, for patterns that are only used to find or count matches
+    public static final int NO_GROUPS = 0x100;
+    // forks that have been tried at a position before are not tried again, see RMachine.memo()
+    public static final int MEMOIZE = 0x200;
+    // search without skipping to a literal every match must contain, see RequiredLiteral
+    public static final int _NO_LITERAL_SKIP = 0x400;
+
+    /**
+     * Chars gone over between checks of the deadline and the cancel flag, by
+     * engines that do not back track.
+     */
+    public static final int CHECK_CHARS = 1 << 16;
+
+    private long deadline = Long.MAX_VALUE;
+    private AtomicBoolean cancelFlag;
 
     public static Regex createRegex(String re) {
         if (factory == null)
@@ -174,6 +194,13 @@ public abstract class Regex implements Cloneable, FilenameFilter {
     abstract public boolean search();
     abstract public boolean search(int from);
 
+    /**
+     * Sets the position where the next search or match begins. Unlike search(int),
+     * the beginning of the range set up by init method is not changed, so boundary
+     * assertions still see the characters before this position.
+     */
+    abstract public void setSearchStart(int index);
+
     /**
      * Match the buffer (that was set up by init method) against
      * this jitrex. See description of this class for difference between search/match/matchWhole.
@@ -240,6 +267,15 @@ public abstract class Regex implements Cloneable, FilenameFilter {
      */
     abstract public void setRefilledBuffer(CharSequence buffer);
 
+    /**
+     * Subtracts <i>shift</i> from all indexes into the input, so that a refiller
+     * can keep the indexes of an endless input from overflowing. Returns false
+     * if this is not possible now, e.g. in the middle of a match attempt.
+     */
+    public boolean shiftIndexes(int shift) {
+        return false;
+    }
+
     public boolean matches(CharSequence arr, int off, int len) {
         init(arr, off, len);
         return match();
@@ -378,4 +414,52 @@ public abstract class Regex implements Cloneable, FilenameFilter {
     public abstract int getBackTrackLimit();
     public abstract int getBackTrackCount();
 
+    /**
+     * Makes matching give up with a RegexRuntimeLimitException once
+     * System.nanoTime() has passed <i>deadline</i>; Long.MAX_VALUE for no
+     * deadline. It is checked every few thousand back track operations, or
+     * every CHECK_CHARS chars by engines that do not back track. A subclass
+     * that does not call checkDeadline() ignores it.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Makes matching give up with a RegexRuntimeLimitException once <i>flag</i>
+     * is set, which can be done from another thread; null for none. It is
+     * checked as often as the deadline.
+     */
+    public void setCancelFlag(AtomicBoolean flag) {
+        cancelFlag = flag;
+    }
+
+    public AtomicBoolean getCancelFlag() {
+        return cancelFlag;
+    }
+
+    /**
+     * Whether there is a deadline or a cancel flag for checkDeadline() to check.
+     */
+    public boolean hasDeadline() {
+        return getDeadline() != Long.MAX_VALUE || getCancelFlag() != null;
+    }
+
+    /**
+     * Throws a RegexRuntimeLimitException if the cancel flag is set or the
+     * deadline has passed.
+     */
+    public void checkDeadline() {
+        AtomicBoolean flag = getCancelFlag();
+        if (flag != null && flag.get())
+            throw new RegexRuntimeLimitException("regex matching cancelled", getBackTrackCount());
+        long deadline = getDeadline();
+        if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0)
+            throw new RegexRuntimeLimitException("regex deadline passed", getBackTrackCount());
+    }
+
 }
@@ -0,0 +1,99 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.util;
+
+/**
+ * CharSequence view of a range of another CharSequence, which can be reset to
+ * another range without allocating. Nothing is copied, so the view shows the
+ * underlying chars as they are when it is read.
+ * <p>
+ * hashCode() is that of a String with the same chars, and equals() compares the
+ * chars of two SubSequences, so views can be hashed and compared without making
+ * Strings of them. As a String never equals a SubSequence, use contentEquals()
+ * to compare with one.
+ */
+public final class SubSequence implements CharSequence {
+
+    private CharSequence seq;
+    private int start;
+    private int end;
+
+    public SubSequence(CharSequence seq, int start, int end) {
+        reset(seq, start, end);
+    }
+
+    public void reset(CharSequence seq, int start, int end) {
+        if (start < 0 || start > end || end > seq.length())
+            throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " length=" + seq.length());
+        this.seq = seq;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Index in the underlying sequence where this one starts.
+     */
+    public int start() {
+        return start;
+    }
+
+    public int end() {
+        return end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start)
+            throw new IndexOutOfBoundsException("index=" + index + " length=" + (end - start));
+        return seq.charAt(start + index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > this.end - this.start)
+            throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " length=" + length());
+        return seq.subSequence(this.start + start, this.start + end);
+    }
+
+    /**
+     * Copies the chars to <i>dst</i> at <i>dstBegin</i>, like String.getChars().
+     */
+    public void getChars(char[] dst, int dstBegin) {
+        if (seq instanceof String) {
+            ((String) seq).getChars(start, end, dst, dstBegin);
+            return;
+        }
+        for (int i = start; i < end; i++)
+            dst[dstBegin++] = seq.charAt(i);
+    }
+
+    public boolean contentEquals(CharSequence other) {
+        int n = end - start;
+        if (other.length() != n)
+            return false;
+        for (int i = 0; i < n; i++)
+            if (seq.charAt(start + i) != other.charAt(i))
+                return false;
+        return true;
+    }
+
+    public int hashCode() {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + seq.charAt(i);
+        return h;
+    }
+
+    public boolean equals(Object obj) {
+        return obj instanceof SubSequence && contentEquals((SubSequence) obj);
+    }
+
+    public String toString() {
+        return seq.subSequence(start, end).toString();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+    Copyright (c) Humio, 2019
+    See file "LICENSE.md" for terms of usage and
+    redistribution.
+*/
+package com.humio.jitrex.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CharSequence view of a range of UTF-8 bytes, which can be reset to new bytes
+ * without allocating.
+ * <p>
+ * Input that is all ASCII is read straight from the byte array. Other input is
+ * decoded into a char buffer that is kept for the next reset, together with the
+ * byte offset of every char, so that match positions can be reported as byte
+ * offsets. Malformed bytes decode as U+FFFD, one per byte.
+ */
+public final class Utf8CharSequence implements CharSequence {
+
+    private byte[] bytes;
+    private int off;
+    private int len;
+    private boolean ascii;
+    private int length;
+    private char[] chars = new char[0];
+    // offsets[i] is the index in bytes where char i starts; offsets[length] is off + len
+    private int[] offsets = new int[1];
+
+    public Utf8CharSequence(byte[] bytes, int off, int len) {
+        reset(bytes, off, len);
+    }
+
+    public void reset(byte[] bytes, int off, int len) {
+        if (off < 0 || len < 0 || off > bytes.length - len)
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " length=" + bytes.length);
+        this.bytes = bytes;
+        this.off = off;
+        this.len = len;
+        int end = off + len;
+        int p = off;
+        while (p < end && bytes[p] >= 0)
+            p++;
+        ascii = p == end;
+        if (ascii) {
+            length = len;
+        } else {
+            decode(p - off);
+        }
+    }
+
+    private void decode(int asciiPrefix) {
+        if (chars.length < len) {
+            chars = new char[len];
+            offsets = new int[len + 1];
+        }
+        int n = 0;
+        for (; n < asciiPrefix; n++) {
+            chars[n] = (char) bytes[off + n];
+            offsets[n] = off + n;
+        }
+        int end = off + len;
+        int p = off + asciiPrefix;
+        while (p < end) {
+            int b = bytes[p];
+            offsets[n] = p;
+            if (b >= 0) {
+                chars[n++] = (char) b;
+                p++;
+                continue;
+            }
+            int size;
+            int cp;
+            if ((b & 0xE0) == 0xC0) {
+                size = 2;
+                cp = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                size = 3;
+                cp = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                size = 4;
+                cp = b & 0x07;
+            } else {
+                size = 0;
+                cp = 0;
+            }
+            int i = 1;
+            while (i < size && p + i < end && (bytes[p + i] & 0xC0) == 0x80) {
+                cp = (cp << 6) | (bytes[p + i] & 0x3F);
+                i++;
+            }
+            if (i != size || cp < MIN_VALUE[size] || cp > Character.MAX_CODE_POINT
+                    || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)) {
+                chars[n++] = '\uFFFD';
+                p++;
+            } else if (size == 4) {
+                chars[n++] = Character.highSurrogate(cp);
+                offsets[n] = p;
+                chars[n++] = Character.lowSurrogate(cp);
+                p += 4;
+            } else {
+                chars[n++] = (char) cp;
+                p += size;
+            }
+        }
+        offsets[n] = end;
+        length = n;
+    }
+
+    // smallest code point for each encoded length, to reject overlong forms
+    private static final int[] MIN_VALUE = {0, 0, 0x80, 0x800, 0x10000};
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int byteOffset() {
+        return off;
+    }
+
+    public int byteLength() {
+        return len;
+    }
+
+    /**
+     * Index in the byte array at which the char at <i>index</i> starts; length()
+     * maps to the end of the range.
+     */
+    public int toByteOffset(int index) {
+        return ascii ? off + index : offsets[index];
+    }
+
+    /**
+     * Index of the char that contains the byte at <i>byteOffset</i>.
+     */
+    public int toCharIndex(int byteOffset) {
+        if (byteOffset < off || byteOffset > off + len)
+            throw new IndexOutOfBoundsException("byte offset " + byteOffset);
+        if (ascii)
+            return byteOffset - off;
+        int lo = 0;
+        int hi = length;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= byteOffset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        // a code point that is two chars starts at the high surrogate
+        while (lo > 0 && offsets[lo - 1] == offsets[lo])
+            lo--;
+        return lo;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        if (ascii)
+            return (char) bytes[off + index];
+        return chars[index];
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        if (ascii)
+            return new String(bytes, off + start, end - start, StandardCharsets.ISO_8859_1);
+        return new String(chars, start, end - start);
+    }
+
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+}
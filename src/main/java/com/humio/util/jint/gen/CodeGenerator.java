@@ -345,6 +345,13 @@ public class CodeGenerator implements DefinitionConst, TokenConst {
         return reachable;
     }
 
+    /**
+     * Bytes of code generated so far for the current method, if known.
+     */
+    public int getCodeSize() {
+        return 0;
+    }
+
     public int getStackDepth() {
         return 0; // can return 0 if not checking
     }
@@ -623,6 +623,10 @@ public class JVMClassGenerator extends CodeGenerator implements JVMCodes {
         return codeAccInt.size();
     }
 
+    public int getCodeSize() {
+        return codeAccInt.size();
+    }
+
     void addTuneJump(int instrPC, int storePC, Label target) {
         toTune.push(new TuneJump(instrPC, storePC, target));
     }
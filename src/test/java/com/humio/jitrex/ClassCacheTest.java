@@ -0,0 +1,130 @@
+package com.humio.jitrex;
+
+import com.humio.jitrex.util.Regex;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(JUnit4.class)
+public class ClassCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void uninstall() {
+        Pattern.setClassCache(null);
+    }
+
+    private static void checkMatches(Pattern p) {
+        Matcher m = p.matcher("user=joe id=17");
+        assertTrue(m.find());
+        assertEquals("joe", m.group(1));
+        assertEquals("17", m.group(2));
+        assertEquals(2, p.groupCount());
+    }
+
+    @Test
+    public void loadsSavedClass() throws IOException {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath().resolve("classes"));
+        Pattern.setClassCache(cache);
+        String regex = "user=(\\w+) id=(\\d+)";
+        Pattern generated = Pattern.compile(regex, Regex._NO_INTERPRETER);
+        checkMatches(generated);
+        assertEquals(1, cache.getMissCount());
+
+        // as in a new process
+        cache = new ClassCache(cache.getDirectory());
+        Pattern.setClassCache(cache);
+        Pattern loaded = Pattern.compile(regex, Regex._NO_INTERPRETER);
+        assertEquals(1, cache.getHitCount());
+        assertTrue(loaded.isCompiled());
+        assertEquals(generated.codeSize(), loaded.codeSize());
+        checkMatches(loaded);
+
+        // other flags are another class
+        Pattern.compile(regex, Regex._NO_INTERPRETER | Pattern.CASE_INSENSITIVE);
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void loadedPatternSkipsInterpreter() {
+        Pattern.setClassCache(new ClassCache(folder.getRoot().toPath()));
+        String regex = "user=(\\w+) id=(\\d+)";
+        Pattern.compile(regex, Regex._NO_INTERPRETER);
+        Pattern p = Pattern.compile(regex);
+        assertTrue(p.isCompiled());
+        checkMatches(p);
+    }
+
+    @Test
+    public void ignoresDamagedFiles() throws IOException {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath());
+        Pattern.setClassCache(cache);
+        String regex = "user=(\\w+) id=(\\d+)";
+        Pattern.compile(regex, Regex._NO_INTERPRETER);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cache.getDirectory())) {
+            for (Path file : files)
+                Files.write(file, new byte[]{1, 2, 3});
+        }
+        checkMatches(Pattern.compile(regex, Regex._NO_INTERPRETER));
+        assertEquals(1, cache.getFailureCount());
+        assertEquals(0, cache.getHitCount());
+
+        // and written again
+        checkMatches(Pattern.compile(regex, Regex._NO_INTERPRETER));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void methodSizeIsPartOfKey() {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath());
+        Pattern.setClassCache(cache);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++)
+            sb.append(i == 0 ? "" : "|").append("key").append(i).append("=(\\d+)");
+        String regex = sb.toString();
+        Pattern.setMaxMethodSize(0);
+        try {
+            assertTrue(Pattern.compile(regex, Regex._NO_INTERPRETER).largestMethodSize() > Pattern.HUGE_METHOD_SIZE);
+        } finally {
+            Pattern.setMaxMethodSize(Pattern.HUGE_METHOD_SIZE);
+        }
+        Pattern split = Pattern.compile(regex, Regex._NO_INTERPRETER);
+        assertEquals(0, cache.getHitCount());
+        assertTrue(split.largestMethodSize() <= Pattern.HUGE_METHOD_SIZE);
+        assertTrue(Pattern.compile(regex, Regex._NO_INTERPRETER).isCompiled());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void rejectsDirectoryOthersCanWrite() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("shared");
+        assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        new ClassCache(directory);
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+        assertEquals(PosixFilePermissions.fromString("rwx------"), permissions);
+        permissions.add(PosixFilePermission.OTHERS_WRITE);
+        Files.setPosixFilePermissions(directory, permissions);
+        try {
+            new ClassCache(directory);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("written to by others"));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.humio.jitrex;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class FileSearchTest {
+
+    private static byte[] logLines() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("2019-01-01 host").append(i % 37).append(" ");
+            sb.append(i % 5 == 0 ? "ERROR disk " : "INFO ok ");
+            sb.append(i % 11 == 0 ? "Ærø " : "").append("id=").append(i).append('\n');
+        }
+        sb.append("ERROR last line without newline id=9");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Long> oneMatcher(Pattern p, byte[] bytes) {
+        List<Long> expected = new ArrayList<>();
+        Matcher m = p.matcher(bytes, 0, bytes.length);
+        while (m.find()) {
+            expected.add((long) m.start());
+            expected.add((long) m.end());
+        }
+        return expected;
+    }
+
+    @Test
+    public void sameAsOneMatcher() throws IOException {
+        byte[] bytes = logLines();
+        Pattern p = Pattern.compile("(?m)ERROR.*id=(\\d+)$");
+        List<Long> expected = oneMatcher(p, bytes);
+        assertEquals(1001 * 2, expected.size());
+
+        File file = File.createTempFile("filesearch", ".log");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[]{1, 100, 4096, FileSearch.DEFAULT_CHUNK_SIZE}) {
+                FileSearch search = new FileSearch(p);
+                search.setChunkSize(chunkSize);
+                search.setPool(pool);
+                List<Long> found = new ArrayList<>();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    search.search(channel, (start, end) -> {
+                        found.add(start);
+                        found.add(end);
+                    });
+                }
+                assertEquals("chunk size " + chunkSize, expected, found);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void anchorsSeeAcrossChunks() throws IOException {
+        byte[] bytes = logLines();
+        String[] regexes = {"^2019", "id=9$", "\\bhost1\\b", "\\A2019", "\\d\\z", "\\Bost", "ø \\w+", "x*",
+                "disk id=\\d+\\s+2019"};
+        for (String regex : regexes) {
+            Pattern p = Pattern.compile(regex);
+            List<Long> expected = oneMatcher(p, bytes);
+            for (int chunkSize : new int[]{1, 7, 100, 4096}) {
+                FileSearch search = new FileSearch(p);
+                search.setChunkSize(chunkSize);
+                List<Long> found = new ArrayList<>();
+                search.search(ByteBuffer.wrap(bytes), (start, end) -> {
+                    found.add(start);
+                    found.add(end);
+                });
+                assertEquals(regex + " chunk size " + chunkSize, expected, found);
+            }
+        }
+    }
+
+    @Test
+    public void bufferOffsetsAreFromPosition() throws IOException {
+        byte[] bytes = "skip\nfoo 1\nbar\nfoo 2\n".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(5);
+        FileSearch search = new FileSearch(Pattern.compile("foo \\d"));
+        search.setChunkSize(3);
+        List<Long> found = new ArrayList<>();
+        search.search(buffer, (start, end) -> found.add(start));
+        assertEquals(2, found.size());
+        assertEquals(0L, (long) found.get(0));
+        assertEquals(10L, (long) found.get(1));
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    public void handlerExceptionStopsSearch() throws IOException {
+        byte[] bytes = logLines();
+        FileSearch search = new FileSearch(Pattern.compile("ERROR"));
+        search.setChunkSize(64);
+        try {
+            search.search(ByteBuffer.wrap(bytes), (start, end) -> {
+                throw new IllegalStateException("stop");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("stop", e.getMessage());
+        }
+    }
+}
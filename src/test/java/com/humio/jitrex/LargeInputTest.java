@@ -1,6 +1,7 @@
 package com.humio.jitrex;
 
 import com.humio.jitrex.jvm.JavaClassRegexStub;
+import com.humio.jitrex.util.Regex;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -93,10 +94,10 @@ public class LargeInputTest {
     }
 
 
-    @Test
-    public void testSlowRegex() {
+    private static final String SLOW_PATTERN = "(([^:]+)://)?([^:/]+)(:([0-9]+))?(/.*)";
 
-        String input =            "{1:\n" + "this is some more text - and some more and some more and even more\n"
+    private static String slowInput() {
+        return "{1:\n" + "this is some more text - and some more and some more and even more\n"
                 + "this is some more text and some more and some more and even more\n"
                 + "this is some more text and some more and some more and even more\n"
                 + "this is some more text and some more and some more and even more\n"
@@ -138,10 +139,17 @@ public class LargeInputTest {
                 + "this is some more text and some more and some more and even more\n"
                 + "this is some more text and some more and some more and even more\n"
                 + "this is some more text and some more and some more and even more at the end\n" + "-}\n";
+    }
+
+    @Test
+    public void testSlowRegex() {
 
-        String pattern = "(([^:]+)://)?([^:/]+)(:([0-9]+))?(/.*)";
+        String input = slowInput();
 
-        Pattern p = Pattern.compile(pattern);
+        String pattern = SLOW_PATTERN;
+
+        // the DFA and the skip to the required '/' would both avoid the backtracking counted here
+        Pattern p = Pattern.compile(pattern, Regex._NO_DFA | Regex._NO_LITERAL_SKIP);
 
         Matcher m = p.matcher(input);
 
@@ -161,4 +169,20 @@ public class LargeInputTest {
         }
 
     }
+
+    @Test
+    public void testSlowRegexWithDFA() {
+        // the DFA rejects the input without backtracking at all
+        Matcher m = Pattern.compile(SLOW_PATTERN).matcher(slowInput());
+        Assert.assertFalse ( m.find() );
+        Assert.assertEquals( m.getBacktrackCount(), 0 );
+    }
+
+    @Test
+    public void testSlowRegexWithLiteralSkip() {
+        // there is no '/' in the input, so the backtracking matcher never starts
+        Matcher m = Pattern.compile(SLOW_PATTERN, Regex._NO_DFA).matcher(slowInput());
+        Assert.assertFalse ( m.find() );
+        Assert.assertEquals( m.getBacktrackCount(), 0 );
+    }
 }
@@ -1,6 +1,5 @@
 package com.humio.jitrex;
 
-import com.humio.jitrex.jvm.JavaClassRegexStub;
 import com.humio.jitrex.jvm.Sample;
 import com.humio.jitrex.jvm.Sample2;
 import com.humio.jitrex.tree.CharSet;
@@ -177,6 +176,83 @@ public class MatcherTest {
         assertEquals(2, m.groupCount());
     }
 
+    @Test
+    public void testGroupInto() {
+        patt = Pattern.compile("(?<key>\\w+)=(\\d*)");
+        Matcher m = patt.matcher("a=1 b= c=3");
+        StringBuilder sb = new StringBuilder();
+        while (m.find()) {
+            assertTrue(m.groupInto("key", sb));
+            assertTrue(m.groupInto(2, sb));
+            sb.append(';');
+        }
+        assertEquals("a1;b;c3;", sb.toString());
+        assertFalse(m.groupInto("nokey", sb));
+    }
+
+    @Test
+    public void testGroupView() {
+        patt = Pattern.compile("(?<key>\\w+)=(\\d*)");
+        Matcher m = patt.matcher("abc=12 b=");
+        assertTrue(m.find());
+        CharSequence key = m.groupView("key");
+        assertEquals("abc", key.toString());
+        assertEquals("12", m.groupView(2).toString());
+        assertEquals("abc".hashCode(), key.hashCode());
+        assertTrue(m.groupView(1).contentEquals("abc"));
+
+        // the same view, moved to the next match
+        assertTrue(m.find());
+        assertTrue(key == m.groupView(1));
+        assertEquals("b", key.toString());
+        assertEquals(0, m.groupView(2).length());
+        assertEquals(null, m.groupView("nokey"));
+    }
+
+    @Test
+    public void testToMatchResult() {
+        patt = Pattern.compile("(?<key>\\w+)=(\\d*)");
+        Matcher m = patt.matcher("abc=12 b=");
+        assertTrue(m.find());
+        MatchSnapshot first = m.toMatchResult();
+        assertTrue(m.find());
+        MatchSnapshot second = m.toMatchResult(new MatchSnapshot());
+        assertEquals(0, first.start());
+        assertEquals(6, first.end());
+        assertEquals("12", first.group(2));
+        assertEquals(2, first.groupCount());
+        assertEquals(7, second.start(1));
+        assertEquals("b=", second.group());
+
+        // reused
+        m.reset("x=1");
+        assertTrue(m.find());
+        assertTrue(first == m.toMatchResult(first));
+        assertEquals("1", first.group(2));
+    }
+
+    @Test
+    public void testMatchCollector() {
+        patt = Pattern.compile("(\\w+)=(\\d*)");
+        MatchCollector matches = new MatchCollector(2, 1);
+        assertEquals(3, matches.addAll(patt.matcher("a=1 bb=22 c=")));
+        assertEquals(1, matches.addAll(patt.matcher("dd=4")));
+        assertEquals(4, matches.size());
+        assertEquals(4, matches.start(1, 0));
+        assertEquals(9, matches.end(1, 0));
+        assertEquals(7, matches.start(1, 2));
+        assertEquals(12, matches.end(2, 2));
+        assertEquals(3, matches.start(3, 2));
+        matches.clear();
+        assertEquals(0, matches.size());
+        try {
+            matches.add(Pattern.compile("(x)").matcher("x"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @Test
     public void escapedTest() {
 
@@ -287,7 +363,7 @@ public class MatcherTest {
         patt = Pattern.compile("^(.*?,){11}P");
         Matcher m = patt.matcher("1,2,3,4,5,6,7,8,9,10,11,12");
         assertFalse(m.matches());
-        System.out.println ( " failcount= " + ((JavaClassRegexStub)m.re).getFailCount() );
+        System.out.println ( " failcount= " + m.getBacktrackCount() );
     }
 
 
@@ -323,7 +399,7 @@ public class MatcherTest {
         assertTrue(m.find());
         assertFalse(m.matches());
 
-        System.out.println ( " failcount= " + ((JavaClassRegexStub)m.re).getFailCount() );
+        System.out.println ( " failcount= " + m.getBacktrackCount() );
 
     }
 
@@ -458,7 +534,7 @@ public class MatcherTest {
 
         assertFalse(m.find());
 
-        System.out.println ( " failcount= " + ((JavaClassRegexStub)m.re).getFailCount() );
+        System.out.println ( " failcount= " + m.getBacktrackCount() );
     }
 
     @Test
@@ -579,12 +655,17 @@ public class MatcherTest {
 
     @Test()
     public void testTooMuchBytecode() {
-        try {
-            Pattern.compile(REGRESS_12012, Pattern.CASE_INSENSITIVE);
-            Assert.fail();
-        } catch (IllegalRegexException ire) {
-            assertEquals(IllegalRegexException.BadRegexCause.REGEX_TOO_LONG, ire.getReason());
-        }
+        // more code than fits in a method, so it is split over several
+        Pattern p = Pattern.compile(REGRESS_12012, Pattern.CASE_INSENSITIVE | Regex._NO_INTERPRETER);
+        assertTrue(p.isCompiled());
+        assertFalse(p.matcher("nothing to see here").find());
+    }
+
+    @Test
+    public void testTooMuchBytecodeInterpreted() {
+        Pattern p = Pattern.compile(REGRESS_12012, Pattern.CASE_INSENSITIVE);
+        assertFalse(p.isCompiled());
+        assertFalse(p.matcher("nothing to see here").find());
     }
 
     @Ignore("Crashes code generation")
@@ -0,0 +1,86 @@
+package com.humio.jitrex;
+
+import com.humio.util.jint.util.CompilerException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PatternCacheTest {
+
+    @Test
+    public void returnsSamePattern() {
+        PatternCache cache = new PatternCache(1 << 20);
+        Pattern p = cache.get("a(b+)c");
+        assertSame(p, cache.get("a(b+)c"));
+        assertNotSame(p, cache.get("a(b+)c", Pattern.CASE_INSENSITIVE));
+        assertEquals(Pattern.CASE_INSENSITIVE, cache.get("a(b+)c", Pattern.CASE_INSENSITIVE).flags());
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertTrue(p.codeSize() > 0);
+        assertEquals(2 * PatternCache.ENTRY_OVERHEAD + p.codeSize()
+                + cache.get("a(b+)c", Pattern.CASE_INSENSITIVE).codeSize(), cache.getWeight());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        Pattern probe = Pattern.compile("x0(\\d+)y");
+        long entryWeight = probe.codeSize() + PatternCache.ENTRY_OVERHEAD;
+        PatternCache cache = new PatternCache(3 * entryWeight + entryWeight / 2);
+        Pattern first = cache.get("x0(\\d+)y");
+        cache.get("x1(\\d+)y");
+        cache.get("x2(\\d+)y");
+        assertSame(first, cache.get("x0(\\d+)y"));
+        cache.get("x3(\\d+)y");
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(cache.getWeight() <= cache.getMaxWeight());
+        // x1 was least recently used
+        assertSame(first, cache.get("x0(\\d+)y"));
+        long misses = cache.getMissCount();
+        cache.get("x1(\\d+)y");
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        PatternCache cache = new PatternCache(1 << 20);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("a(b");
+                fail();
+            } catch (CompilerException e) {
+                // expected
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void compilesOncePerKey() throws Exception {
+        PatternCache cache = new PatternCache(1 << 24);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Pattern>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++)
+                futures.add(pool.submit(() -> cache.get("(\\w+)@(\\w+)\\.com")));
+            Pattern p = futures.get(0).get();
+            for (Future<Pattern> f : futures)
+                assertSame(p, f.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMissCount());
+    }
+}
@@ -0,0 +1,75 @@
+package com.humio.jitrex;
+
+import com.humio.jitrex.util.Regex;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PatternSetTest {
+
+    private static final String[] PATTERNS = {
+            "foo", "^foo", "foo$", "\\bbar\\b", "(?i)ERROR", "\\d{3}-\\d{4}", "(\\w+)@example\\.com",
+            "(a)\\1", "x(?=y)", "Tom|Sawyer", "(?m)^end$", "a.c", "",
+    };
+
+    private static final String[] INPUTS = {
+            "", "foo", "a foo b", "barfoo", "a bar", "error: disk", "call 555-1234", "tom@example.com",
+            "aa", "xy", "Tom Sawyer", "line\nend\n", "a\nc", "abc",
+    };
+
+    private static BitSet oneByOne(String[] patterns, String input, int flags) {
+        BitSet expected = new BitSet();
+        for (int i = 0; i < patterns.length; i++) {
+            if (Pattern.compile(patterns[i], flags).matcher(input).find())
+                expected.set(i);
+        }
+        return expected;
+    }
+
+    @Test
+    public void sameAsOneByOne() {
+        PatternSet set = PatternSet.compile(PATTERNS);
+        assertEquals(PATTERNS.length, set.size());
+        for (String input : INPUTS)
+            assertEquals("\"" + input + "\"", oneByOne(PATTERNS, input, 0), set.matches(input));
+    }
+
+    @Test
+    public void manyRules() {
+        List<String> rules = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            rules.add("user" + i + "\\b.*(?:failed|denied)");
+        PatternSet set = PatternSet.compile(rules, Pattern.CASE_INSENSITIVE);
+        BitSet found = set.matches("login for USER42 from 10.0.0.1 DENIED; user420 ok");
+        assertEquals(1, found.cardinality());
+        assertTrue(found.get(42));
+        assertTrue(set.matches("nothing to see").isEmpty());
+    }
+
+    @Test
+    public void fallsBackWhenStatesExplode() {
+        Random r = new Random(17);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+            sb.append(r.nextBoolean() ? 'a' : 'b');
+        sb.append('c');
+        String input = sb.toString();
+        String[] patterns = {"(?:a|b)*a(?:a|b){14}c", "b{20}", "d"};
+        assertEquals(oneByOne(patterns, input, 0), PatternSet.compile(patterns).matches(input));
+    }
+
+    @Test
+    public void noDFA() {
+        String[] patterns = {"foo", "bar"};
+        PatternSet set = PatternSet.compile(java.util.Arrays.asList(patterns), Regex._NO_DFA);
+        assertEquals(oneByOne(patterns, "a bar", 0), set.matches("a bar"));
+    }
+}
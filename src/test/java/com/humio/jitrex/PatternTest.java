@@ -3,6 +3,8 @@
 package com.humio.jitrex;
 
 import com.google.re2.ApiTestUtils;
+import com.humio.jitrex.util.Regex;
+import com.humio.jitrex.util.Utf8CharSequence;
 import com.humio.util.jint.util.CompilerException;
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -11,6 +13,13 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -23,6 +32,17 @@ import static org.junit.Assert.*;
 @RunWith(JUnit4.class)
 public class PatternTest {
 
+  /**
+   * Flags that run a pattern on each engine: the DFA, the interpreter and
+   * generated code.
+   */
+  private static final int[] ENGINES = {0, Regex._NO_DFA, Regex._NO_DFA | Regex._NO_INTERPRETER};
+
+  /**
+   * The engines that back track, for tests of back tracking itself.
+   */
+  private static final int[] BACKTRACKING = {Regex._NO_DFA, Regex._NO_DFA | Regex._NO_INTERPRETER};
+
   @Test
   public void testCompile() {
     Pattern p = Pattern.compile("abc");
@@ -220,14 +240,14 @@ public class PatternTest {
 
   @Test
   public void testInfiniteLoop() {
-    try {
-      Pattern p = Pattern.compile(".*?to\\s(.*+)\\s");
-      Matcher m = p.matcher("\tto xxx in sss");
-      assertEquals(true, m.find());
-      assertEquals("xxx in", m.group(1));
-    } catch (com.humio.util.jint.util.CompilerException e) {
-      // ok
-    }
+    // .*+ is possessive, so nothing is left for the last \s, as with java.util.regex
+    Pattern p = Pattern.compile(".*?to\\s(.*+)\\s");
+    Matcher m = p.matcher("\tto xxx in sss");
+    assertEquals(false, m.find());
+    p = Pattern.compile(".*?to\\s(.*)\\s");
+    m = p.matcher("\tto xxx in sss");
+    assertEquals(true, m.find());
+    assertEquals("xxx in", m.group(1));
 
   }
 
@@ -305,4 +325,358 @@ public class PatternTest {
     assertEquals(true, m.find());
   }
 
+  @Test
+  public void testCompileWhenHot() {
+    Pattern.setCompileThreshold(3, 1 << 20);
+    try {
+      Pattern p = Pattern.compile("(\\w+)@(\\w+)\\.com");
+      assertFalse(p.isCompiled());
+      int interpreted = p.codeSize();
+      assertTrue(interpreted > 0);
+      Matcher first = p.matcher("mail joe@example.com now");
+      String[] inputs = {"a@b.com", "x joe@example.com", "c@d.com"};
+      for (String input : inputs) {
+        assertTrue(p.matcher(input).find());
+      }
+      assertTrue(p.isCompiled());
+      assertTrue(p.codeSize() != interpreted);
+
+      // a matcher made before is switched on reset
+      assertTrue(first.find());
+      assertEquals("example", first.group(2));
+      first.reset("bob@host.com");
+      assertTrue(first.find());
+      assertEquals("bob", first.group(1));
+      assertEquals("host", first.group(2));
+    } finally {
+      Pattern.setCompileThreshold(10000, 1 << 20);
+    }
+  }
+
+  @Test
+  public void testCompileErrorsKeepInterpreting() {
+    Error[] errors = {new VerifyError("bad"), new ClassFormatError("bad"), new StackOverflowError()};
+    for (Error error : errors) {
+      TieredRegex.Tier tier = new TieredRegex.Tier(() -> {
+        throw error;
+      }, 1, Long.MAX_VALUE, 1);
+      tier.count(0);
+      assertFalse(tier.isCompiled());
+      assertTrue(tier.hasFailed());
+    }
+
+    // an error that is not the expression's fault is passed on, and compiling is tried again
+    int[] tries = {0};
+    TieredRegex.Tier tier = new TieredRegex.Tier(() -> {
+      tries[0]++;
+      throw new OutOfMemoryError();
+    }, 1, Long.MAX_VALUE, 1);
+    for (int i = 0; i < 2; i++) {
+      try {
+        tier.count(0);
+        fail("expected OutOfMemoryError");
+      } catch (OutOfMemoryError e) {
+        // expected
+      }
+    }
+    assertEquals(2, tries[0]);
+    assertFalse(tier.hasFailed());
+  }
+
+  @Test
+  public void testCompileEagerly() {
+    Pattern p = Pattern.compile("a(b+)c", Regex._NO_INTERPRETER);
+    assertTrue(p.isCompiled());
+    Matcher m = p.matcher("xabbc");
+    assertTrue(m.find());
+    assertEquals("bb", m.group(1));
+  }
+
+  @Test
+  public void testCompileAsync() throws Exception {
+    List<Runnable> tasks = new ArrayList<>();
+    CompletableFuture<Pattern> future = Pattern.compileAsync("(\\d+)-(\\d+)", 0, tasks::add);
+    assertFalse(future.isDone());
+    tasks.remove(0).run();
+    Pattern p = future.get();
+
+    // matches are served by the interpreter until the code generation task has run
+    assertFalse(p.isCompiled());
+    Matcher m = p.matcher("call 555-1234");
+    assertTrue(m.find());
+    assertEquals("1234", m.group(2));
+    assertEquals(1, tasks.size());
+    tasks.remove(0).run();
+    assertTrue(p.isCompiled());
+    m.reset("call 555-4321");
+    assertTrue(m.find());
+    assertEquals("4321", m.group(2));
+  }
+
+  @Test
+  public void testMaxMethodSize() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 40; i++)
+      sb.append(i == 0 ? "" : "|").append("key").append(i).append("=(\\d+)");
+    String regex = sb.toString();
+    int flags = Regex._NO_INTERPRETER;
+
+    Pattern.setMaxMethodSize(0);
+    try {
+      assertTrue(Pattern.compile(regex, flags).largestMethodSize() > Pattern.HUGE_METHOD_SIZE);
+    } finally {
+      Pattern.setMaxMethodSize(Pattern.HUGE_METHOD_SIZE);
+    }
+
+    Pattern p = Pattern.compile(regex, flags);
+    assertTrue(p.largestMethodSize() > 0);
+    assertTrue(p.largestMethodSize() <= Pattern.HUGE_METHOD_SIZE);
+    Matcher m = p.matcher("a key39=17 b");
+    assertTrue(m.find());
+    assertEquals("17", m.group(40));
+    assertFalse(p.matcher("key40=17").find());
+  }
+
+  @Test
+  public void testMatchBatch() {
+    CharSequence[] inputs = new CharSequence[100];
+    for (int i = 0; i < inputs.length; i++)
+      inputs[i] = i % 3 == 0 ? "id=" + i : "x id=" + i;
+    for (int f : ENGINES) {
+      Pattern p = Pattern.compile("id=\\d+", f);
+      long[] bits = {-1, -1, -1};
+
+      assertEquals(34, p.matchBatch(inputs, 0, inputs.length, bits));
+      for (int i = 0; i < inputs.length; i++)
+        assertEquals(i % 3 == 0, (bits[i >>> 6] & (1L << i)) != 0);
+      assertEquals(-1, bits[2]);
+
+      assertEquals(100, p.findBatch(inputs, 0, inputs.length, bits));
+      assertEquals(-1L, bits[0]);
+      assertEquals((1L << 36) - 1, bits[1]);
+
+      // bits count from the first input of the range
+      assertEquals(2, p.matchBatch(inputs, 3, 7, bits));
+      assertEquals(0b1001, bits[0]);
+    }
+  }
+
+  private static List<String> findAllPositions(Pattern p, CharSequence input) {
+    List<String> res = new ArrayList<>();
+    Matcher m = p.matcher(input);
+    while (m.find())
+      res.add(m.start() + "-" + m.end() + ":" + m.group());
+    return res;
+  }
+
+  private static List<String> findAllGroups(Matcher m) {
+    List<String> res = new ArrayList<>();
+    while (m.find()) {
+      StringBuilder sb = new StringBuilder().append(m.start()).append('-').append(m.end());
+      for (int g = 0; g <= m.groupCount(); g++)
+        sb.append(':').append(m.group(g));
+      res.add(sb.toString());
+    }
+    return res;
+  }
+
+  private static List<String> findAllGroups(java.util.regex.Matcher m) {
+    List<String> res = new ArrayList<>();
+    while (m.find()) {
+      StringBuilder sb = new StringBuilder().append(m.start()).append('-').append(m.end());
+      for (int g = 0; g <= m.groupCount(); g++)
+        sb.append(':').append(m.group(g));
+      res.add(sb.toString());
+    }
+    return res;
+  }
+
+  /**
+   * Asserts that regex, compiled for each of <i>engines</i> with <i>flags</i>
+   * added, finds the same matches and groups as java.util.regex in every
+   * input, and agrees on matches().
+   */
+  private static void assertSameAsJava(int[] engines, int flags, String regex, String... inputs) {
+    java.util.regex.Pattern jdk = java.util.regex.Pattern.compile(regex);
+    for (int engine : engines) {
+      Pattern p = Pattern.compile(regex, engine | flags);
+      for (String in : inputs) {
+        String what = regex + " on \"" + in + "\" with flags " + (engine | flags);
+        assertEquals(what, findAllGroups(jdk.matcher(in)), findAllGroups(p.matcher(in)));
+        assertEquals(what, jdk.matcher(in).matches(), p.matcher(in).matches());
+      }
+    }
+  }
+
+  @Test
+  public void testMatchStream() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i <= 20000; i++)
+      sb.append(i % 7 == 0 ? "\n" : "user=u" + i + " id=" + i + (i % 3 == 0 ? "\r\n" : "\n"));
+    String input = sb.substring(0, sb.length() - 1);
+    byte[] bytes = input.replace("user", "\u00fcser").getBytes(StandardCharsets.UTF_8);
+    CharSequence[] inputs = {input, new Utf8CharSequence(bytes, 0, bytes.length)};
+    String[] patterns = {"id=(\\d+)", "(?m)^\\w+", "\\b\\d+$", "(?m)$", "\\d+\\s+\\w"};
+    for (CharSequence in : inputs) {
+      for (String regex : patterns) {
+        Pattern p = Pattern.compile(regex);
+        List<String> expected = findAllPositions(p, in);
+        assertFalse(regex, expected.isEmpty());
+        List<String> found = p.matchStream(in).parallel()
+            .map(r -> r.start() + "-" + r.end() + ":" + r.group())
+            .collect(Collectors.toList());
+        assertEquals(regex, expected, found);
+        // split unless a match can span lines
+        assertEquals(regex, !regex.contains("\\s"), p.matchStream(in).spliterator().trySplit() != null);
+      }
+    }
+
+    Matcher m = Pattern.compile("\\d+").matcher("a1 b22 c333");
+    assertTrue(m.find());
+    assertEquals(Arrays.asList("22", "333"),
+        m.results().map(MatchSnapshot::group).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testMatchStreamStartAnchors() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 5000; i++)
+      sb.append("abc line ").append(i).append('\n');
+    String input = sb.toString();
+    byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+    CharSequence[] inputs = {input, new Utf8CharSequence(bytes, 0, bytes.length)};
+    String[] patterns = {"\\Aabc", "^abc", "\\Aabc line \\d+", "(?m)^abc line 4\\d*"};
+    for (CharSequence in : inputs) {
+      for (String regex : patterns) {
+        Pattern p = Pattern.compile(regex);
+        assertNotNull(regex, p.matchStream(in).spliterator().trySplit());
+        List<String> expected = findAllPositions(p, in);
+        List<String> found = p.matchStream(in).parallel()
+            .map(r -> r.start() + "-" + r.end() + ":" + r.group())
+            .collect(Collectors.toList());
+        assertEquals(regex, expected, found);
+        java.util.regex.Matcher jm = java.util.regex.Pattern.compile(regex).matcher(input);
+        int n = 0;
+        while (jm.find())
+          n++;
+        assertEquals(regex, n, found.size());
+      }
+    }
+  }
+
+  @Test
+  public void testNoGroups() {
+    for (int engine : ENGINES) {
+      int f = engine | Pattern.NO_GROUPS;
+      Pattern p = Pattern.compile("(?<key>\\w+)=(\\d+)", f);
+      assertEquals(0, p.matcher("").groupCount());
+      Matcher m = p.matcher("a=1 b=x c=3 dd=44");
+      assertTrue(m.find());
+      assertEquals("a=1", m.group());
+      assertEquals(2, m.count());
+      m.reset();
+      assertEquals(3, m.count());
+
+      // referred to, so still captured
+      Pattern backref = Pattern.compile("(\\w)\\1", f);
+      assertEquals(1, backref.matcher("ab cc").count());
+    }
+  }
+
+  @Test
+  public void testMemoize() {
+    String[] patterns = {"(a+)+b", "(a|aa)+?c", "(\\w+\\s?)*x", "(?:(a*)b|ab?)*c", "(\\w+)=\\1", "(a|b){2,3}c", "x(?=a+)a"};
+    String[] inputs = {"aaab", "aaaac", "ab ba x", "abab c", "aba=aba", "ababc", "xa", "aaaaaaaaaaaa", ""};
+    for (String regex : patterns)
+      assertSameAsJava(BACKTRACKING, Pattern.MEMOIZE, regex, inputs);
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 40; i++)
+      sb.append('a');
+    String input = sb + "cb";
+    for (int f : BACKTRACKING) {
+      Matcher m = Pattern.compile("(a+)+b", f | Pattern.MEMOIZE).matcher(input);
+      m.setBacktrackLimit(100000);
+      assertFalse(m.find());
+      m = Pattern.compile("(a+)+b", f).matcher(input);
+      m.setBacktrackLimit(100000);
+      try {
+        m.find();
+        fail("expected to give up");
+      } catch (RegexRuntimeLimitException e) {
+        // exponential without MEMOIZE
+      }
+    }
+  }
+
+  @Test
+  public void testDeadlineAndCancel() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 40; i++)
+      sb.append('a');
+    String input = sb + "c";
+    for (int f : BACKTRACKING) {
+      Pattern p = Pattern.compile("(a+)+b", f);
+      Matcher m = p.matcher(input);
+      long t0 = System.nanoTime();
+      m.setDeadline(t0 + 50_000_000L);
+      try {
+        m.find();
+        fail("expected to give up");
+      } catch (RegexRuntimeLimitException e) {
+        assertEquals("regex deadline passed", e.getMessage());
+      }
+      assertTrue(System.nanoTime() - t0 < 5_000_000_000L);
+
+      AtomicBoolean cancel = new AtomicBoolean();
+      m = p.matcher(input);
+      m.setCancelFlag(cancel);
+      m.setBacktrackLimit(1000000);
+      cancel.set(true);
+      try {
+        m.find();
+        fail("expected to give up");
+      } catch (RegexRuntimeLimitException e) {
+        assertEquals("regex matching cancelled", e.getMessage());
+      }
+
+      // neither gets in the way of patterns that are done in time
+      cancel.set(false);
+      m = p.matcher("xaab");
+      m.setCancelFlag(cancel);
+      m.setDeadline(System.nanoTime() + 60_000_000_000L);
+      assertTrue(m.find());
+      assertEquals("aab", m.group());
+    }
+  }
+
+  @Test
+  public void testPossessive() {
+    String[][] cases = {
+        {"\"[^\"]*+\"", "a,\"b c\",\"\",d"},
+        {"a*+a", "aaaa"},
+        {"(?>a+)b", "aab"},
+        {"a++b", "aaab aac"},
+        {"(?>a|ab)c", "abc ac"},
+        {"(?:a|ab)c", "abc"},
+        {"x?+x", "x xx"},
+        {"a{2,}+a", "aaaa"},
+        {"a{2,}+b", "ab aaab"},
+        {"a{1,3}+a", "aaaa"},
+        {"(?>(a+)b|(a)c)", "aac"},
+        {"(?>(x)|y)z", "yz xz"},
+        {"\\w++\\d", "abc1 abc"},
+        {"(?:ab|a)++b", "ababb abab"},
+        {"(?:b?)*+[^a]b", "bbc"},
+        {"(?:b|)*+[^a]b", "bbc"},
+        {"(b?)*+[^a]b", "bbc"},
+        {"(b?)*+c", "bbc"},
+        {"(?>b?a*)*+c", "abcb"},
+    };
+    for (String[] c : cases) {
+      assertSameAsJava(ENGINES, 0, c[0], c[1]);
+      assertSameAsJava(ENGINES, Pattern.MEMOIZE, c[0], c[1]);
+    }
+  }
+
 }
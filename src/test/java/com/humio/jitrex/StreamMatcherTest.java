@@ -0,0 +1,170 @@
+package com.humio.jitrex;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class StreamMatcherTest {
+
+    private static final String[] PATTERNS = {
+            "foo", "(\\w+)@(\\w+)\\.com", "\\bbar\\b", "(?i)error (\\d+)", "(a)\\1+", "x[^x]*y", "(?m)^end$",
+            "\\d+", "q?",
+    };
+
+    private static final String INPUT = "foo bar tom@example.com ERROR 42 aaaa xzzzy\nend\nfoobar 123 barfoo bar";
+
+    /** Hands out the text a few chars at a time. */
+    private static final class Trickle extends Reader {
+        private final String text;
+        private final Random random = new Random(3);
+        private int pos;
+
+        Trickle(String text) {
+            this.text = text;
+        }
+
+        public int read(char[] cbuf, int off, int len) {
+            if (pos == text.length())
+                return -1;
+            int n = Math.min(Math.min(len, 1 + random.nextInt(3)), text.length() - pos);
+            text.getChars(pos, pos + n, cbuf, off);
+            pos += n;
+            return n;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static String findAll(Matcher m) {
+        StringBuilder sb = new StringBuilder();
+        while (m.find()) {
+            for (int g = 0; g <= m.groupCount(); g++)
+                sb.append(m.start(g)).append('-').append(m.end(g)).append(':').append(m.group(g)).append(' ');
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
+    private static String findAll(StreamMatcher m) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (m.find()) {
+            for (int g = 0; g <= m.groupCount(); g++)
+                sb.append(m.start(g)).append('-').append(m.end(g)).append(':').append(m.group(g)).append(' ');
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void sameAsMatcher() throws IOException {
+        for (String regex : PATTERNS) {
+            Pattern p = Pattern.compile(regex);
+            String expected = findAll(p.matcher(INPUT));
+            assertEquals(regex, expected, findAll(p.matcher(new StringReader(INPUT))));
+            assertEquals(regex, expected, findAll(p.matcher(new Trickle(INPUT))));
+            StreamMatcher m = p.matcher(new Trickle(INPUT));
+            m.setRebaseThreshold(4);
+            assertEquals(regex, expected, findAll(m));
+        }
+    }
+
+    @Test
+    public void channel() throws IOException {
+        byte[] bytes = "æøå foo".getBytes(StandardCharsets.UTF_8);
+        StreamMatcher m = Pattern.compile("f(o+)").matcher(Channels.newChannel(new ByteArrayInputStream(bytes)));
+        assertTrue(m.find());
+        assertEquals(4, m.start());
+        assertEquals("oo", m.group(1));
+        assertFalse(m.find());
+    }
+
+    /** Log lines with an error every <i>every</i> lines. */
+    private static Reader logLines(int lines, int every) {
+        return new Reader() {
+            private int line;
+            private String current = "";
+            private int pos;
+
+            public int read(char[] cbuf, int off, int len) {
+                if (pos == current.length()) {
+                    if (line == lines)
+                        return -1;
+                    current = "line " + line + (line % every == 0 ? " ERROR code=" + line : " ok") + "\n";
+                    line++;
+                    pos = 0;
+                }
+                int n = Math.min(len, current.length() - pos);
+                current.getChars(pos, pos + n, cbuf, off);
+                pos += n;
+                return n;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    @Test
+    public void longStreamInBoundedMemory() throws IOException {
+        int lines = 200000;
+        StreamMatcher m = Pattern.compile("ERROR code=(\\d+)").matcher(logLines(lines, 1000));
+        m.setRebaseThreshold(50000);
+        int found = 0;
+        long previous = -1;
+        while (m.find()) {
+            assertEquals(String.valueOf(found * 1000), m.group(1));
+            assertTrue(m.start() > previous);
+            previous = m.start();
+            found++;
+        }
+        assertEquals(lines / 1000, found);
+        assertTrue(previous > 2000000);
+        assertTrue(m.windowCapacity() <= 16384);
+    }
+
+    @Test
+    public void longGapBetweenMatches() throws IOException {
+        // the first two skip ahead with a shift table, which refills many times in one call
+        for (String regex : new String[]{"ERROR code=(\\d+)", "ERROR", "E.ROR"}) {
+            StreamMatcher m = Pattern.compile(regex).matcher(logLines(300000, 100000));
+            int found = 0;
+            while (m.find())
+                found++;
+            assertEquals(regex, 3, found);
+            assertTrue(regex, m.windowCapacity() <= 16384);
+        }
+    }
+
+    @Test
+    public void windowOnlyShowsKeptText() throws IOException {
+        StreamMatcher m = Pattern.compile("ERROR code=(\\d+)").matcher(logLines(10000, 5000));
+        assertTrue(m.find());
+        assertTrue(m.find());
+        CharSequence w = m.window();
+        // not rebased this early, so window indexes are stream offsets
+        int start = (int) m.start(1);
+        assertEquals("5000", w.subSequence(start, start + 4).toString());
+        assertEquals('5', w.charAt(start));
+        for (Runnable dropped : new Runnable[]{() -> w.charAt(0), () -> w.subSequence(0, start), w::toString,
+                () -> w.charAt(w.length())}) {
+            try {
+                dropped.run();
+                fail("expected IndexOutOfBoundsException");
+            } catch (IndexOutOfBoundsException e) {
+                // the first lines are no longer kept
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.humio.jitrex;
+
+import com.humio.jitrex.util.Utf8CharSequence;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class Utf8MatcherTest {
+
+    private static final String[] PATTERNS = {
+            "(\\w+)=(\\w+)", "(?i)(ÆBLE)", "é+", "(.)\\1", "^(.*)$", "x(\\S)y", "[^a-z ]+",
+    };
+
+    private static final String[] INPUTS = {
+            "", "key=value other=thing", "æble og Æble", "café éé", "aa ππ 😀😀", "x😀y xæy", "plain ascii",
+    };
+
+    private static int bytes(String s, int charIndex) {
+        return s.substring(0, charIndex).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Test
+    public void sameMatchesAsString() {
+        for (String regex : PATTERNS) {
+            Pattern p = Pattern.compile(regex);
+            Matcher bm = null;
+            for (String input : INPUTS) {
+                byte[] raw = ("<<" + input + ">>").getBytes(StandardCharsets.UTF_8);
+                if (bm == null)
+                    bm = p.matcher(raw, 2, raw.length - 4);
+                else
+                    bm.reset(raw, 2, raw.length - 4);
+                Matcher sm = p.matcher(input);
+                String where = "/" + regex + "/ on \"" + input + "\"";
+                while (sm.find()) {
+                    assertTrue(where, bm.find());
+                    for (int g = 0; g <= sm.groupCount(); g++) {
+                        assertEquals(where, sm.group(g), bm.group(g));
+                        if (sm.start(g) == -1) {
+                            assertEquals(where, -1, bm.start(g));
+                            continue;
+                        }
+                        assertEquals(where, 2 + bytes(input, sm.start(g)), bm.start(g));
+                        assertEquals(where, 2 + bytes(input, sm.end(g)), bm.end(g));
+                    }
+                }
+                assertFalse(where, bm.find());
+            }
+        }
+    }
+
+    @Test
+    public void findFromByteOffset() {
+        byte[] raw = "ø=1 å=2 a=3".getBytes(StandardCharsets.UTF_8);
+        Matcher m = Pattern.compile("(\\S)=(\\d)").matcher(raw, 0, raw.length);
+        assertTrue(m.find(4));
+        assertEquals("å", m.group(1));
+        assertEquals(5, m.start());
+        assertEquals(9, m.end());
+        assertTrue(m.find());
+        assertEquals("a=3", new String(raw, m.start(), m.end() - m.start(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void malformedInput() {
+        byte[] raw = {'a', (byte) 0xC3, 'b', (byte) 0xE2, (byte) 0x82, 'c', (byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80};
+        Utf8CharSequence s = new Utf8CharSequence(raw, 0, raw.length);
+        assertEquals("a�b��c😀", s.toString());
+        assertEquals(6, s.toByteOffset(6));
+        assertEquals(6, s.toByteOffset(7));
+        assertEquals(10, s.toByteOffset(8));
+        assertEquals(6, s.toCharIndex(8));
+        Matcher m = Pattern.compile("c(.+)").matcher(raw, 0, raw.length);
+        assertTrue(m.find());
+        assertEquals(6, m.start(1));
+        assertEquals(10, m.end(1));
+    }
+
+    @Test
+    public void resetLeavesOtherInputsAlone() {
+        byte[] first = "id=å1".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "id=ø2".getBytes(StandardCharsets.UTF_8);
+        Utf8CharSequence given = new Utf8CharSequence(first, 0, first.length);
+        Matcher m = Pattern.compile("=(\\S+)").matcher(given);
+        assertTrue(m.find());
+        MatchSnapshot fromGiven = m.toMatchResult();
+        m.reset(second, 0, second.length);
+        assertTrue(m.find());
+        assertEquals("ø2", m.group(1));
+        assertEquals("id=å1", given.toString());
+        assertEquals("å1", fromGiven.group(1));
+
+        // a snapshot over bytes the matcher decoded keeps reading those bytes
+        MatchSnapshot fromSecond = m.toMatchResult();
+        m.reset(first, 0, first.length);
+        assertTrue(m.find());
+        assertEquals("å1", m.group(1));
+        assertEquals("ø2", fromSecond.group(1));
+    }
+
+    @Test
+    public void indexesOutsideTheSliceAreRejected() {
+        for (String text : new String[]{"[abc]", "[åbc]"}) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            Utf8CharSequence seq = new Utf8CharSequence(bytes, 1, bytes.length - 2);
+            assertEquals(3, seq.length());
+            assertEquals('c', seq.charAt(2));
+            for (int index : new int[]{-1, 3}) {
+                try {
+                    seq.charAt(index);
+                    fail(text + " index " + index);
+                } catch (IndexOutOfBoundsException e) {
+                    // expected
+                }
+            }
+            try {
+                seq.subSequence(2, 4);
+                fail(text);
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+}
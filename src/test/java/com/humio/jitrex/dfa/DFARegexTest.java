@@ -0,0 +1,197 @@
+package com.humio.jitrex.dfa;
+
+import com.humio.jitrex.Matcher;
+import com.humio.jitrex.Pattern;
+import com.humio.jitrex.RegexRuntimeLimitException;
+import com.humio.jitrex.parser.RParser;
+import com.humio.jitrex.tree.RNode;
+import com.humio.jitrex.util.ProxyRegex;
+import com.humio.jitrex.util.Regex;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class DFARegexTest {
+
+    private static final String[] PATTERNS = {
+            "foo", "a|ab", "ab|a", "a*", "a+?", "(?:a|b)*c", "x{2,4}", "x{2,4}?", "[a-c]+",
+            "\\bfoo\\b", "\\Bo+", "^foo", "foo$", "(?m)^\\w+$", "(?i)FoO", "(?s)a.c", "a.c",
+            "[^a]+", "\\d{3}-\\d{4}", "(?:ab)+|a", "(?:a|ab)(?:c|bcd)", "\\w+@example\\.com",
+            ".*ERROR.*", "Tom|Sawyer|Huckleberry|Finn", "[a-q][^u-z]{3}x", "\\s+$", "",
+    };
+
+    private static final String[] INPUTS = {
+            "", "foo", "a foo b", "foofoo", "abcabc", "xxxxx", "ab abc abcd", "foo\nbar\nfoo",
+            "FOO fOo", "a\nc abc", "555-1234 and 555-12345", "tom@example.com, bob@example.com",
+            "line\nan ERROR here\nend", "Tom Sawyer met Huckleberry Finn", "aaaa bbbb ab a",
+    };
+
+    private static String findAll(Pattern p, String input) {
+        StringBuilder sb = new StringBuilder();
+        Matcher m = p.matcher(input);
+        while (m.find())
+            sb.append(m.start()).append('-').append(m.end()).append(' ');
+        return sb.toString();
+    }
+
+    @Test
+    public void sameBoundsAsBacktracking() {
+        for (String regex : PATTERNS) {
+            Pattern dfa = Pattern.compile(regex);
+            Pattern bt = Pattern.compile(regex, Regex._NO_DFA);
+            for (String input : INPUTS) {
+                assertEquals("/" + regex + "/ on \"" + input + "\"", findAll(bt, input), findAll(dfa, input));
+            }
+        }
+    }
+
+    @Test
+    public void longScansSeeDeadlineAndCancelFlag() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * Regex.CHECK_CHARS; i++)
+            sb.append('x');
+        String input = sb + "ac";
+        // no required literal, so the DFA scans every char
+        Pattern p = Pattern.compile("[ab][cd]");
+        Matcher m = p.matcher(input);
+        AtomicBoolean cancel = new AtomicBoolean(true);
+        m.setCancelFlag(cancel);
+        try {
+            m.find();
+            fail("expected to give up");
+        } catch (RegexRuntimeLimitException e) {
+            assertEquals("regex matching cancelled", e.getMessage());
+        }
+
+        m = p.matcher(input);
+        m.setDeadline(System.nanoTime() - 1);
+        try {
+            m.find();
+            fail("expected to give up");
+        } catch (RegexRuntimeLimitException e) {
+            assertEquals("regex deadline passed", e.getMessage());
+        }
+
+        cancel.set(false);
+        m = p.matcher(input);
+        m.setCancelFlag(cancel);
+        m.setDeadline(System.nanoTime() + 60_000_000_000L);
+        assertTrue(m.find());
+        assertEquals(3 * Regex.CHECK_CHARS, m.start());
+    }
+
+    @Test
+    public void endAnchoredMatchesAndLookingAt() {
+        for (int flags : new int[]{0, Regex._NO_DFA, Regex._NO_DFA | Regex._NO_INTERPRETER}) {
+            Matcher m = Pattern.compile("$", flags).matcher("a");
+            assertFalse(m.matches());
+            assertFalse(m.lookingAt());
+            assertTrue(m.find());
+            assertEquals(1, m.start());
+            assertTrue(Pattern.compile("$", flags).matcher("").matches());
+            assertFalse(Pattern.compile("b$", flags).matcher("ab").lookingAt());
+            assertFalse(Pattern.compile("b$", flags).matcher("ab").matches());
+            assertTrue(Pattern.compile("a?b$", flags).matcher("ab").lookingAt());
+        }
+    }
+
+    @Test
+    public void matches() {
+        assertTrue(Pattern.compile("(?:ab|a)(?:c|bcd)").matches("abcd"));
+        assertTrue(Pattern.compile("[a-z]+ing").matches("washing"));
+        assertFalse(Pattern.compile("[a-z]+ing").matches("washing "));
+        assertTrue(Pattern.compile("(?i)a+").matches("aAa"));
+        assertFalse(Pattern.compile("a.c").matches("a\nc"));
+        assertTrue(Pattern.compile("a.c", Pattern.DOTALL).matches("a\nc"));
+    }
+
+    @Test
+    public void lookingAt() {
+        Matcher m = Pattern.compile("a+|b").matcher("aab");
+        assertTrue(m.lookingAt());
+        assertEquals(0, m.start());
+        assertEquals(2, m.end());
+        // only a match at the beginning counts, also for end anchored patterns
+        assertFalse(Pattern.compile("foo$").matcher("foofoo").lookingAt());
+    }
+
+    @Test
+    public void findFrom() {
+        Matcher m = Pattern.compile("\\bfoo").matcher("xfoo foo");
+        assertTrue(m.find(1));
+        assertEquals(1, m.start());
+        assertTrue(m.find(2));
+        assertEquals(5, m.start());
+    }
+
+    @Test
+    public void noCatastrophicBacktracking() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            sb.append('a');
+        Matcher m = Pattern.compile("(?:a+)+b").matcher(sb);
+        m.setBacktrackLimit(1000);
+        assertFalse(m.find());
+        assertEquals(0, m.getBacktrackCount());
+    }
+
+    @Test
+    public void fallsBackWhenStatesExplode() {
+        Random r = new Random(17);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+            sb.append(r.nextBoolean() ? 'a' : 'b');
+        String input = sb.toString();
+        String regex = "(?:a|b)*a(?:a|b){14}b";
+        assertEquals(findAll(Pattern.compile(regex, Regex._NO_DFA), input), findAll(Pattern.compile(regex), input));
+    }
+
+    @Test
+    public void groupsSameAsBacktracking() {
+        String[] patterns = {"(a|ab)(c|bcd)", "(\\w+)@(\\w+)\\.com", "(a+)(b)?", "x(y|(z))*", "(?i)(fo)+o", "(\\d+)-(\\d+)$"};
+        String[] inputs = {"abcd abc", "tom@example.com, bob@work.com", "aab ab a", "xyzzy xzy", "FOFOO foo", "555-1234 1-2"};
+        for (String regex : patterns) {
+            Pattern dfa = Pattern.compile(regex);
+            Pattern bt = Pattern.compile(regex, Regex._NO_DFA);
+            for (String input : inputs) {
+                assertEquals("/" + regex + "/ on \"" + input + "\"", groups(bt, input), groups(dfa, input));
+            }
+        }
+    }
+
+    private static String groups(Pattern p, String input) {
+        StringBuilder sb = new StringBuilder();
+        Matcher m = p.matcher(input);
+        while (m.find()) {
+            for (int i = 0; i <= m.groupCount(); i++)
+                sb.append(m.start(i)).append('-').append(m.end(i)).append(' ');
+            sb.append("; ");
+        }
+        m = p.matcher(input);
+        if (m.matches()) {
+            for (int i = 0; i <= m.groupCount(); i++)
+                sb.append(m.group(i)).append(' ');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void onlyRegularPatternsAreWrapped() {
+        Regex dummy = new ProxyRegex(null);
+        assertTrue(DFARegex.wrap(dummy, parse("a+b"), 0) instanceof DFARegex);
+        assertTrue(DFARegex.wrap(dummy, parse("(a)+b"), 0) instanceof DFARegex);
+        assertSame(dummy, DFARegex.wrap(dummy, parse("(a)\\1"), 0));
+        assertSame(dummy, DFARegex.wrap(dummy, parse("(?=a)a"), 0));
+        assertSame(dummy, DFARegex.wrap(dummy, parse("(?:a*)*b"), 0));
+    }
+
+    private static RNode parse(String regex) {
+        return new RParser(0, 0).parse(regex, false);
+    }
+}
@@ -0,0 +1,132 @@
+package com.humio.jitrex.dfa;
+
+import com.humio.jitrex.Matcher;
+import com.humio.jitrex.Pattern;
+import com.humio.jitrex.RegexRuntimeLimitException;
+import com.humio.jitrex.parser.RParser;
+import com.humio.jitrex.tree.RNode;
+import com.humio.jitrex.util.Regex;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class LiteralSetRegexTest {
+
+    private static final String[] PATTERNS = {
+            "Tom|Sawyer|Huckleberry|Finn", "a|ab", "ab|a", "b|abc|bcd", "(?:a|b)(?:c|d)",
+            "colou?r", "x(?:y|yz)?", "he|she|his|hers", "ab(?:cd|c)|abcde",
+    };
+
+    private static final String[] INPUTS = {
+            "", "Tom Sawyer met Huckleberry Finn", "aab abab", "abcd xbcdx", "TOM and sAwYeR", "acbdad",
+            "color colour colouur", "xyz xy x", "ushers his hers", "abcdef abc",
+    };
+
+    private static String findAll(Matcher m) {
+        StringBuilder sb = new StringBuilder();
+        while (m.find())
+            sb.append(m.start()).append('-').append(m.end()).append(' ');
+        return sb.toString();
+    }
+
+    private static String findAll(java.util.regex.Matcher m) {
+        StringBuilder sb = new StringBuilder();
+        while (m.find())
+            sb.append(m.start()).append('-').append(m.end()).append(' ');
+        return sb.toString();
+    }
+
+    @Test
+    public void sameAsJava() {
+        for (String regex : PATTERNS) {
+            Pattern p = Pattern.compile(regex);
+            java.util.regex.Pattern jdk = java.util.regex.Pattern.compile(regex);
+            for (String input : INPUTS) {
+                String where = "/" + regex + "/ on \"" + input + "\"";
+                assertEquals(where, findAll(jdk.matcher(input)), findAll(p.matcher(input)));
+                assertEquals(where, jdk.matcher(input).matches(), p.matcher(input).matches());
+                java.util.regex.Matcher jm = jdk.matcher(input);
+                Matcher m = p.matcher(input);
+                boolean looking = jm.lookingAt();
+                assertEquals(where, looking, m.lookingAt());
+                if (looking)
+                    assertEquals(where, jm.end(), m.end());
+            }
+        }
+        Matcher m = Pattern.compile("tom|SAWYER", Pattern.CASE_INSENSITIVE).matcher("TOM and sAwYeR");
+        assertEquals("0-3 8-14 ", findAll(m));
+        assertTrue(Pattern.compile("ab|a").matcher("a").matches());
+        assertTrue(Pattern.compile("a|ab").matcher("ab").matches());
+    }
+
+    @Test
+    public void largeList() {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0)
+                regex.append('|');
+            regex.append("host").append(i * 7).append("\\.example");
+        }
+        Pattern p = Pattern.compile(regex.toString());
+        Matcher m = p.matcher("connect to host34.example and host35.example then host34993.example");
+        assertTrue(m.find());
+        assertEquals("host35.example", m.group());
+        assertTrue(m.find());
+        assertEquals("host34993.example", m.group());
+        assertFalse(m.find());
+    }
+
+    @Test
+    public void longScansSeeDeadlineAndCancelFlag() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * Regex.CHECK_CHARS; i++)
+            sb.append('x');
+        String input = sb + "bar";
+        Pattern p = Pattern.compile("foo|bar");
+        Matcher m = p.matcher(input);
+        AtomicBoolean cancel = new AtomicBoolean(true);
+        m.setCancelFlag(cancel);
+        try {
+            m.find();
+            fail("expected to give up");
+        } catch (RegexRuntimeLimitException e) {
+            assertEquals("regex matching cancelled", e.getMessage());
+        }
+
+        m = p.matcher(input);
+        m.setDeadline(System.nanoTime() - 1);
+        try {
+            m.find();
+            fail("expected to give up");
+        } catch (RegexRuntimeLimitException e) {
+            assertEquals("regex deadline passed", e.getMessage());
+        }
+
+        cancel.set(false);
+        m = p.matcher(input);
+        m.setCancelFlag(cancel);
+        assertTrue(m.find());
+        assertEquals(3 * Regex.CHECK_CHARS, m.start());
+    }
+
+    @Test
+    public void onlyLiteralAlternationsAreUsed() {
+        assertNotNull(LiteralSetRegex.create(parse("foo|bar")));
+        assertNotNull(LiteralSetRegex.create(parse("(?:a|b)c")));
+        assertNull(LiteralSetRegex.create(parse("foo")));
+        assertNull(LiteralSetRegex.create(parse("(foo|bar)")));
+        assertNull(LiteralSetRegex.create(parse("foo|bar+")));
+        assertNull(LiteralSetRegex.create(parse("foo|")));
+        assertNull(LiteralSetRegex.create(parse("^foo|bar")));
+        assertNull(LiteralSetRegex.create(parse("(?i:foo)|bar")));
+    }
+
+    private static RNode parse(String regex) {
+        return new RParser(0, 0).parse(regex, false);
+    }
+}
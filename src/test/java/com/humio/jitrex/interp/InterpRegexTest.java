@@ -0,0 +1,114 @@
+package com.humio.jitrex.interp;
+
+import com.humio.jitrex.RegexRuntimeLimitException;
+import com.humio.jitrex.compiler.RCompiler;
+import com.humio.jitrex.compiler.RMachine;
+import com.humio.jitrex.jvm.RJavaClassMachine;
+import com.humio.jitrex.parser.RParser;
+import com.humio.jitrex.util.Regex;
+import junit.framework.TestCase;
+
+import java.util.Enumeration;
+
+public class InterpRegexTest extends TestCase {
+
+    private static final String[] PATTERNS = {
+            "abc", "a(b+)c", "(a|ab)(c|bcd)(d*)", "x*", "^(\\w+)\\s*=\\s*(.*)$", "a.*b.*c",
+            "(?:a|b)*?c", "[a-c]{2,4}d", "\\bfoo\\b", "(\\d+)-(\\d+)", "(a)|b", ".*x.*y$",
+            "[^x]*y", "(a|aa)*[bc]", "h.llo", "a{3}",
+    };
+    private static final String[] INPUTS = {
+            "", "abc", "xabbbc", "abcd", "key = value", "aXbYc", "ababc", "abccd cccd",
+            "a foo b", "12-345 6-7", "bbb", "axaxbyy", "xxxy", "aaaaaaaaaaaaaaaaaaaaaaaac", "say hello",
+            "aaaa",
+    };
+    private static final int[] FLAGS = {
+            0, Regex.CASE_INSENSITIVE, Regex.MULTILINE, Regex.DOTALL,
+    };
+
+    private static Regex compile(RMachine machine, String pattern, int flags) {
+        new RCompiler(machine).compile(new RParser(0, flags).parse(pattern, false), pattern);
+        return machine.makeRegex();
+    }
+
+    private static String groups(Regex re) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(re.getMatchStart()).append('-').append(re.getMatchEnd());
+        Enumeration<String> vars = re.variables();
+        while (vars.hasMoreElements()) {
+            String var = vars.nextElement();
+            sb.append(' ').append(var).append('=')
+                    .append(re.getIndex(re.getVariableHandle(var, true))).append('-')
+                    .append(re.getIndex(re.getVariableHandle(var, false)));
+        }
+        return sb.toString();
+    }
+
+    private static String run(Regex re, String input) {
+        StringBuilder sb = new StringBuilder();
+        re.init(input, 0, input.length());
+        while (re.search()) {
+            sb.append(groups(re)).append(';');
+            if (re.getMatchEnd() == input.length())
+                break;
+            re.setSearchStart(Math.max(re.getMatchEnd(), re.getMatchStart() + 1));
+        }
+        re.init(input, 0, input.length());
+        sb.append(" match=").append(re.match());
+        re.init(input, 0, input.length());
+        sb.append(" whole=").append(re.matchWhole());
+        sb.append(" backtracks=").append(re.getBackTrackCount());
+        return sb.toString();
+    }
+
+    public void testSameAsGeneratedCode() {
+        for (int flags : FLAGS) {
+            for (String pattern : PATTERNS) {
+                RJavaClassMachine jvm = new RJavaClassMachine();
+                jvm.setNoRefiller(true);
+                Regex expected = compile(jvm, pattern, flags);
+                Regex actual = compile(new RInterpMachine(), pattern, flags);
+                for (String input : INPUTS)
+                    assertEquals(pattern + " on " + input + " flags " + flags,
+                            run(expected, input), run(actual, input));
+            }
+        }
+    }
+
+    public void testSameHandles() {
+        RJavaClassMachine jvm = new RJavaClassMachine();
+        jvm.setNoRefiller(true);
+        Regex expected = compile(jvm, "(x)(y)", 0);
+        Regex actual = compile(new RInterpMachine(), "(x)(y)", 0);
+        Enumeration<String> vars = expected.variables();
+        while (vars.hasMoreElements()) {
+            String var = vars.nextElement();
+            assertEquals(expected.getVariableHandle(var, true), actual.getVariableHandle(var, true));
+            assertEquals(expected.getVariableHandle(var, false), actual.getVariableHandle(var, false));
+            assertEquals(expected.getExtVariableHandle(var), actual.getExtVariableHandle(var));
+        }
+    }
+
+    public void testBackTrackLimit() {
+        Regex re = compile(new RInterpMachine(), "(a|aa)*[bc]", 0);
+        re.setBackTrackLimit(100);
+        String input = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaax";
+        re.init(input, 0, input.length());
+        try {
+            re.search();
+            fail();
+        } catch (RegexRuntimeLimitException e) {
+            // expected
+        }
+    }
+
+    public void testNoRefill() {
+        Regex re = compile(new RInterpMachine(), "abc", 0);
+        try {
+            re.setRefiller(null);
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package com.humio.jitrex.jvm;
 
+import com.humio.jitrex.compiler.RCompiler;
+import com.humio.jitrex.parser.RParser;
+import com.humio.jitrex.util.Regex;
 import junit.framework.TestCase;
 
+import java.util.Enumeration;
+
 public class RJavaClassMachineTest extends TestCase {
 
     public void testEncodeAsIdentifier() {
@@ -16,4 +21,72 @@ public class RJavaClassMachineTest extends TestCase {
         assertEquals(RJavaClassMachine.crc32("funkyChicken"), "4b3f0849");
     }
 
+    public void testDefinedClassMatches() throws Exception {
+        RJavaClassMachine machine = new RJavaClassMachine();
+        machine.setNoRefiller(true);
+        new RCompiler(machine).compile(new RParser(0, 0).parse("a(b+)c", false), "a(b+)c");
+        Regex re = machine.makeRegex();
+        re.init("xxabbbc", 0, 7);
+        assertTrue(re.search());
+        assertEquals(2, re.getMatchStart());
+        assertEquals(7, re.getMatchEnd());
+
+        Class<?> c = re.getClass();
+        if (RJavaClassMachine.definesHiddenClasses()) {
+            assertEquals(Boolean.TRUE, Class.class.getMethod("isHidden").invoke(c));
+            assertSame(RJavaClassMachine.class.getClassLoader(), c.getClassLoader());
+        } else {
+            assertTrue(c.getClassLoader() instanceof RJavaClassMachine.Loader);
+        }
+    }
+
+    private static final String[] SPLIT_PATTERNS = {
+            "abc", "a(b+)c", "(a|ab)(c|bcd)(d*)", "^(\\w+)\\s*=\\s*(.*)$", "a.*b.*c", "(?:a|b)*?c",
+            "[a-c]{2,4}d", "\\bfoo\\b", "(\\d+)-(\\d+)", "(a|aa)*[bc]", ".*x.*y$", "(x|y|z)+w",
+    };
+    private static final String[] SPLIT_INPUTS = {
+            "", "abc", "xabbbc", "abcd", "key = value", "aXbYc", "ababc", "a foo b", "12-345 6-7",
+            "aaaaaaaaaaaac", "axaxbyy", "xyzzyw",
+    };
+
+    private static RJavaClassMachine compile(String pattern, int maxMethodSize) {
+        RJavaClassMachine machine = new RJavaClassMachine();
+        machine.setNoRefiller(true);
+        machine.setMaxMethodSize(maxMethodSize);
+        new RCompiler(machine).compile(new RParser(0, 0).parse(pattern, false), pattern);
+        return machine;
+    }
+
+    private static String run(Regex re, String input) {
+        StringBuilder sb = new StringBuilder();
+        re.init(input, 0, input.length());
+        while (re.search()) {
+            sb.append(re.getMatchStart()).append('-').append(re.getMatchEnd());
+            Enumeration<String> vars = re.variables();
+            while (vars.hasMoreElements()) {
+                String var = vars.nextElement();
+                sb.append(' ').append(var).append('=')
+                        .append(re.getIndex(re.getVariableHandle(var, true))).append('-')
+                        .append(re.getIndex(re.getVariableHandle(var, false)));
+            }
+            sb.append(';');
+            if (re.getMatchEnd() == input.length())
+                break;
+            re.setSearchStart(Math.max(re.getMatchEnd(), re.getMatchStart() + 1));
+        }
+        re.init(input, 0, input.length());
+        sb.append(" whole=").append(re.matchWhole());
+        return sb.toString();
+    }
+
+    public void testSplitMethods() {
+        for (String pattern : SPLIT_PATTERNS) {
+            Regex expected = compile(pattern, 0).makeRegex();
+            RJavaClassMachine split = compile(pattern, 200);
+            assertTrue(pattern, split.getPartCount() > 1);
+            Regex actual = split.makeRegex();
+            for (String input : SPLIT_INPUTS)
+                assertEquals(pattern + " on " + input, run(expected, input), run(actual, input));
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package com.humio.jitrex.jvm;
+
+import com.humio.jitrex.Matcher;
+import com.humio.jitrex.Pattern;
+import com.humio.jitrex.util.Regex;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.CharBuffer;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class StringSpecializedRegexTest {
+
+    private static final String[] PATTERNS = {
+            "(\\w+)@(\\w+)\\.com", "(?i)(hello) (WORLD)", "(a+)b\\1", "(?m)^(\\w+)$", "x(y*)z|q", "([^ ]+) ?",
+            "(?i)(ab)\\1",
+    };
+
+    private static final String INPUT = "Mail tom@example.com, HELLO world!\naab aa aabaa\nxyyz q\nAbaB abAB end";
+
+    private static String findAll(Matcher m) {
+        StringBuilder sb = new StringBuilder();
+        while (m.find()) {
+            for (int g = 0; g <= m.groupCount(); g++)
+                sb.append(m.start(g)).append('-').append(m.end(g)).append(' ');
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
+    /** CharSequence that is neither String nor a JDK type. */
+    private static final class Chars implements CharSequence {
+        private final char[] chars;
+
+        Chars(String s) {
+            chars = s.toCharArray();
+        }
+
+        public int length() {
+            return chars.length;
+        }
+
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, start, end - start);
+        }
+
+        public String toString() {
+            return new String(chars);
+        }
+    }
+
+    @Test
+    public void sameGroupsForAllInputTypes() {
+        for (int flags : new int[]{0, Regex._NO_DFA}) {
+            for (String regex : PATTERNS) {
+                Pattern p = Pattern.compile(regex, flags);
+                String expected = findAll(p.matcher(INPUT));
+                assertEquals(regex, expected, findAll(p.matcher(new StringBuilder(INPUT))));
+                assertEquals(regex, expected, findAll(p.matcher(new Chars(INPUT))));
+                assertEquals(regex, expected, findAll(p.matcher(CharBuffer.wrap(INPUT))));
+                // and back to String after the generic code has been used
+                assertEquals(regex, expected, findAll(p.matcher(INPUT)));
+            }
+        }
+    }
+
+    @Test
+    public void matcherSwitchesOnReset() {
+        Matcher m = Pattern.compile("(\\d+)-(\\d+)").matcher("10-20");
+        assertTrue(m.matches());
+        assertEquals("20", m.group(2));
+        m.reset(new StringBuilder("3-4"));
+        assertTrue(m.matches());
+        assertEquals("3", m.group(1));
+        m.reset("55-66");
+        assertTrue(m.find());
+        assertEquals("66", m.group(2));
+    }
+}
@@ -0,0 +1,73 @@
+package com.humio.jitrex.tree;
+
+import com.humio.jitrex.Matcher;
+import com.humio.jitrex.Pattern;
+import com.humio.jitrex.parser.RParser;
+import com.humio.jitrex.util.Regex;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class RequiredLiteralTest {
+
+    private static String find(String regex) {
+        RequiredLiteral literal = RequiredLiteral.find(new RParser(0, 0).parse(regex, false));
+        return literal == null ? null : literal.toString();
+    }
+
+    @Test
+    public void extraction() {
+        assertEquals("\"@example.com\" at *", find("\\w+@example\\.com"));
+        assertEquals("\"ERROR\" at *", find(".*ERROR.*"));
+        assertEquals("\"foo\" at <=0", find("^foo\\b"));
+        assertEquals("\"bar\" at <=4", find("a.{1,3}bar"));
+        assertEquals("\"xyzc\" at <=1", find("(?:[ab](xyz)c)+"));
+        assertEquals("\"ab\" at <=0", find("a(?=b)b"));
+        assertNull(find("foo|bar"));
+        assertNull(find("(?:ab)?c*"));
+        assertNull(find("(?i)foo"));
+        assertEquals("\"ab\" at <=1", find("(?i:x)ab"));
+    }
+
+    @Test
+    public void indexOf() {
+        RequiredLiteral literal = new RequiredLiteral("abc", 0);
+        assertEquals(3, literal.indexOf("xyzabcabc", 0, 9));
+        assertEquals(6, literal.indexOf("xyzabcabc", 4, 9));
+        assertEquals(-1, literal.indexOf("xyzabcabc", 4, 8));
+        assertEquals(3, literal.indexOf(new StringBuilder("xyzabcabc"), 0, 9));
+        assertEquals(-1, literal.indexOf(new StringBuilder("xyzabcabc"), 4, 8));
+    }
+
+    private static String findAll(Pattern p, String input) {
+        StringBuilder sb = new StringBuilder();
+        Matcher m = p.matcher(input);
+        while (m.find())
+            sb.append(m.group()).append(' ');
+        return sb.toString();
+    }
+
+    @Test
+    public void sameMatchesAsJava() {
+        String[] patterns = {"\\w+@example\\.com", ".*ERROR.*", "a.{1,3}bar", "(\\d+)-abc", "x(?:yz)+"};
+        String[] inputs = {"", "tom@example.com bob@example.org ann@example.com", "line\nan ERROR here\nERROR",
+                "a1bar a1234bar abar a12bar", "12-abc 3-ab 45-abc", "xyzyz xy xyz", "nothing to see"};
+        for (String regex : patterns) {
+            java.util.regex.Pattern jdk = java.util.regex.Pattern.compile(regex);
+            for (String input : inputs) {
+                StringBuilder expected = new StringBuilder();
+                java.util.regex.Matcher m = jdk.matcher(input);
+                while (m.find())
+                    expected.append(m.group()).append(' ');
+                String where = "/" + regex + "/ on \"" + input + "\"";
+                assertEquals(where, expected.toString(), findAll(Pattern.compile(regex), input));
+                assertEquals(where, expected.toString(), findAll(Pattern.compile(regex, Regex._NO_DFA), input));
+                assertEquals(where, jdk.matcher(input).matches(), Pattern.compile(regex, Regex._NO_DFA).matcher(input).matches());
+                assertEquals(where, jdk.matcher(input).lookingAt(), Pattern.compile(regex).matcher(input).lookingAt());
+            }
+        }
+    }
+}